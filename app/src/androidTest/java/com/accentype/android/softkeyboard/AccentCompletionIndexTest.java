@@ -0,0 +1,104 @@
+package com.accentype.android.softkeyboard;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+public class AccentCompletionIndexTest extends AndroidTestCase {
+    private static AccentCompletionIndex newIndex(String dictionary) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DictionaryFile.compileVariants(new ByteArrayInputStream(dictionary.getBytes("UTF-8")), out);
+        AccentCompletionIndex index = new AccentCompletionIndex();
+        index.addDictionary(DictionaryFile.readVariants(new ByteArrayInputStream(out.toByteArray())));
+        index.flush();
+        return index;
+    }
+
+    public void testDictionary() throws Exception {
+        AccentCompletionIndex index = newIndex("ban bạn bàn bán\nbanh bánh\nchao chào cháo\nxin xin xỉn\n");
+        // the unaccented keys are left out, unless listed as accented syllables too
+        Assert.assertEquals(8, index.size());
+
+        // in the order of the dictionary, shorter first
+        Assert.assertEquals(Arrays.asList("bạn", "bánh", "bàn", "bán"), index.complete("ba", 5));
+        Assert.assertEquals(Arrays.asList("xin", "xỉn"), index.complete("xi", 5));
+        // accents typed are ignored, and the case typed is kept
+        Assert.assertEquals(Arrays.asList("Chào", "Cháo"), index.complete("Chà", 5));
+        Assert.assertEquals(0, index.complete("bx", 5).size());
+        Assert.assertEquals(0, index.complete("", 5).size());
+    }
+
+    public void testLearn() throws Exception {
+        AccentCompletionIndex index = newIndex("ban bạn bàn bán\nchao chào cháo\nxin xin xỉn\n");
+        index.learn("Xin chào  bạn", 3);
+        index.learn("xin chào", 1);
+        index.learn("bàn", 2);
+
+        // learned phrases come first, by count
+        List<String> completions = index.complete("xin ch", 3);
+        Assert.assertEquals(Arrays.asList("xin chào bạn", "xin chào", "xin cháo"), completions);
+        Assert.assertEquals("bàn", index.complete("ba", 1).get(0));
+        // a trailing space completes the phrases only
+        Assert.assertEquals(Arrays.asList("xin chào bạn", "xin chào"), index.complete("xin ", 5));
+
+        // the last syllables are completed once the whole phrase has no completions
+        completions = index.complete("tôi ba", 3);
+        Assert.assertEquals(Arrays.asList("tôi bàn", "tôi bạn", "tôi bán"), completions);
+
+        // learned again after a merge
+        index.flush();
+        Assert.assertEquals(Arrays.asList("xin chào bạn", "xin chào"), index.complete("xin c", 2));
+        index.learn("xin chào", 5);
+        Assert.assertEquals(Arrays.asList("xin chào", "xin chào bạn"), index.complete("xin c", 2));
+        index.flush();
+        Assert.assertEquals(Arrays.asList("xin chào", "xin chào bạn"), index.complete("xin c", 2));
+    }
+
+    public void testMerge() throws Exception {
+        AccentCompletionIndex index = newIndex("ban bạn bàn bán\n");
+        for (int i = 0; i < 3 * AccentCompletionIndex.MaxRecent; i++) {
+            index.learn("bạn " + i, i + 1);
+        }
+        index.flush();
+        Assert.assertEquals(3 + 3 * AccentCompletionIndex.MaxRecent, index.size());
+        Assert.assertEquals(Arrays.asList("bạn 767", "bạn 766"), index.complete("ban 7", 2));
+        Assert.assertEquals(Arrays.asList("bạn 199", "bạn 198", "bạn 197"), index.complete("ban 1", 3));
+    }
+
+    public void testLevels() throws Exception {
+        StringBuilder dictionary = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            dictionary.append("ban").append(i).append(" bạn").append(i).append('\n');
+        }
+        AccentCompletionIndex index = newIndex(dictionary.toString());
+        Assert.assertEquals(1, index.getNumLevels());
+
+        // the learned phrases are merged into levels of doubling sizes, below the dictionary
+        int numLearned = 11 * AccentCompletionIndex.MaxRecent;
+        for (int i = 0; i < numLearned; i++) {
+            index.learn("chào " + i, 1 + i % 7);
+            if (i % AccentCompletionIndex.MaxRecent == 0) {
+                index.flush();
+            }
+        }
+        index.flush();
+        Assert.assertEquals(1000 + numLearned, index.size());
+        Assert.assertTrue("Levels: " + index.getNumLevels(), index.getNumLevels() > 1 && index.getNumLevels() <= 5);
+
+        // the best score of a phrase learned again wins over the levels it is in
+        Assert.assertEquals(Arrays.asList("chào 6", "chào 13"), index.complete("chao", 2));
+        index.learn("chào 1", 10);
+        Assert.assertEquals("chào 1", index.complete("chao", 1).get(0));
+        for (int i = 0; i < AccentCompletionIndex.MaxRecent; i++) {
+            index.learn("chào " + (numLearned + i), 1);
+        }
+        index.flush();
+        Assert.assertEquals(Arrays.asList("chào 1", "chào 6"), index.complete("chao", 2));
+        Assert.assertEquals(Arrays.asList("bạn999"), index.complete("ban999", 2));
+    }
+}
@@ -0,0 +1,255 @@
+package com.accentype.android.softkeyboard;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class AutoCompleteTrieTest extends AndroidTestCase {
+    public void testAutoComplete() throws Exception {
+        AutoCompleteTrie trie = new AutoCompleteTrie.Builder()
+            .insert("tea").insert("ten").insert("to").insert("inn").insert("in").insert("tea").insert("i")
+            .build();
+        Assert.assertEquals(6, trie.size());
+
+        Assert.assertEquals(Arrays.asList("tea", "ten", "to"), trie.autoComplete("t"));
+        Assert.assertEquals(Arrays.asList("in", "inn"), trie.autoComplete("in"));
+        Assert.assertEquals(Arrays.asList("i", "in", "inn", "tea", "ten", "to"), trie.autoComplete(""));
+        Assert.assertEquals(0, trie.autoComplete("x").size());
+        Assert.assertEquals(0, trie.autoComplete("tox").size());
+
+        Assert.assertEquals("te", trie.find("te"));
+        Assert.assertEquals("", trie.find("tx"));
+        Assert.assertTrue(trie.contains("in"));
+        Assert.assertFalse(trie.contains("te"));
+
+        AutoCompleteTrie empty = new AutoCompleteTrie();
+        Assert.assertEquals(0, empty.autoComplete("").size());
+        Assert.assertEquals(0, empty.autoComplete("a").size());
+        Assert.assertFalse(empty.contains(""));
+    }
+
+    public void testRandomWords() throws Exception {
+        Random random = new Random(7);
+        List<String> words = new ArrayList<>();
+        AutoCompleteTrie.Builder builder = new AutoCompleteTrie.Builder();
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 1 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                sb.append((char)('a' + random.nextInt(6)));
+            }
+            String word = sb.toString();
+            builder.insert(word);
+            if (!words.contains(word)) {
+                words.add(word);
+            }
+        }
+        AutoCompleteTrie trie = builder.build();
+        Collections.sort(words);
+        Assert.assertEquals(words.size(), trie.size());
+
+        for (String prefix : new String[] { "", "a", "bc", "fed", "aaaa" }) {
+            List<String> expected = new ArrayList<>();
+            for (String word : words) {
+                if (word.startsWith(prefix)) {
+                    expected.add(word);
+                }
+            }
+            Collection<String> completions = trie.autoComplete(prefix);
+            Assert.assertEquals(prefix, expected, completions);
+        }
+    }
+
+    public void testTopK() throws Exception {
+        AutoCompleteTrie trie = new AutoCompleteTrie.Builder()
+            .insert("the", 100).insert("then", 40).insert("they", 60).insert("to", 90)
+            .insert("theory", 5).insert("thy", 60).insert("then", 10)
+            .build();
+        Assert.assertEquals(Arrays.asList("the", "to", "thy", "they"), trie.autoComplete("t", 4));
+        // "then" keeps its best score
+        Assert.assertEquals(Arrays.asList("the", "they", "then", "theory"), trie.autoComplete("the", 10));
+        Assert.assertEquals(0, trie.autoComplete("x", 10).size());
+        Assert.assertEquals(0, trie.autoComplete("t", 0).size());
+        Assert.assertEquals(0, new AutoCompleteTrie().autoComplete("", 3).size());
+    }
+
+    public void testTopKRandom() throws Exception {
+        Random random = new Random(11);
+        final Map<String, Integer> scores = new HashMap<>();
+        AutoCompleteTrie.Builder builder = new AutoCompleteTrie.Builder();
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 1 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                sb.append((char)('a' + random.nextInt(6)));
+            }
+            String word = sb.toString();
+            // distinct scores, so that the ranking is unique
+            int score = i * 7 + 3;
+            builder.insert(word, score);
+            Integer previous = scores.get(word);
+            scores.put(word, previous == null ? score : Math.max(previous, score));
+        }
+        AutoCompleteTrie trie = builder.build();
+
+        for (String prefix : new String[] { "", "a", "bc", "fed", "aaaa" }) {
+            List<String> expected = new ArrayList<>();
+            for (String word : scores.keySet()) {
+                if (word.startsWith(prefix)) {
+                    expected.add(word);
+                }
+            }
+            Collections.sort(expected, new Comparator<String>() {
+                @Override public int compare(String a, String b) {
+                    return scores.get(b) - scores.get(a);
+                }
+            });
+            expected = expected.subList(0, Math.min(10, expected.size()));
+            Assert.assertEquals(prefix, expected, trie.autoComplete(prefix, 10));
+        }
+    }
+
+    public void testMerge() throws Exception {
+        Random random = new Random(13);
+        Map<String, Integer> scores = new HashMap<>();
+        AutoCompleteTrie.Builder[] builders = { new AutoCompleteTrie.Builder(), new AutoCompleteTrie.Builder() };
+        AutoCompleteTrie.Builder union = new AutoCompleteTrie.Builder();
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 1 + random.nextInt(7);
+            for (int j = 0; j < length; j++) {
+                sb.append((char)('a' + random.nextInt(5)));
+            }
+            String word = sb.toString();
+            int score = random.nextInt(1000);
+            builders[random.nextInt(2)].insert(word, score);
+            union.insert(word, score);
+            Integer previous = scores.get(word);
+            scores.put(word, previous == null ? score : Math.max(previous, score));
+        }
+        AutoCompleteTrie merged = builders[0].build().merge(builders[1].build());
+        AutoCompleteTrie expected = union.build();
+
+        // the same trie as built from all the words, keeping the best scores
+        Assert.assertEquals(expected.size(), merged.size());
+        Assert.assertEquals(expected.getNumNodes(), merged.getNumNodes());
+        Assert.assertEquals(expected.autoComplete(""), merged.autoComplete(""));
+        for (Map.Entry<String, Integer> entry : scores.entrySet()) {
+            Assert.assertEquals(entry.getKey(), (int)entry.getValue(), merged.score(entry.getKey()));
+        }
+        for (String prefix : new String[] { "", "a", "bc", "eda" }) {
+            Assert.assertEquals(prefix, expected.autoComplete(prefix, 10), merged.autoComplete(prefix, 10));
+        }
+
+        AutoCompleteTrie empty = new AutoCompleteTrie();
+        Assert.assertEquals(expected.autoComplete(""), empty.merge(expected).autoComplete(""));
+        Assert.assertEquals(0, empty.merge(empty).size());
+        Assert.assertEquals(1, empty.merge(empty).getNumNodes());
+    }
+
+    public void testFuzzyComplete() throws Exception {
+        AutoCompleteTrie trie = new AutoCompleteTrie.Builder()
+            .insert("the", 100).insert("they", 60).insert("then", 40).insert("hello", 50)
+            .insert("help", 45).insert("world", 30).insert("would", 70).insert("word", 20)
+            .insert("tget", 1)
+            .build();
+        KeyProximity qwerty = KeyProximity.qwerty();
+
+        // 'g' is next to 'h', and the frequent corrections outrank the rare exact completion
+        Assert.assertEquals(Arrays.asList("the", "they", "then"), trie.fuzzyComplete("tge", 3, 2, qwerty));
+        Assert.assertEquals(Arrays.asList("the", "they", "then", "tget"), trie.fuzzyComplete("tge", 4, 2, qwerty));
+        // transposed letters
+        Assert.assertEquals("hello", trie.fuzzyComplete("hlel", 1, 2, qwerty).get(0));
+        // a missing letter
+        Assert.assertEquals("world", trie.fuzzyComplete("wrld", 1, 2, qwerty).get(0));
+
+        // exact completions come first unless a correction is much more frequent
+        List<String> completions = trie.fuzzyComplete("wor", 3, 2, qwerty);
+        Assert.assertEquals(Arrays.asList("world", "word"), completions.subList(0, 2));
+        Assert.assertEquals(3, completions.size());
+
+        // a one-letter prefix tolerates nothing
+        Assert.assertEquals(0, trie.fuzzyComplete("q", 3, 2, qwerty).size());
+        Assert.assertEquals(0, trie.fuzzyComplete("xqzj", 3, 2, qwerty).size());
+        Assert.assertEquals(0, new AutoCompleteTrie().fuzzyComplete("hello", 3, 2, qwerty).size());
+
+        Assert.assertEquals(KeyProximity.NearCost, qwerty.substitutionCost('g', 'h'));
+        Assert.assertEquals(KeyProximity.NearCost, qwerty.substitutionCost('z', 'a'));
+        Assert.assertEquals(KeyProximity.EditCost, qwerty.substitutionCost('q', 'p'));
+        Assert.assertEquals(0, qwerty.substitutionCost('q', 'q'));
+    }
+
+    public void testFuzzyCompleteRandom() throws Exception {
+        Random random = new Random(5);
+        Map<String, Integer> scores = new HashMap<>();
+        AutoCompleteTrie.Builder builder = new AutoCompleteTrie.Builder();
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 2 + random.nextInt(6);
+            for (int j = 0; j < length; j++) {
+                sb.append((char)('a' + random.nextInt(5)));
+            }
+            builder.insert(sb.toString(), i);
+            scores.put(sb.toString(), i);
+        }
+        AutoCompleteTrie trie = builder.build();
+
+        // every completion is within the allowed cost of the prefix, ranked by its score discounted
+        // by the cost, and nothing within the cost is missed
+        for (String prefix : new String[] { "ab", "cde", "eeab", "dcbae" }) {
+            int maxCost = Math.min(2 * KeyProximity.EditCost, prefix.length() - 1);
+            List<String> completions = trie.fuzzyComplete(prefix, 10000, 2, null);
+            int previousRank = Integer.MAX_VALUE;
+            int numExpected = 0;
+            for (String word : scores.keySet()) {
+                if (prefixCost(prefix, word) <= maxCost) {
+                    numExpected++;
+                }
+            }
+            Assert.assertEquals(prefix, numExpected, completions.size());
+            for (String word : completions) {
+                int cost = prefixCost(prefix, word);
+                // a whole edit costs 2 and quarters the score
+                int rank = scores.get(word) >> cost;
+                Assert.assertTrue(word, cost <= maxCost && rank <= previousRank);
+                previousRank = rank;
+            }
+        }
+    }
+
+    /**
+     * Gets the least weighted edit distance between a query & any prefix of a word, each edit
+     * costing 2, the reference for the search of the trie.
+     */
+    private static int prefixCost(String query, String word) {
+        int m = query.length();
+        int[][] d = new int[word.length() + 1][m + 1];
+        for (int j = 0; j <= m; j++) {
+            d[0][j] = 2 * j;
+        }
+        int best = d[0][m];
+        for (int i = 1; i <= word.length(); i++) {
+            d[i][0] = 2 * i;
+            for (int j = 1; j <= m; j++) {
+                int substitution = query.charAt(j - 1) == word.charAt(i - 1) ? 0 : 2;
+                d[i][j] = Math.min(d[i - 1][j - 1] + substitution, Math.min(d[i - 1][j], d[i][j - 1]) + 2);
+                if (i > 1 && j > 1 && query.charAt(j - 1) == word.charAt(i - 2) &&
+                    query.charAt(j - 2) == word.charAt(i - 1)) {
+                    d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 2);
+                }
+            }
+            best = Math.min(best, d[i][m]);
+        }
+        return best;
+    }
+}
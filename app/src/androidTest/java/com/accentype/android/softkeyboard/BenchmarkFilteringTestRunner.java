@@ -0,0 +1,29 @@
+package com.accentype.android.softkeyboard;
+
+import android.os.Bundle;
+import android.test.InstrumentationTestRunner;
+import android.test.suitebuilder.annotation.LargeTest;
+
+/**
+ * Runs the tests except the benchmarks, which are annotated {@link LargeTest} and assert
+ * timings that only hold on an idle device. The benchmarks run on their own with the
+ * connectedBenchmark task, or whenever tests are picked by size, class, package or annotation.
+ */
+public class BenchmarkFilteringTestRunner extends InstrumentationTestRunner {
+    private static final String[] SelectingArguments = { "size", "class", "package", "annotation" };
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        if (arguments == null) {
+            arguments = new Bundle();
+        }
+        boolean isSelected = false;
+        for (String argument : SelectingArguments) {
+            isSelected |= arguments.getString(argument) != null;
+        }
+        if (!isSelected) {
+            arguments.putString("notAnnotation", LargeTest.class.getName());
+        }
+        super.onCreate(arguments);
+    }
+}
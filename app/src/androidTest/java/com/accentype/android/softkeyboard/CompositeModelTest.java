@@ -0,0 +1,164 @@
+package com.accentype.android.softkeyboard;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class CompositeModelTest extends AndroidTestCase {
+    /**
+     * Model that answers with fixed predictions after a delay.
+     */
+    private static class FixedModel implements BaseModel {
+        private final long mDelay;
+        private final String[] mAlternatives;
+        private int mNumLearned;
+
+        FixedModel(long delay, String... alternatives) {
+            mDelay = delay;
+            mAlternatives = alternatives;
+        }
+
+        @Override public String predict(String rawPhrase) {
+            List<String> alternatives = predictAlternatives(rawPhrase, 1);
+            return alternatives.isEmpty() ? null : alternatives.get(0);
+        }
+
+        @Override public List<String> predictAlternatives(String rawPhrase, int maxAlternatives) {
+            try {
+                Thread.sleep(mDelay);
+            }
+            catch (InterruptedException ex) {
+                return new ArrayList<>();
+            }
+            List<String> alternatives = new ArrayList<>(Arrays.asList(mAlternatives));
+            return alternatives.subList(0, Math.min(maxAlternatives, alternatives.size()));
+        }
+
+        @Override public PredictionFuture predictAsync(String rawPhrase, long deadlineMillis) {
+            return PredictionFuture.submit(this, rawPhrase, deadlineMillis);
+        }
+
+        @Override public PredictionSession newSession() {
+            return new SimplePredictionSession(this);
+        }
+
+        @Override public void learn(String rawPhrase, String accentPhrase) {
+            mNumLearned++;
+        }
+
+        @Override public void dispose() {
+        }
+
+        @Override public int version() {
+            return 0;
+        }
+    }
+
+    /**
+     * Model that waits for a latch without responding to interrupts, like a model waiting for
+     * a lock.
+     */
+    private static class BlockingModel extends FixedModel {
+        private final CountDownLatch mRelease = new CountDownLatch(1);
+
+        BlockingModel(String... alternatives) {
+            super(0, alternatives);
+        }
+
+        @Override public List<String> predictAlternatives(String rawPhrase, int maxAlternatives) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mRelease.await();
+                    break;
+                }
+                catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return super.predictAlternatives(rawPhrase, maxAlternatives);
+        }
+    }
+
+    public void testFuse() throws Exception {
+        CompositeModel model = new CompositeModel();
+        model.addModel(new FixedModel(0, "tại.."), 1.0f);
+        model.addModel(new FixedModel(0, "tai xế"), 0.5f);
+        model.addModel(new FixedModel(0, "tái xế"), 0.2f);
+
+        // the first word has more weight on the first model, the second one is only known by the others
+        Assert.assertEquals("tạixế", model.predict("tai xe"));
+
+        PredictionSession session = model.newSession();
+        session.update("tai xe");
+        Assert.assertEquals("tạixế", session.predict());
+
+        Assert.assertNull(new CompositeModel().predict("tai xe"));
+        model.dispose();
+    }
+
+    public void testLatencyBudget() throws Exception {
+        CompositeModel model = new CompositeModel();
+        model.setLatencyBudget(100);
+        model.addModel(new FixedModel(5000, "tạixế"), 1.0f);
+        model.addModel(new FixedModel(0, "tàixế"), 0.5f);
+
+        long start = System.currentTimeMillis();
+        Assert.assertEquals("tàixế", model.predict("tai xe"));
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertTrue("Took " + elapsed + "ms", elapsed < 1000);
+        model.dispose();
+    }
+
+    public void testBlockingModel() throws Exception {
+        CompositeModel model = new CompositeModel();
+        model.setLatencyBudget(50);
+        BlockingModel blocking = new BlockingModel("tạixế");
+        model.addModel(blocking, 1.0f);
+        model.addModel(new FixedModel(0, "tàixế"), 0.5f);
+
+        // the blocked model holds one thread at most, the other model still answers every query
+        PredictionSession session = model.newSession();
+        for (int i = 0; i < 3 * CompositeModel.DefaultNumThreads; i++) {
+            Assert.assertEquals("tàixế", model.predict("tai xe"));
+            session.update(i % 2 == 0 ? "tai xe" : "tai xe ");
+            Assert.assertEquals("tàixế", session.predict());
+            Assert.assertEquals(Arrays.asList("tàixế"), model.predictAlternatives("tai xe", 2));
+        }
+
+        // asked again once it returns
+        blocking.mRelease.countDown();
+        long deadline = System.currentTimeMillis() + 1000;
+        String prediction;
+        do {
+            prediction = model.predict("tai xe");
+        } while (!"tạixế".equals(prediction) && System.currentTimeMillis() < deadline);
+        Assert.assertEquals("tạixế", prediction);
+        model.dispose();
+    }
+
+    public void testAlternativesAndLearn() throws Exception {
+        CompositeModel model = new CompositeModel();
+        FixedModel first = new FixedModel(0, "bạntôi", "bàntối");
+        FixedModel second = new FixedModel(0, "bàn tối", "bạn tôi", "bán tội");
+        model.addModel(first, 1.0f);
+        model.addModel(second, 1.0f);
+
+        List<String> alternatives = model.predictAlternatives("ban toi", 3);
+        Assert.assertEquals(Arrays.asList("bạntôi", "bàntối", "bántội"), alternatives);
+        Assert.assertEquals(1, model.predictAlternatives("ban toi", 1).size());
+
+        model.learn("ban toi", "bạn tôi");
+        Assert.assertEquals(1, first.mNumLearned);
+        Assert.assertEquals(1, second.mNumLearned);
+        model.dispose();
+    }
+}
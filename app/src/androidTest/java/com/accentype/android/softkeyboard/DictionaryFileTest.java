@@ -0,0 +1,88 @@
+package com.accentype.android.softkeyboard;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class DictionaryFileTest extends AndroidTestCase {
+    public void testWords() throws Exception {
+        byte[] data = compileWords("the\nof\n\nthey\n then \nto\nof\n");
+        AutoCompleteTrie trie = DictionaryFile.readWords(new ByteArrayInputStream(data));
+
+        Assert.assertEquals(5, trie.size());
+        // most frequent first
+        Assert.assertEquals(Arrays.asList("the", "they", "then", "to"), trie.autoComplete("t", 10));
+        Assert.assertEquals(Arrays.asList("the", "then", "they", "to"), trie.autoComplete("t"));
+        Assert.assertTrue(trie.contains("of"));
+        Assert.assertEquals("the", trie.fuzzyComplete("tge", 1, 2, KeyProximity.qwerty()).get(0));
+
+        AutoCompleteTrie empty = DictionaryFile.readWords(new ByteArrayInputStream(compileWords("")));
+        Assert.assertEquals(0, empty.size());
+        Assert.assertEquals(0, empty.autoComplete("a", 10).size());
+    }
+
+    public void testVariants() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DictionaryFile.compileVariants(new ByteArrayInputStream(
+            "toi tôi tối tội\nban bạn bàn bán\n\na á à\nbanh bánh bạnh \n".getBytes("UTF-8")), out);
+        DictionaryFile.Variants variants = DictionaryFile.readVariants(new ByteArrayInputStream(out.toByteArray()));
+
+        Assert.assertEquals(4, variants.size());
+        int group = variants.find("xin chao BAN toi", 9, 12);
+        Assert.assertEquals(4, variants.getNumWords(group));
+        Assert.assertEquals("ban", variants.getWord(group, 0));
+        Assert.assertEquals("bạn", variants.getWord(group, 1));
+        Assert.assertEquals("bán", variants.getWord(group, 3));
+        Assert.assertEquals("tội", variants.getWord(variants.find("toi", 0, 3), 3));
+        Assert.assertEquals("á", variants.getWord(variants.find("a", 0, 1), 1));
+        Assert.assertEquals(3, variants.getNumWords(variants.find("banh", 0, 4)));
+        Assert.assertEquals(DictionaryFile.NotFound, variants.find("ba", 0, 2));
+        Assert.assertEquals(DictionaryFile.NotFound, variants.find("bant", 0, 4));
+        Assert.assertEquals(DictionaryFile.NotFound, variants.find("bạn", 0, 3));
+        Assert.assertEquals(DictionaryFile.NotFound, variants.find("", 0, 0));
+    }
+
+    public void testCorrupt() throws Exception {
+        byte[] data = compileWords("the\nof\nand\n");
+        byte[] truncated = new byte[data.length - 1];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        assertUnreadable(truncated);
+        // an EN dictionary is not a VN one
+        try {
+            DictionaryFile.readVariants(new ByteArrayInputStream(data));
+            Assert.fail("Read the wrong type of dictionary");
+        }
+        catch (IOException ex) {
+        }
+
+        byte[] badMagic = data.clone();
+        badMagic[0]++;
+        assertUnreadable(badMagic);
+
+        // a first child out of the trie, past the header & the labels
+        int numNodes = ((data[16] & 0xFF) << 24) | ((data[17] & 0xFF) << 16) | ((data[18] & 0xFF) << 8) | (data[19] & 0xFF);
+        byte[] badChild = data.clone();
+        badChild[28 + 2 * numNodes] = 0x7F;
+        assertUnreadable(badChild);
+    }
+
+    private static byte[] compileWords(String text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DictionaryFile.compileWords(new ByteArrayInputStream(text.getBytes("UTF-8")), out);
+        return out.toByteArray();
+    }
+
+    private static void assertUnreadable(byte[] data) {
+        try {
+            DictionaryFile.readWords(new ByteArrayInputStream(data));
+            Assert.fail("Read a corrupt dictionary");
+        }
+        catch (IOException ex) {
+        }
+    }
+}
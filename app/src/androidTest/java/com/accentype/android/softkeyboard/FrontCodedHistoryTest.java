@@ -0,0 +1,82 @@
+package com.accentype.android.softkeyboard;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.Random;
+
+public class FrontCodedHistoryTest extends TestCase {
+    private static final String[] Syllables = { "tôi", "bạn", "đi", "học", "về", "nhà", "ăn", "cơm", "không",
+        "thế", "nào", "làm", "việc", "mai", "giờ", "bao", "chơi", "sao", "tại", "lại", "người", "của" };
+
+    public void testRoundTrip() throws Exception {
+        PhraseHistory history = history(5000);
+        // longer than a length byte can hold
+        StringBuilder longPhrase = new StringBuilder();
+        while (longPhrase.length() < 300) {
+            longPhrase.append("người việt ");
+        }
+        history.put(longPhrase.toString(), 3);
+
+        for (boolean deflate : new boolean[] { false, true }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            FrontCodedHistory.write(out, history, deflate);
+            byte[] data = out.toByteArray();
+
+            PhraseHistory read = new PhraseHistory();
+            FrontCodedHistory.Reader reader = new FrontCodedHistory.Reader(data, 0, data.length);
+            Assert.assertEquals(history.size(), reader.size());
+            reader.readAll(read);
+            Assert.assertEquals(history, read);
+
+            for (Map.Entry<String, Integer> entry : history.entrySet()) {
+                Assert.assertEquals(entry.getKey(), (int)entry.getValue(), reader.get(entry.getKey()));
+            }
+            Assert.assertEquals(0, reader.get(""));
+            Assert.assertEquals(0, reader.get("uay uay"));
+            Assert.assertEquals(0, reader.get("tôi tôi tôi tôi tôi tôi tôi"));
+        }
+    }
+
+    public void testEmpty() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrontCodedHistory.write(out, new PhraseHistory(), true);
+        byte[] data = out.toByteArray();
+        FrontCodedHistory.Reader reader = new FrontCodedHistory.Reader(data, 0, data.length);
+        Assert.assertEquals(0, reader.size());
+        Assert.assertEquals(0, reader.get("tôi"));
+    }
+
+    public void testSize() throws Exception {
+        PhraseHistory history = history(20000);
+        // one length byte, the UTF-8 phrase & an int count, as the previous format
+        int plainSize = 0;
+        for (String phrase : history.keySet()) {
+            plainSize += 1 + phrase.getBytes("UTF-8").length + 4;
+        }
+        ByteArrayOutputStream frontCoded = new ByteArrayOutputStream();
+        FrontCodedHistory.write(frontCoded, history, false);
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        FrontCodedHistory.write(deflated, history, true);
+
+        Assert.assertTrue(frontCoded.size() < plainSize);
+        Assert.assertTrue(deflated.size() < frontCoded.size());
+        LogUtil.LogMessage(getClass().getName(), history.size() + " phrases take " + plainSize + " bytes plain, " +
+            frontCoded.size() + " front-coded, " + deflated.size() + " deflated");
+    }
+
+    private static PhraseHistory history(int numPhrases) {
+        PhraseHistory history = new PhraseHistory();
+        Random random = new Random(7);
+        for (int i = 0; i < numPhrases; i++) {
+            StringBuilder phrase = new StringBuilder(Syllables[random.nextInt(Syllables.length)]);
+            for (int w = random.nextInt(5); w >= 0; w--) {
+                phrase.append(' ').append(Syllables[random.nextInt(Syllables.length)]);
+            }
+            history.put(phrase.toString(), 1 + random.nextInt(3));
+        }
+        return history;
+    }
+}
@@ -0,0 +1,157 @@
+package com.accentype.android.softkeyboard;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Latency of the typo-tolerant completion of {@link AutoCompleteTrie} on a 100k-word lexicon,
+ * against a target of a couple of milliseconds per keystroke, for prefixes typed exactly, with
+ * one typo and with two. Fails when the p95 latency is well over the target, or when fewer of
+ * the typos are corrected than expected. A benchmark, so it only runs with connectedBenchmark,
+ * see {@link BenchmarkFilteringTestRunner}.
+ */
+public class FuzzyCompleteBenchmarkTest extends TestCase {
+    private static final String[] Fragments = { "th", "er", "on", "an", "re", "he", "in", "ed", "nd",
+        "ha", "at", "en", "es", "of", "or", "nt", "ea", "ti", "to", "it", "st", "io", "le", "is", "ou",
+        "ar", "as", "de", "rt", "ve", "s", "y", "ing", "tion", "ly", "b", "c", "g", "p", "w", "m", "k" };
+    private static final int NumWords = 100000;
+    private static final int NumQueries = 2000;
+    private static final int MaxResults = 40;
+    private static final long TargetMicros = 2000;
+    // slack for slow devices, emulators & debuggable builds, which still fails on a regression
+    // to searching the whole trie
+    private static final int TargetTolerance = 5;
+    // min % of the queries whose intended prefix comes up, by number of typos, a little under
+    // what is measured so that only a regression of the correction fails: exact prefixes that
+    // are rare can be outranked by the corrections of frequent ones
+    private static final int[] MinCorrectedPercent = { 98, 75, 55 };
+
+    private final KeyProximity mQwerty = KeyProximity.qwerty();
+
+    @LargeTest
+    public void testExactPrefix() throws Exception {
+        benchmark(0);
+    }
+
+    @LargeTest
+    public void testOneTypo() throws Exception {
+        benchmark(1);
+    }
+
+    @LargeTest
+    public void testTwoTypos() throws Exception {
+        benchmark(2);
+    }
+
+    private void benchmark(int numTypos) throws Exception {
+        Random random = new Random(17);
+        String[] words = lexicon(random);
+        AutoCompleteTrie.Builder builder = new AutoCompleteTrie.Builder();
+        for (int i = 0; i < words.length; i++) {
+            // earlier words are more frequent
+            builder.insert(words[i], words.length - i);
+        }
+        AutoCompleteTrie trie = builder.build();
+
+        String[] intended = new String[NumQueries];
+        String[] queries = new String[NumQueries];
+        for (int q = 0; q < NumQueries; q++) {
+            // mostly frequent words, typed up to 3-8 letters
+            String word = words[(int)(words.length * Math.pow(random.nextDouble(), 3))];
+            String prefix = word.substring(0, Math.min(word.length(), 3 + random.nextInt(6)));
+            intended[q] = prefix;
+            queries[q] = typos(prefix, numTypos, random);
+        }
+
+        // warm up
+        for (int q = 0; q < NumQueries / 10; q++) {
+            trie.fuzzyComplete(queries[q], MaxResults, 2, mQwerty);
+        }
+
+        long[] micros = new long[NumQueries];
+        int numFound = 0;
+        for (int q = 0; q < NumQueries; q++) {
+            long start = System.nanoTime();
+            List<String> completions = trie.fuzzyComplete(queries[q], MaxResults, 2, mQwerty);
+            micros[q] = (System.nanoTime() - start) / 1000;
+            // the typos are corrected if a completion of the intended prefix comes up
+            for (String completion : completions) {
+                if (completion.startsWith(intended[q])) {
+                    numFound++;
+                    break;
+                }
+            }
+        }
+        Arrays.sort(micros);
+        long p50 = micros[NumQueries / 2];
+        long p95 = micros[NumQueries * 95 / 100];
+        LogUtil.LogMessage(getClass().getName(), "Completed " + NumQueries + " prefixes with " + numTypos +
+            " typos over " + words.length + " words (" + trie.getNumNodes() + " nodes): p50 " + p50 +
+            "us, p95 " + p95 + "us, max " + micros[NumQueries - 1] + "us, target " + TargetMicros +
+            "us; intended prefix in the top " + MaxResults + " for " + numFound * 100 / NumQueries + "%");
+
+        Assert.assertTrue("p95 of " + p95 + "us is over " + TargetTolerance + "x the target",
+            p95 <= TargetMicros * TargetTolerance);
+        Assert.assertTrue("Corrected only " + numFound + " of " + NumQueries + " prefixes",
+            numFound * 100 >= MinCorrectedPercent[numTypos] * NumQueries);
+    }
+
+    private static String[] lexicon(Random random) {
+        Set<String> words = new HashSet<>();
+        String[] lexicon = new String[NumWords];
+        int size = 0;
+        while (size < NumWords) {
+            StringBuilder sb = new StringBuilder();
+            int numFragments = 1 + random.nextInt(4);
+            for (int f = 0; f < numFragments; f++) {
+                sb.append(Fragments[random.nextInt(Fragments.length)]);
+            }
+            String word = sb.toString();
+            if (word.length() > 1 && words.add(word)) {
+                lexicon[size++] = word;
+            }
+        }
+        return lexicon;
+    }
+
+    /**
+     * Makes typos in a prefix: a letter typed on a neighboring key, a letter missed, or two
+     * letters swapped.
+     */
+    private String typos(String prefix, int numTypos, Random random) {
+        StringBuilder sb = new StringBuilder(prefix);
+        for (int t = 0; t < numTypos && sb.length() > 2; t++) {
+            // keep the first letter, which is rarely mistyped
+            int i = 1 + random.nextInt(sb.length() - 1);
+            switch (random.nextInt(3)) {
+                case 0:
+                    for (char c = 'a'; c <= 'z'; c++) {
+                        if (mQwerty.substitutionCost(c, sb.charAt(i)) == KeyProximity.NearCost && random.nextInt(3) == 0) {
+                            sb.setCharAt(i, c);
+                            break;
+                        }
+                    }
+                    break;
+                case 1:
+                    sb.deleteCharAt(i);
+                    break;
+                default:
+                    if (i + 1 < sb.length()) {
+                        char c = sb.charAt(i);
+                        sb.setCharAt(i, sb.charAt(i + 1));
+                        sb.setCharAt(i + 1, c);
+                    }
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+}
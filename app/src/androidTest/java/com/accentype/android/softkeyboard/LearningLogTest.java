@@ -0,0 +1,96 @@
+package com.accentype.android.softkeyboard;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LearningLogTest extends AndroidTestCase {
+    private static final String ModelFile = "testlog.at";
+
+    private List<String> mReplayed = new ArrayList<>();
+
+    private LearningLog.Replayer mReplayer = new LearningLog.Replayer() {
+        @Override public void replay(String rawPhrase, String accentPhrase, int count) {
+            mReplayed.add(rawPhrase + "=" + accentPhrase + "x" + count);
+        }
+    };
+
+    public void tearDown() throws Exception {
+        for (File file : getContext().getFilesDir().listFiles()) {
+            if (file.getName().startsWith(ModelFile)) {
+                file.delete();
+            }
+        }
+    }
+
+    public void testReplay() throws Exception {
+        LearningLog log = new LearningLog(getContext().getFilesDir(), ModelFile);
+        Assert.assertEquals(0, log.replay(0, mReplayer));
+        log.append(new String[] { "di choi", "ban toi" }, new String[] { "đi chơi", "bạn tôi" }, new int[] { 2, 1 }, 2);
+        log.append(new String[] { "tai sao" }, new String[] { "tại sao" }, new int[] { 1 }, 1);
+        log.close();
+
+        log = new LearningLog(getContext().getFilesDir(), ModelFile);
+        Assert.assertEquals(3, log.replay(0, mReplayer));
+        Assert.assertEquals("di choi=đi chơix2", mReplayed.get(0));
+        Assert.assertEquals("ban toi=bạn tôix1", mReplayed.get(1));
+        Assert.assertEquals("tai sao=tại saox1", mReplayed.get(2));
+        Assert.assertTrue(log.size() > 0);
+        log.close();
+    }
+
+    public void testTornTail() throws Exception {
+        LearningLog log = new LearningLog(getContext().getFilesDir(), ModelFile);
+        log.replay(0, mReplayer);
+        log.append(new String[] { "di choi" }, new String[] { "đi chơi" }, new int[] { 1 }, 1);
+        log.append(new String[] { "ban toi" }, new String[] { "bạn tôi" }, new int[] { 1 }, 1);
+        log.close();
+
+        // cut the last record in half as a crash would
+        File segment = new File(getContext().getFilesDir(), ModelFile + ".log.1");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 4);
+        file.close();
+
+        log = new LearningLog(getContext().getFilesDir(), ModelFile);
+        Assert.assertEquals(1, log.replay(0, mReplayer));
+        Assert.assertEquals("di choi=đi chơix1", mReplayed.get(0));
+
+        // appending goes to a new segment, after the torn one
+        log.append(new String[] { "tai sao" }, new String[] { "tại sao" }, new int[] { 1 }, 1);
+        log.close();
+        mReplayed.clear();
+        log = new LearningLog(getContext().getFilesDir(), ModelFile);
+        Assert.assertEquals(2, log.replay(0, mReplayer));
+        Assert.assertEquals("tai sao=tại saox1", mReplayed.get(1));
+        log.close();
+    }
+
+    public void testCompaction() throws Exception {
+        LearningLog log = new LearningLog(getContext().getFilesDir(), ModelFile);
+        log.replay(0, mReplayer);
+        log.append(new String[] { "di choi" }, new String[] { "đi chơi" }, new int[] { 1 }, 1);
+        int lastIncluded = log.rollSegment();
+        log.append(new String[] { "ban toi" }, new String[] { "bạn tôi" }, new int[] { 1 }, 1);
+        log.close();
+
+        // a snapshot including the first segment was saved, but deleting it was interrupted
+        log = new LearningLog(getContext().getFilesDir(), ModelFile);
+        Assert.assertEquals(1, log.replay(lastIncluded, mReplayer));
+        Assert.assertEquals("ban toi=bạn tôix1", mReplayed.get(0));
+        Assert.assertFalse(new File(getContext().getFilesDir(), ModelFile + ".log." + lastIncluded).exists());
+
+        lastIncluded = log.rollSegment();
+        log.deleteUpTo(lastIncluded);
+        Assert.assertEquals(0, log.size());
+        mReplayed.clear();
+        log = new LearningLog(getContext().getFilesDir(), ModelFile);
+        Assert.assertEquals(0, log.replay(lastIncluded, mReplayer));
+        log.close();
+    }
+}
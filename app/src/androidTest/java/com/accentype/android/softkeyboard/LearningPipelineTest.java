@@ -0,0 +1,65 @@
+package com.accentype.android.softkeyboard;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class LearningPipelineTest extends TestCase {
+    private List<Runnable> mTasks = new ArrayList<>();
+    private List<String> mLearned = new ArrayList<>();
+
+    // runs the worker only when the test says so
+    private Executor mExecutor = new Executor() {
+        @Override public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+    };
+
+    private LearningPipeline.Learner mLearner = new LearningPipeline.Learner() {
+        @Override public void learnBatch(String[] rawPhrases, String[] accentPhrases, int[] counts, int size) {
+            for (int i = 0; i < size; i++) {
+                mLearned.add(rawPhrases[i] + "=" + accentPhrases[i] + "x" + counts[i]);
+            }
+        }
+    };
+
+    public void testCoalesce() throws Exception {
+        LearningPipeline pipeline = new LearningPipeline(16, mExecutor, mLearner);
+        pipeline.offer("di choi", "đi chơi");
+        pipeline.offer("ban toi", "bạn tôi");
+        pipeline.offer("di choi", "đi chơi");
+        pipeline.offer("ban toi", "bàn tối");
+
+        // one drain for all the phrases queued before it runs
+        Assert.assertEquals(1, mTasks.size());
+        mTasks.remove(0).run();
+
+        Assert.assertEquals(3, mLearned.size());
+        Assert.assertEquals("di choi=đi chơix2", mLearned.get(0));
+        Assert.assertEquals("ban toi=bạn tôix1", mLearned.get(1));
+        Assert.assertEquals("ban toi=bàn tốix1", mLearned.get(2));
+        Assert.assertEquals(4, pipeline.getLearnedCount());
+        Assert.assertEquals(1, pipeline.getBatchCount());
+
+        // a new phrase schedules another drain
+        pipeline.offer("di choi", "đi chơi");
+        Assert.assertEquals(1, mTasks.size());
+    }
+
+    public void testDropWhenFull() throws Exception {
+        LearningPipeline pipeline = new LearningPipeline(LearningPipeline.MaxBatchSize * 2, mExecutor, mLearner);
+        int capacity = LearningPipeline.MaxBatchSize * 2;
+        for (int i = 0; i < capacity + 10; i++) {
+            Assert.assertEquals(i < capacity, pipeline.offer("phrase " + i, "phrase " + i));
+        }
+        Assert.assertEquals(10, pipeline.getDroppedCount());
+
+        mTasks.remove(0).run();
+        Assert.assertEquals(capacity, mLearned.size());
+        Assert.assertEquals(2, pipeline.getBatchCount());
+        Assert.assertTrue(pipeline.offer("phrase", "phrase"));
+    }
+}
@@ -1,22 +1,36 @@
 package com.accentype.android.softkeyboard;
 
+import android.os.Debug;
 import android.test.AndroidTestCase;
 
 import junit.framework.Assert;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LinearBackoffInterpolationModelTest extends AndroidTestCase {
     private static final String ModelFile = "testmodel.at";
+    // written by the allocation counting check, so that its allocation is not optimized away
+    private static Object sAllocProbe;
 
     public void setUp() throws Exception {
         super.setUp();
     }
 
     public void tearDown() throws Exception {
-        File file = new File(getContext().getFilesDir(), ModelFile);
-        if (file.exists()) {
-            file.delete();
+        // let the model finish saving before deleting its file
+        LinearBackoffInterpolationModel.flush();
+        for (File file : getContext().getFilesDir().listFiles()) {
+            if (file.getName().startsWith(ModelFile)) {
+                file.delete();
+            }
         }
     }
 
@@ -29,8 +43,8 @@ public class LinearBackoffInterpolationModelTest extends AndroidTestCase {
 
         model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
 
-        // sleep to allow async file loading to finish
-        Thread.sleep(100);
+        // wait for async file loading to finish
+        LinearBackoffInterpolationModel.flush();
 
         // test model persistence
         String case1 = model.predict("bao gio di");
@@ -52,4 +66,388 @@ public class LinearBackoffInterpolationModelTest extends AndroidTestCase {
         model.learn("Chu Nhat troi nang dep", "Chủ Nhật trời nắng đẹp");
         model.dispose();
     }
-}
\ No newline at end of file
+
+    public void testPredictAlternatives() throws Exception {
+        String modelDir = getContext().getFilesDir().getPath();
+        LinearBackoffInterpolationModel model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        model.learn("ban toi", "bạn tôi");
+        model.learn("ban toi", "bạn tôi");
+        model.learn("ban toi", "bàn tối");
+        LinearBackoffInterpolationModel.flush();
+
+        List<String> alternatives = model.predictAlternatives("ban toi", 2);
+        Assert.assertEquals(2, alternatives.size());
+        Assert.assertEquals("bạntôi", alternatives.get(0));
+        Assert.assertEquals("bàntối", alternatives.get(1));
+        Assert.assertEquals(alternatives.get(0), model.predict("ban toi"));
+
+        Assert.assertEquals(0, model.predictAlternatives("uay uay", 3).size());
+
+        model.dispose();
+    }
+
+    public void testPredictAsync() throws Exception {
+        String modelDir = getContext().getFilesDir().getPath();
+        LinearBackoffInterpolationModel model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        model.learn("bao gio di choi khong", "bao giờ đi chơi không");
+        LinearBackoffInterpolationModel.flush();
+
+        Assert.assertEquals("baogiờđi", model.predictAsync("bao gio di", 1000).get());
+
+        // hold the prediction thread so that the predictions below queue up
+        final CountDownLatch release = new CountDownLatch(1);
+        PredictionFuture blocker = PredictionFuture.submit(new Callable<String>() {
+            @Override public String call() throws Exception {
+                release.await();
+                return null;
+            }
+        }, 10000);
+
+        PredictionSession session = model.newSession();
+        session.update("bao gio");
+        PredictionFuture stale = session.predictAsync(1000);
+        session.update("bao gio di");
+        PredictionFuture latest = session.predictAsync(1000);
+        PredictionFuture expired = model.predictAsync("bao gio di", 0);
+        Assert.assertTrue(stale.isCancelled());
+        Assert.assertFalse(latest.isCancelled());
+
+        release.countDown();
+        blocker.get();
+        Assert.assertEquals("baogiờđi", latest.get());
+        try {
+            expired.get();
+            Assert.fail();
+        }
+        catch (CancellationException ex) {
+            // skipped past its deadline
+        }
+        Assert.assertTrue(expired.isCancelled());
+    }
+
+    public void testSession() throws Exception {
+        String modelDir = getContext().getFilesDir().getPath();
+        LinearBackoffInterpolationModel model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        model.learn("bao gio di choi khong", "bao giờ đi chơi không");
+        model.learn("tai sao lai the", "tại sao lại thế");
+        model.learn("di choi", "đi chơi");
+        LinearBackoffInterpolationModel.flush();
+
+        // every keystroke of the session should match predicting the whole phrase
+        PredictionSession session = model.newSession();
+        String phrase = "Tai sao  bao gio di choi khong the";
+        for (int i = 0; i < phrase.length(); i++) {
+            session.append(phrase.charAt(i));
+            String typed = phrase.substring(0, i + 1);
+            Assert.assertEquals(typed, model.predict(typed), session.predict());
+        }
+        for (int i = phrase.length() - 1; i >= 0; i--) {
+            session.deleteLast();
+            String typed = phrase.substring(0, i);
+            Assert.assertEquals(typed, model.predict(typed), session.predict());
+        }
+
+        session.update("bao gio di");
+        Assert.assertEquals("baogiờđi", session.predict());
+        session.update("bao gio di choi");
+        Assert.assertEquals("baogiờđichơi", session.predict());
+
+        // learning invalidates what the session has decoded
+        model.learn("bao gio di choi", "bào gió dì chòi");
+        model.learn("bao gio di choi", "bào gió dì chòi");
+        LinearBackoffInterpolationModel.flush();
+        Assert.assertEquals(model.predict("bao gio di choi"), session.predict());
+
+        session.reset();
+        Assert.assertEquals(null, session.predict());
+
+        model.dispose();
+    }
+
+    public void testSessionNewWord() throws Exception {
+        String modelDir = getContext().getFilesDir().getPath();
+        LinearBackoffInterpolationModel model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        model.learn("di choi", "đi chơi");
+        LinearBackoffInterpolationModel.flush();
+
+        // a word the vocabulary does not know yet when typed
+        PredictionSession session = model.newSession();
+        session.update("di xkuong choi");
+        Assert.assertEquals(model.predict("di xkuong choi"), session.predict());
+
+        // learned in the middle of the phrase, after the session looked it up
+        model.learn("di xkuong", "đi xkuống");
+        model.learn("xkuong choi", "xkuống chơi");
+        LinearBackoffInterpolationModel.flush();
+        Assert.assertEquals("đixkuốngchơi", session.predict());
+        Assert.assertEquals(model.predict("di xkuong choi"), session.predict());
+        session.append(' ');
+        session.append('x');
+        Assert.assertEquals(model.predict("di xkuong choi x"), session.predict());
+
+        model.dispose();
+    }
+
+    public void testConcurrentLearn() throws Exception {
+        String modelDir = getContext().getFilesDir().getPath();
+        final LinearBackoffInterpolationModel model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        final Throwable[] failure = new Throwable[1];
+        final AtomicBoolean done = new AtomicBoolean();
+
+        // predict while the writer applies the learned phrases
+        Thread reader = new Thread() {
+            @Override public void run() {
+                try {
+                    while (!done.get()) {
+                        model.predict("bao gio di choi khong");
+                        model.predictAlternatives("tai sao lai the", 3);
+                    }
+                }
+                catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < 500; i++) {
+            model.learn("bao gio di choi khong", "bao giờ đi chơi không");
+            model.learn("tai sao lai the " + i, "tại sao lại thế " + i);
+        }
+        LinearBackoffInterpolationModel.flush();
+        done.set(true);
+        reader.join();
+
+        Assert.assertNull(failure[0]);
+        Assert.assertEquals("baogiờđichơikhông", model.predict("bao gio di choi khong"));
+
+        model.dispose();
+    }
+
+    public void testPruning() throws Exception {
+        String modelDir = getContext().getFilesDir().getPath();
+        LinearBackoffInterpolationModel model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        final int maxEntries = 500;
+        model.setMaxEntries(maxEntries);
+
+        for (int i = 0; i < 2000; i++) {
+            model.learn("di choi", "đi chơi");
+            model.learn("toi", "tôi");
+            // rare phrases & syllables that should be pruned first
+            String word = rareSyllable(i);
+            model.learn("ban " + word + " nhe", "bạn " + word + " nhé");
+            model.learn(word, word);
+            if (i % 100 == 99) {
+                // the pipeline drops phrases once full
+                LinearBackoffInterpolationModel.flush();
+            }
+        }
+        // pruning runs a step per learn, let it finish with phrases already counted
+        for (int i = 0; i < 1000; i++) {
+            model.learn("di choi", "đi chơi");
+            if (i % 100 == 99) {
+                LinearBackoffInterpolationModel.flush();
+            }
+        }
+        LinearBackoffInterpolationModel.flush();
+
+        Assert.assertTrue("Over budget: " + model.getNumEntries(), model.getNumEntries() <= maxEntries);
+        Assert.assertEquals("đichơi", model.predict("di choi"));
+        Assert.assertEquals("tôi", model.predict("toi"));
+        // the rare 1-grams, 2-grams & 3-grams are the ones removed
+        Assert.assertNull(model.predict(rareSyllable(7)));
+        Assert.assertEquals("bạn....nhé", model.predict("ban " + rareSyllable(7) + " nhe"));
+
+        model.setMaxEntries(LinearBackoffInterpolationModel.DefaultMaxEntries);
+        model.dispose();
+    }
+
+    public void testLearningLog() throws Exception {
+        String modelDir = getContext().getFilesDir().getPath();
+        LinearBackoffInterpolationModel model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        model.learn("tai sao lai the", "tại sao lại thế");
+        model.learn("di choi", "đi chơi");
+        model.dispose();
+        LinearBackoffInterpolationModel.flush();
+
+        // only the log was written, no snapshot
+        Assert.assertFalse(new File(modelDir, ModelFile).exists());
+
+        model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        LinearBackoffInterpolationModel.flush();
+        Assert.assertEquals("tại..", model.predict("tai xe"));
+        Assert.assertEquals("đichơi", model.predict("di choi"));
+
+        model.dispose();
+    }
+
+    public void testExportImport() throws Exception {
+        String modelDir = getContext().getFilesDir().getPath();
+        File delta1 = new File(modelDir, ModelFile + ".delta1");
+        File delta2 = new File(modelDir, ModelFile + ".delta2");
+        LinearBackoffInterpolationModel model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        model.learn("ban toi", "bàn tối");
+        model.learn("ban toi", "bàn tối");
+        for (int i = 0; i < 2000; i++) {
+            model.learn("so " + i, "số " + i);
+            if (i % 100 == 99) {
+                LinearBackoffInterpolationModel.flush();
+            }
+        }
+        LinearBackoffInterpolationModel.flush();
+        model.exportDelta(delta1);
+        model.learn("ban toi", "bàn tối");
+        LinearBackoffInterpolationModel.flush();
+        model.exportDelta(delta2);
+        LinearBackoffInterpolationModel.flush();
+        model.dispose();
+
+        // only the counts learned since the previous export
+        ModelDeltaFile delta = ModelDeltaFile.read(delta2);
+        Assert.assertEquals(1, delta.getReader().size());
+        Assert.assertEquals(1, delta.getReader().get("bàn tối"));
+        delta = ModelDeltaFile.read(delta1);
+        Assert.assertEquals(2001, delta.getReader().size());
+        Assert.assertEquals(2, delta.getReader().get("bàn tối"));
+
+        // another installation, where the imports are applied once
+        String otherFile = ModelFile + ".other";
+        model = LinearBackoffInterpolationModel.getInstance(otherFile, modelDir);
+        model.learn("ban toi", "bạn tôi");
+        model.learn("ban toi", "bạn tôi");
+        model.importDelta(delta1);
+        model.importDelta(delta1);
+        model.importDelta(delta2);
+        LinearBackoffInterpolationModel.flush();
+        Assert.assertEquals("bàntối", model.predict("ban toi"));
+        Assert.assertEquals("số1999", model.predict("so 1999"));
+        model.dispose();
+
+        // the imports are saved, importing again changes nothing
+        model = LinearBackoffInterpolationModel.getInstance(otherFile, modelDir);
+        model.importDelta(delta2);
+        model.exportDelta(new File(modelDir, ModelFile + ".delta3"));
+        LinearBackoffInterpolationModel.flush();
+        // only the counts learned there, the imported ones are not exported back
+        delta = ModelDeltaFile.read(new File(modelDir, ModelFile + ".delta3"));
+        Assert.assertEquals(1, delta.getReader().size());
+        Assert.assertEquals(0, delta.getReader().get("bàn tối"));
+        Assert.assertEquals(2, delta.getReader().get("bạn tôi"));
+        model.dispose();
+
+        // the round trip back to the first installation counts each phrase once
+        model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        model.importDelta(new File(modelDir, ModelFile + ".delta3"));
+        model.importDelta(delta1);
+        model.exportDelta(new File(modelDir, ModelFile + ".delta4"));
+        LinearBackoffInterpolationModel.flush();
+        Assert.assertEquals(0, ModelDeltaFile.read(new File(modelDir, ModelFile + ".delta4")).getReader().size());
+        model.learn("ban toi", "bạn tôi");
+        model.exportDelta(new File(modelDir, ModelFile + ".delta5"));
+        LinearBackoffInterpolationModel.flush();
+        delta = ModelDeltaFile.read(new File(modelDir, ModelFile + ".delta5"));
+        Assert.assertEquals(1, delta.getReader().size());
+        Assert.assertEquals(1, delta.getReader().get("bạn tôi"));
+
+        model.dispose();
+    }
+
+    public void testSnapshotLoad() throws Exception {
+        String[] syllables = { "tôi", "bạn", "đi", "học", "về", "nhà", "ăn", "cơm", "không", "thế",
+            "nào", "làm", "việc", "mai", "giờ", "bao", "chơi", "sao", "tại", "lại", "người", "của" };
+        final int numPhrases = 20000;
+
+        // a large history in the previous format
+        File modelFile = new File(getContext().getFilesDir(), ModelFile);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(modelFile));
+        out.writeInt(ModelVersion.LINEAR_BACKOFF_INTERPOLATION);
+        out.writeInt(numPhrases);
+        Random random = new Random(7);
+        for (int i = 0; i < numPhrases; i++) {
+            StringBuilder phrase = new StringBuilder(syllables[random.nextInt(syllables.length)]);
+            for (int w = random.nextInt(5); w >= 0; w--) {
+                phrase.append(' ').append(syllables[random.nextInt(syllables.length)]);
+            }
+            byte[] bytes = phrase.toString().getBytes("UTF-8");
+            out.writeByte(bytes.length);
+            out.write(bytes);
+            out.writeInt(1 + random.nextInt(3));
+        }
+        out.close();
+
+        String modelDir = getContext().getFilesDir().getPath();
+        LinearBackoffInterpolationModel model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        model.setMaxEntries(0);
+        LinearBackoffInterpolationModel.flush();
+        String[] queries = { "toi di hoc ve", "ban an com khong", "tai sao lai the", "nguoi cua toi" };
+        String[] expected = new String[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            expected[q] = model.predict(queries[q]);
+            Assert.assertNotNull(queries[q], expected[q]);
+        }
+        int numEntries = model.getNumEntries();
+
+        // saved as a snapshot, which loads to the same model
+        model.dispose();
+        LinearBackoffInterpolationModel.flush();
+        model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        LinearBackoffInterpolationModel.flush();
+        for (int q = 0; q < queries.length; q++) {
+            Assert.assertEquals(expected[q], model.predict(queries[q]));
+        }
+        Assert.assertEquals(numEntries, model.getNumEntries());
+
+        model.setMaxEntries(LinearBackoffInterpolationModel.DefaultMaxEntries);
+        model.dispose();
+    }
+
+    public void testPredictAllocations() throws Exception {
+        String modelDir = getContext().getFilesDir().getPath();
+        LinearBackoffInterpolationModel model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        model.learn("bao gio di choi khong", "bao giờ đi chơi không");
+        model.learn("tai sao lai the", "tại sao lại thế");
+        LinearBackoffInterpolationModel.flush();
+
+        if (!isAllocCountingSupported()) {
+            // e.g. on ART, where the counts stay 0 and nothing would be checked
+            LogUtil.LogMessage(getClass().getName(), "Skipped testPredictAllocations, allocation counting is not supported");
+            model.dispose();
+            return;
+        }
+
+        String[] queries = { "bao gio di choi", "tai sao lai the nhi", "Tai", "uay uay" };
+        final int iterations = 1000;
+
+        for (String query : queries) {
+            // warm up so that the per-thread scratch buffers reach their final size
+            String prediction = model.predict(query);
+
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+            for (int i = 0; i < iterations; i++) {
+                model.predict(query);
+            }
+            Debug.stopAllocCounting();
+
+            // nothing is allocated without a prediction, else only the returned string, which
+            // is a string and its backing array on older runtimes
+            int maxAllocations = prediction == null ? 0 : 2 * iterations;
+            int allocations = Debug.getThreadAllocCount();
+            Assert.assertTrue("Allocated " + allocations + " objects predicting " + query, allocations <= maxAllocations);
+        }
+
+        model.dispose();
+    }
+
+    // distinct made-up syllables of letters, which the vocabulary does not split
+    private static String rareSyllable(int i) {
+        return "q" + (char)('a' + i % 26) + (char)('a' + i / 26 % 26) + (char)('a' + i / 676);
+    }
+
+    private static boolean isAllocCountingSupported() {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        sAllocProbe = new long[16];
+        Debug.stopAllocCounting();
+        return Debug.getThreadAllocCount() > 0;
+    }
+}
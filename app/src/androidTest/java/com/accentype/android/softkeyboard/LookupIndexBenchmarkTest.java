@@ -0,0 +1,187 @@
+package com.accentype.android.softkeyboard;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.Assert;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares {@link LookupModel}, slots of a memory-mapped file indexed by a
+ * {@link FingerprintIndex} with the unaccented phrase compared on every hit, against its legacy
+ * index of nested hash maps keyed by the 32-bit hash of the unaccented phrase. Both are queried
+ * through the same predict path: the best accented phrase, padded like the query.
+ */
+public class LookupIndexBenchmarkTest extends AndroidTestCase {
+    private static final String ModelFile = "benchmarklookup.at";
+    private static final String[][] Syllables = {
+        { "toi", "tôi" }, { "ban", "bạn" }, { "di", "đi" }, { "hoc", "học" }, { "ve", "về" },
+        { "nha", "nhà" }, { "an", "ăn" }, { "com", "cơm" }, { "khong", "không" }, { "the", "thế" },
+        { "nao", "nào" }, { "lam", "làm" }, { "viec", "việc" }, { "mai", "mai" }, { "gio", "giờ" },
+        { "bao", "bao" }, { "choi", "chơi" }, { "sao", "sao" }, { "tai", "tại" }, { "lai", "lại" },
+    };
+    private static final int NumQueries = 200000;
+    // phrases learned between flushes, under the capacity of the learning pipeline
+    private static final int LearnBatchSize = LearningPipeline.DefaultCapacity / 2;
+
+    public void tearDown() throws Exception {
+        LookupModel.flush();
+        for (File file : getContext().getFilesDir().listFiles()) {
+            if (file.getName().startsWith(ModelFile)) {
+                file.delete();
+            }
+        }
+    }
+
+    @LargeTest
+    public void testIndexBenchmark100k() throws Exception {
+        benchmark(100000);
+    }
+
+    @LargeTest
+    public void testIndexBenchmark1M() throws Exception {
+        benchmark(1000000);
+    }
+
+    private void benchmark(int numEntries) throws Exception {
+        String[] rawPhrases = new String[numEntries];
+        String[] accentPhrases = new String[numEntries];
+        for (int i = 0; i < numEntries; i++) {
+            rawPhrases[i] = phrase(i, 0);
+            accentPhrases[i] = phrase(i, 1);
+        }
+        Random random = new Random(42);
+        int[] queries = new int[NumQueries];
+        // the phrases as a keyboard would query them, copies whose hash is not cached yet
+        String[] queryPhrases = new String[NumQueries];
+        for (int q = 0; q < NumQueries; q++) {
+            queries[q] = random.nextInt(numEntries);
+            queryPhrases[q] = new String(rawPhrases[queries[q]].toCharArray());
+        }
+
+        // learned into the file, then loaded again as when the keyboard starts: mapping & indexing it
+        String modelDir = getContext().getFilesDir().getPath();
+        LookupModel model = LookupModel.getInstance(ModelFile, modelDir);
+        long start = System.nanoTime();
+        for (int i = 0; i < numEntries; i++) {
+            model.learn(rawPhrases[i], accentPhrases[i]);
+            if (i % LearnBatchSize == LearnBatchSize - 1) {
+                LookupModel.flush();
+            }
+        }
+        LookupModel.flush();
+        long learnNanos = System.nanoTime() - start;
+        model.dispose();
+        LookupModel.flush();
+
+        long before = usedMemory();
+        start = System.nanoTime();
+        model = LookupModel.getInstance(ModelFile, modelDir);
+        LookupModel.flush();
+        long loadNanos = System.nanoTime() - start;
+        long bytes = usedMemory() - before;
+        long fileBytes = new File(modelDir, ModelFile).length();
+
+        start = System.nanoTime();
+        for (String query : queryPhrases) {
+            model.predict(query);
+        }
+        long lookupNanos = System.nanoTime() - start;
+        for (int q = 0; q < NumQueries; q++) {
+            Assert.assertEquals(accentPhrases[queries[q]], model.predict(queryPhrases[q]));
+        }
+        Assert.assertNull(model.predict("uay uay uay"));
+        model.dispose();
+        String message = "LookupModel of " + numEntries + " phrases: learned in " + learnNanos / 1000000 + "ms, " +
+            fileBytes / 1024 + "KB file, loaded in " + loadNanos / 1000000 + "ms to " + bytes / 1024 + "KB of heap, " +
+            NumQueries + " lookups in " + lookupNanos / 1000000 + "ms";
+
+        // the legacy maps may not fit in the heap of a device at the larger sizes
+        try {
+            before = usedMemory();
+            start = System.nanoTime();
+            HashMap<Integer, HashMap<String, int[]>> legacy = new HashMap<>();
+            for (int i = 0; i < numEntries; i++) {
+                int hashCode = rawPhrases[i].hashCode();
+                HashMap<String, int[]> accents = legacy.get(hashCode);
+                if (accents == null) {
+                    accents = new HashMap<>();
+                    legacy.put(hashCode, accents);
+                }
+                // the count & file offset, standing in for LocalModelItemData
+                accents.put(accentPhrases[i], new int[] { 1, i });
+            }
+            long buildNanos = System.nanoTime() - start;
+            bytes = usedMemory() - before;
+
+            start = System.nanoTime();
+            for (String query : queryPhrases) {
+                predictLegacy(legacy, query);
+            }
+            lookupNanos = System.nanoTime() - start;
+            // phrases sharing a 32-bit hash are mixed up, which the fingerprints are not
+            int numWrong = 0;
+            for (int q = 0; q < NumQueries; q++) {
+                if (!accentPhrases[queries[q]].equals(predictLegacy(legacy, queryPhrases[q]))) {
+                    numWrong++;
+                }
+            }
+            message += "; nested maps: built in " + buildNanos / 1000000 + "ms to " + bytes / 1024 + "KB of heap, " +
+                NumQueries + " lookups in " + lookupNanos / 1000000 + "ms, " + numWrong + " wrong";
+        }
+        catch (OutOfMemoryError ex) {
+            message += "; nested maps ran out of memory";
+        }
+        LogUtil.LogMessage(getClass().getName(), message);
+    }
+
+    /**
+     * The predict path of the legacy index, which picked the most counted accented phrase of the
+     * hash of the query.
+     */
+    private static String predictLegacy(HashMap<Integer, HashMap<String, int[]>> legacy, String rawPhrase) {
+        String trimmedPhrase = rawPhrase.trim();
+        HashMap<String, int[]> accents = legacy.get(trimmedPhrase.hashCode());
+        if (accents == null) {
+            return null;
+        }
+        String topPrediction = null;
+        int maxCount = -1;
+        for (Iterator<Map.Entry<String, int[]>> it = accents.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, int[]> entry = it.next();
+            if (maxCount < entry.getValue()[0]) {
+                maxCount = entry.getValue()[0];
+                topPrediction = entry.getKey();
+            }
+        }
+        int i = 0;
+        while (i < rawPhrase.length() && Character.isWhitespace(rawPhrase.charAt(i))) {
+            i++;
+        }
+        StringBuilder prediction = new StringBuilder(rawPhrase);
+        prediction.replace(i, i + topPrediction.length(), topPrediction);
+        return prediction.toString();
+    }
+
+    /**
+     * Gets a distinct phrase of syllables for each number, unaccented or accented.
+     */
+    private static String phrase(int i, int accented) {
+        StringBuilder sb = new StringBuilder(Syllables[i % Syllables.length][accented]);
+        for (i /= Syllables.length; i > 0; i /= Syllables.length) {
+            sb.append(' ').append(Syllables[i % Syllables.length][accented]);
+        }
+        return sb.toString();
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
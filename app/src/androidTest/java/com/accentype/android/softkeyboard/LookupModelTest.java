@@ -0,0 +1,137 @@
+package com.accentype.android.softkeyboard;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.io.File;
+
+public class LookupModelTest extends AndroidTestCase {
+    private static final String ModelFile = "testlookup.at";
+
+    public void tearDown() throws Exception {
+        LookupModel.flush();
+        // the model file & its overflow file
+        for (File file : getContext().getFilesDir().listFiles()) {
+            if (file.getName().startsWith(ModelFile)) {
+                file.delete();
+            }
+        }
+    }
+
+    public void testPredict() throws Exception {
+        String modelDir = getContext().getFilesDir().getPath();
+        LookupModel model = LookupModel.getInstance(ModelFile, modelDir);
+        model.learn("ban toi", "bạn tôi");
+        model.learn("ban toi", "bàn tối");
+        model.learn("ban toi", "bàn tối");
+        model.learn("di choi", "đi chơi");
+        LookupModel.flush();
+
+        Assert.assertEquals("bàn tối", model.predict("ban toi"));
+        Assert.assertEquals("  đi chơi", model.predict("  di choi"));
+        Assert.assertEquals(null, model.predict("uay uay"));
+        Assert.assertEquals(ModelVersion.LOOKUP_FINGERPRINT, model.version());
+
+        // counts are updated in place and persisted
+        model.learn("ban toi", "bạn tôi");
+        model.learn("ban toi", "bạn tôi");
+        model.dispose();
+        model = LookupModel.getInstance(ModelFile, modelDir);
+        LookupModel.flush();
+        Assert.assertEquals("bạn tôi", model.predict("ban toi"));
+        Assert.assertEquals("đi chơi", model.predict("di choi"));
+
+        model.dispose();
+    }
+
+    public void testHashCollision() throws Exception {
+        // "Aa" & "BB" have the same String.hashCode()
+        Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+        String modelDir = getContext().getFilesDir().getPath();
+        LookupModel model = LookupModel.getInstance(ModelFile, modelDir);
+        model.learn("Aa", "Áa");
+        model.learn("BB", "BB");
+        model.learn("BB", "BB");
+        LookupModel.flush();
+
+        Assert.assertEquals("Áa", model.predict("Aa"));
+        Assert.assertEquals("BB", model.predict("BB"));
+
+        model.dispose();
+    }
+
+    public void testGrowth() throws Exception {
+        String modelDir = getContext().getFilesDir().getPath();
+        LookupModel model = LookupModel.getInstance(ModelFile, modelDir);
+        final int numPhrases = 1000;
+        for (int i = 0; i < numPhrases; i++) {
+            model.learn("so " + i, "số " + i);
+            if (i % 100 == 99) {
+                LookupModel.flush();
+            }
+        }
+        LookupModel.flush();
+        model.dispose();
+
+        model = LookupModel.getInstance(ModelFile, modelDir);
+        LookupModel.flush();
+        for (int i = 0; i < numPhrases; i++) {
+            Assert.assertEquals("số " + i, model.predict("so " + i));
+        }
+
+        // learning known phrases does not use new slots
+        long length = new File(modelDir, ModelFile).length();
+        for (int i = 0; i < numPhrases; i++) {
+            model.learn("so " + i, "số " + i);
+        }
+        LookupModel.flush();
+        Assert.assertEquals(length, new File(modelDir, ModelFile).length());
+
+        model.dispose();
+    }
+
+    public void testLongPhrases() throws Exception {
+        String modelDir = getContext().getFilesDir().getPath();
+        LookupModel model = LookupModel.getInstance(ModelFile, modelDir);
+        String accentPhrase = "hôm nay trời đẹp quá chúng mình cùng nhau đi chơi công viên nhé";
+        String rawPhrase = ModelMigrator.removeAccents(accentPhrase);
+        Assert.assertTrue((rawPhrase + accentPhrase).getBytes("UTF-8").length > LookupModel.MaxPhraseBytes);
+        model.learn(rawPhrase, accentPhrase);
+        model.learn(rawPhrase, "hôm nay trời đẹp quá chúng mình cùng nhau đi chơi công viên nhề");
+        model.learn(rawPhrase, accentPhrase);
+        model.learn("di choi", "đi chơi");
+        // too long even for the overflow file
+        StringBuilder paragraph = new StringBuilder();
+        while (paragraph.length() <= LookupModel.MaxOverflowPhraseBytes) {
+            paragraph.append(rawPhrase).append(' ');
+        }
+        model.learn(paragraph.toString(), paragraph.toString());
+        LookupModel.flush();
+
+        Assert.assertEquals(accentPhrase, model.predict(rawPhrase));
+        Assert.assertEquals("đi chơi", model.predict("di choi"));
+        Assert.assertNull(model.predict(paragraph.toString()));
+        Assert.assertEquals(1, model.getNumDropped());
+
+        // the long phrases & their counts are persisted
+        model.learn(rawPhrase, "hôm nay trời đẹp quá chúng mình cùng nhau đi chơi công viên nhề");
+        model.learn(rawPhrase, "hôm nay trời đẹp quá chúng mình cùng nhau đi chơi công viên nhề");
+        model.dispose();
+        model = LookupModel.getInstance(ModelFile, modelDir);
+        LookupModel.flush();
+        Assert.assertEquals("hôm nay trời đẹp quá chúng mình cùng nhau đi chơi công viên nhề", model.predict(rawPhrase));
+        Assert.assertEquals("đi chơi", model.predict("di choi"));
+
+        // the overflow file grows like the slots
+        for (int i = 0; i < 100; i++) {
+            model.learn(rawPhrase + " " + i, accentPhrase + " " + i);
+        }
+        LookupModel.flush();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(accentPhrase + " " + i, model.predict(rawPhrase + " " + i));
+        }
+
+        model.dispose();
+    }
+}
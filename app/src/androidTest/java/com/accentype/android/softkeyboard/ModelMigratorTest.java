@@ -0,0 +1,200 @@
+package com.accentype.android.softkeyboard;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class ModelMigratorTest extends AndroidTestCase {
+    private static final String ModelFile = "testmigrate.at";
+
+    private List<String> mMigrated = new ArrayList<>();
+    private int mNumChunks;
+
+    private LearningPipeline.Learner mLearner = new LearningPipeline.Learner() {
+        @Override public void learnBatch(String[] rawPhrases, String[] accentPhrases, int[] counts, int size) {
+            Assert.assertTrue(size <= ModelMigrator.ChunkSize);
+            for (int i = 0; i < size; i++) {
+                mMigrated.add(rawPhrases[i] + "=" + accentPhrases[i] + "x" + counts[i]);
+            }
+            mNumChunks++;
+        }
+    };
+
+    public void tearDown() throws Exception {
+        LinearBackoffInterpolationModel.flush();
+        LookupModel.flush();
+        for (File file : getContext().getFilesDir().listFiles()) {
+            if (file.getName().startsWith(ModelFile)) {
+                file.delete();
+            }
+        }
+    }
+
+    public void testLookup() throws Exception {
+        File file = modelFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(ModelVersion.LOOKUP);
+        out.writeInt(1);
+        writeLookupRecord(out, "Tai sao", "Tại sao", 3);
+        // hash of a phrase that is not the accented one without accents
+        writeLookupRecord(out, "tai sao", "Tại sao", 1);
+        writeLookupRecord(out, "di choi", "đi chơi", 2);
+        out.writeInt(42); // torn record
+        out.close();
+
+        Assert.assertEquals(2, ModelMigrator.migrate(file, mLearner));
+        Assert.assertEquals("Tai sao=Tại saox3", mMigrated.get(0));
+        Assert.assertEquals("di choi=đi chơix2", mMigrated.get(1));
+    }
+
+    public void testHistoryChunks() throws Exception {
+        final int numPhrases = 2 * ModelMigrator.ChunkSize + 10;
+        writeHistory(numPhrases);
+
+        Assert.assertEquals(numPhrases, ModelMigrator.migrate(modelFile(), mLearner));
+        Assert.assertEquals(3, mNumChunks);
+        Assert.assertEquals("ban 0 nhe=bạn 0 nhéx1", mMigrated.get(0));
+        Assert.assertEquals("ban 2057 nhe=bạn 2057 nhéx1", mMigrated.get(numPhrases - 1));
+    }
+
+    public void testUnknownVersion() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(modelFile()));
+        out.writeInt(99);
+        out.close();
+        Assert.assertFalse(ModelMigrator.canMigrate(99));
+        try {
+            ModelMigrator.migrate(modelFile(), mLearner);
+            fail();
+        }
+        catch (IOException ex) {
+            // expected
+        }
+    }
+
+    public void testLinearBackoffInterpolationModel() throws Exception {
+        File file = modelFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(ModelVersion.LOOKUP);
+        out.writeInt(2);
+        writeLookupRecord(out, "tai sao lai the", "tại sao lại thế", 1);
+        writeLookupRecord(out, "di choi", "đi chơi", 1);
+        out.close();
+
+        String modelDir = getContext().getFilesDir().getPath();
+        LinearBackoffInterpolationModel model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        LinearBackoffInterpolationModel.flush();
+        Assert.assertEquals("tại..", model.predict("tai xe"));
+        Assert.assertEquals("đichơi", model.predict("di choi"));
+        Assert.assertEquals(ModelSnapshotFile.Version, readVersion(file));
+
+        model.dispose();
+    }
+
+    public void testLookupModel() throws Exception {
+        writeHistory(5000);
+
+        String modelDir = getContext().getFilesDir().getPath();
+        long start = System.nanoTime();
+        LookupModel model = LookupModel.getInstance(ModelFile, modelDir);
+        LookupModel.flush();
+        LogUtil.LogMessage(getClass().getName(), "Migrated 5000 phrases in " + (System.nanoTime() - start) / 1000000 + "ms");
+
+        Assert.assertEquals("bạn 0 nhé", model.predict("ban 0 nhe"));
+        Assert.assertEquals("bạn 4999 nhé", model.predict("ban 4999 nhe"));
+        Assert.assertEquals(ModelVersion.LOOKUP_FINGERPRINT, readVersion(modelFile()));
+        Assert.assertFalse(new File(modelDir, ModelFile + ".migrating").exists());
+
+        model.dispose();
+    }
+
+    public void testLookupModelLongPhrases() throws Exception {
+        // longer than a slot, as the LOOKUP format allowed
+        String longPhrase = "hôm nay trời đẹp quá chúng mình cùng nhau đi chơi công viên nhé";
+        File file = modelFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(ModelVersion.LOOKUP);
+        out.writeInt(2);
+        writeLookupRecord(out, ModelMigrator.removeAccents(longPhrase), longPhrase, 2);
+        writeLookupRecord(out, "di choi", "đi chơi", 1);
+        out.close();
+
+        // hold the writer so that the model is still to be loaded & migrated below
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        LookupModel.sWriter.execute(new Runnable() {
+            @Override public void run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        blocked.await();
+
+        String modelDir = getContext().getFilesDir().getPath();
+        LookupModel model = LookupModel.getInstance(ModelFile, modelDir);
+        try {
+            // predicts nothing until migrated rather than waiting for it
+            Assert.assertNull(model.predict("di choi"));
+            Assert.assertNull(model.predict(ModelMigrator.removeAccents(longPhrase)));
+        }
+        finally {
+            release.countDown();
+        }
+        LookupModel.flush();
+
+        Assert.assertEquals(longPhrase, model.predict(ModelMigrator.removeAccents(longPhrase)));
+        Assert.assertEquals("đi chơi", model.predict("di choi"));
+        Assert.assertEquals(0, model.getNumDropped());
+
+        model.dispose();
+    }
+
+    private File modelFile() {
+        return new File(getContext().getFilesDir(), ModelFile);
+    }
+
+    private void writeHistory(int numPhrases) throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(modelFile()));
+        out.writeInt(ModelVersion.LINEAR_BACKOFF_INTERPOLATION);
+        out.writeInt(numPhrases);
+        for (int i = 0; i < numPhrases; i++) {
+            byte[] bytes = ("bạn " + i + " nhé").getBytes("UTF-8");
+            out.writeByte(bytes.length);
+            out.write(bytes);
+            out.writeInt(1);
+        }
+        out.close();
+    }
+
+    private static void writeLookupRecord(DataOutputStream out, String rawPhrase, String accentPhrase, int count)
+        throws Exception {
+        out.writeInt(rawPhrase.hashCode());
+        byte[] bytes = accentPhrase.getBytes("UTF-8");
+        out.writeByte(bytes.length);
+        out.write(bytes);
+        out.writeInt(count);
+    }
+
+    private static int readVersion(File file) throws Exception {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return in.readInt();
+        }
+        finally {
+            in.close();
+        }
+    }
+}
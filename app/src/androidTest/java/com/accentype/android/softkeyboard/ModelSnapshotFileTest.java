@@ -0,0 +1,251 @@
+package com.accentype.android.softkeyboard;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Injects corruption into snapshot files and checks what still loads.
+ */
+public class ModelSnapshotFileTest extends AndroidTestCase {
+    private static final String ModelFile = "testsnapshot.at";
+    private static final int[] Sections = { ModelSnapshotFile.SectionVocabulary, ModelSnapshotFile.SectionHistoryBlocks,
+        ModelSnapshotFile.SectionModel1, ModelSnapshotFile.SectionModel2, ModelSnapshotFile.SectionModel3,
+        ModelSnapshotFile.SectionLog, ModelSnapshotFile.SectionExport };
+
+    private Vocabulary mVocabulary = Vocabulary.getInstance();
+
+    public void tearDown() throws Exception {
+        LinearBackoffInterpolationModel.flush();
+        for (File file : getContext().getFilesDir().listFiles()) {
+            if (file.getName().startsWith(ModelFile)) {
+                file.delete();
+            }
+        }
+    }
+
+    public void testRoundTrip() throws Exception {
+        byte[] data = write();
+        ModelSnapshotFile snapshotFile = ModelSnapshotFile.read(data);
+        Assert.assertFalse(snapshotFile.hasCorruptSections());
+        assertTables(snapshotFile, false, false, false);
+        Assert.assertEquals(2, snapshotFile.getHistory().size());
+        Assert.assertEquals(7, snapshotFile.logSegment);
+        Assert.assertEquals(3, snapshotFile.exportSequence);
+        Assert.assertEquals(1, snapshotFile.getUnexported().size());
+
+        // a file that never exported has no unexported counts of its own
+        ModelSnapshotFile neverExported = new ModelSnapshotFile(new PhraseMap(), new PhraseMap(), new PhraseMap(),
+            new PhraseHistory());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        neverExported.write(out);
+        snapshotFile = ModelSnapshotFile.read(out.toByteArray());
+        Assert.assertEquals(0, snapshotFile.exportSequence);
+        Assert.assertNull(snapshotFile.getUnexported());
+    }
+
+    public void testCorruptSection() throws Exception {
+        for (int id : Sections) {
+            byte[] data = write();
+            int[] range = sectionRange(data, id);
+            data[(range[0] + range[1]) / 2] ^= 0x5A;
+
+            ModelSnapshotFile snapshotFile = ModelSnapshotFile.read(data);
+            Assert.assertTrue(snapshotFile.isCorrupt(id));
+            // the tables cannot be read without the vocabulary, everything else still loads
+            boolean tablesLost = id == ModelSnapshotFile.SectionVocabulary;
+            assertTables(snapshotFile, tablesLost || id == ModelSnapshotFile.SectionModel1,
+                tablesLost || id == ModelSnapshotFile.SectionModel2, tablesLost || id == ModelSnapshotFile.SectionModel3);
+            Assert.assertEquals(id == ModelSnapshotFile.SectionHistoryBlocks ? 0 : 2, snapshotFile.getHistory().size());
+            Assert.assertEquals(id == ModelSnapshotFile.SectionLog ? 0 : 7, snapshotFile.logSegment);
+            Assert.assertEquals(id == ModelSnapshotFile.SectionExport ? 0 : 3, snapshotFile.exportSequence);
+        }
+    }
+
+    public void testTruncated() throws Exception {
+        byte[] data = write();
+        int[] range = sectionRange(data, ModelSnapshotFile.SectionModel2);
+        byte[] truncated = new byte[range[0] + 1];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+        ModelSnapshotFile snapshotFile = ModelSnapshotFile.read(truncated);
+        Assert.assertFalse(snapshotFile.isCorrupt(ModelSnapshotFile.SectionVocabulary));
+        Assert.assertTrue(snapshotFile.isCorrupt(ModelSnapshotFile.SectionModel2));
+        Assert.assertFalse(snapshotFile.model1.isEmpty());
+
+        // without a complete header nothing can be trusted
+        truncated = new byte[20];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        try {
+            ModelSnapshotFile.read(truncated);
+            fail();
+        }
+        catch (IOException ex) {
+            // expected
+        }
+    }
+
+    public void testCorruptHeader() throws Exception {
+        byte[] data = write();
+        data[14] ^= 0x01;
+        try {
+            ModelSnapshotFile.read(data);
+            fail();
+        }
+        catch (IOException ex) {
+            // expected
+        }
+    }
+
+    public void testPreviousVersion() throws Exception {
+        byte[] data = write();
+        ModelSnapshotFile snapshotFile = ModelSnapshotFile.read(withoutChecksums(data));
+        Assert.assertFalse(snapshotFile.hasCorruptSections());
+        assertTables(snapshotFile, false, false, false);
+        Assert.assertEquals(2, snapshotFile.getHistory().size());
+    }
+
+    public void testModelRecovery() throws Exception {
+        // a history in the previous format, saved as a snapshot when loaded
+        File file = new File(getContext().getFilesDir(), ModelFile);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(ModelVersion.LINEAR_BACKOFF_INTERPOLATION);
+        String[] phrases = { "bao giờ đi chơi không", "tại sao lại thế" };
+        out.writeInt(phrases.length);
+        for (String phrase : phrases) {
+            byte[] bytes = phrase.getBytes("UTF-8");
+            out.writeByte(bytes.length);
+            out.write(bytes);
+            out.writeInt(1);
+        }
+        out.close();
+        String modelDir = getContext().getFilesDir().getPath();
+        LinearBackoffInterpolationModel model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        LinearBackoffInterpolationModel.flush();
+        model.dispose();
+        LinearBackoffInterpolationModel.flush();
+
+        // corrupt a table on disk, which is rebuilt from the history
+        byte[] data = readFile(file);
+        int[] range = sectionRange(data, ModelSnapshotFile.SectionModel2);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(range[0]);
+        raf.write(data[range[0]] ^ 0xFF);
+        raf.close();
+
+        model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir);
+        LinearBackoffInterpolationModel.flush();
+        Assert.assertEquals("baogiờđi", model.predict("bao gio di"));
+        Assert.assertEquals("tại..", model.predict("tai xe"));
+        model.dispose();
+        LinearBackoffInterpolationModel.flush();
+
+        // and saved again without the corruption
+        Assert.assertFalse(ModelSnapshotFile.read(file).hasCorruptSections());
+    }
+
+    private byte[] write() throws Exception {
+        PhraseMap m1 = new PhraseMap();
+        PhraseMap m2 = new PhraseMap();
+        PhraseMap m3 = new PhraseMap();
+        m1.add(pack("di"), pack("đi"), 2);
+        m1.add(pack("choi"), pack("chơi"), 1);
+        m2.add(pack("di", "choi"), pack("đi", "chơi"), 1);
+        m3.add(pack("di", "choi", "di"), pack("đi", "chơi", "đi"), 1);
+        PhraseHistory history = new PhraseHistory();
+        history.put("đi chơi", 1);
+        history.put("đi", 1);
+        ModelSnapshotFile snapshotFile = new ModelSnapshotFile(m1, m2, m3, history);
+        snapshotFile.logSegment = 7;
+        snapshotFile.exportSequence = 3;
+        PhraseHistory unexported = new PhraseHistory();
+        unexported.put("đi", 1);
+        snapshotFile.setUnexported(unexported);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshotFile.write(out);
+        return out.toByteArray();
+    }
+
+    private long pack(String... words) {
+        int[] ids = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            ids[i] = mVocabulary.intern(words[i]);
+            if (!words[i].equals(Vocabulary.removeAccents(words[i]))) {
+                mVocabulary.addVariant(ids[i]);
+            }
+        }
+        return Phrase.pack(ids, 0, ids.length);
+    }
+
+    private void assertTables(ModelSnapshotFile snapshotFile, boolean empty1, boolean empty2, boolean empty3) {
+        Assert.assertEquals(empty1 ? 0 : 2, snapshotFile.model1.size());
+        Assert.assertEquals(empty2 ? 0 : 1, snapshotFile.model2.size());
+        Assert.assertEquals(empty3 ? 0 : 1, snapshotFile.model3.size());
+        if (!empty2) {
+            int head = snapshotFile.model2.lookup(pack("di", "choi"));
+            Assert.assertEquals(pack("đi", "chơi"), snapshotFile.model2.variantKey(head));
+        }
+    }
+
+    /**
+     * Gets the start & end of a section from the index of a file.
+     */
+    private static int[] sectionRange(byte[] data, int sectionId) throws IOException {
+        VarInt.Reader header = new VarInt.Reader(data, 0, data.length);
+        header.readFixedInt();
+        int numSections = header.readFixedInt();
+        for (int i = 0; i < numSections; i++) {
+            int id = header.readFixedInt();
+            int offset = header.readFixedInt();
+            int length = header.readFixedInt();
+            header.readFixedInt();
+            if (id == sectionId) {
+                return new int[] { offset, offset + length };
+            }
+        }
+        throw new IOException("No section " + sectionId);
+    }
+
+    /**
+     * Rewrites a file in the snapshot version before CRCs.
+     */
+    private static byte[] withoutChecksums(byte[] data) throws IOException {
+        VarInt.Reader header = new VarInt.Reader(data, 0, data.length);
+        header.readFixedInt();
+        int numSections = header.readFixedInt();
+        int sectionsStart = 8 + 16 * numSections + 4;
+        int shift = sectionsStart - (8 + 12 * numSections);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(ModelVersion.LINEAR_BACKOFF_INTERPOLATION_SNAPSHOT);
+        out.writeInt(numSections);
+        for (int i = 0; i < numSections; i++) {
+            out.writeInt(header.readFixedInt());
+            out.writeInt(header.readFixedInt() - shift);
+            out.writeInt(header.readFixedInt());
+            header.readFixedInt();
+        }
+        out.write(data, sectionsStart, data.length - sectionsStart);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(data);
+        }
+        finally {
+            in.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,77 @@
+package com.accentype.android.softkeyboard;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.io.File;
+
+public class PartitionedModelTest extends AndroidTestCase {
+    private static final String ModelFile = "testpartitioned.at";
+
+    public void tearDown() throws Exception {
+        LinearBackoffInterpolationModel.flush();
+        for (File file : getContext().getFilesDir().listFiles()) {
+            if (file.getName().startsWith(ModelFile)) {
+                file.delete();
+            }
+        }
+    }
+
+    private PartitionedModel newModel() {
+        String modelDir = getContext().getFilesDir().getPath();
+        return new PartitionedModel(
+            LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir), ModelFile, modelDir);
+    }
+
+    public void testPartitions() throws Exception {
+        PartitionedModel model = newModel();
+        model.setPartition("com.example.chat");
+        model.learn("ban toi", "bạn tôi");
+        model.setPartition("com.example.shop");
+        model.learn("ban toi", "bàn tối");
+        model.learn("ban toi", "bàn tối");
+        model.learn("ban ghe", "bàn ghế");
+        LinearBackoffInterpolationModel.flush();
+
+        // each partition prefers its own phrases
+        Assert.assertEquals("bàntối", model.predict("ban toi"));
+        model.setPartition("com.example.chat");
+        Assert.assertEquals("bạntôi", model.predict("ban toi"));
+
+        // phrases the partition has not seen come from the base model
+        Assert.assertEquals("bànghế", model.predict("ban ghe"));
+        model.setPartition(null);
+        Assert.assertEquals("bàntối", model.predict("ban toi"));
+        model.setPartition("com.example.mail");
+        Assert.assertEquals("bàntối", model.predict("ban toi"));
+
+        PredictionSession session = model.newSession();
+        session.update("ban toi");
+        Assert.assertEquals("bàntối", session.predict());
+        model.setPartition("com.example.chat");
+        Assert.assertEquals("bạntôi", session.predict());
+        model.dispose();
+    }
+
+    public void testEviction() throws Exception {
+        PartitionedModel model = newModel();
+        model.setMaxResident(1);
+        model.setGroup("com.example.chat2", "chat");
+        model.setPartition("com.example.chat2");
+        model.learn("ban toi", "bạn tôi");
+        model.setPartition("com.example.shop");
+        model.learn("ban toi", "bàn tối");
+        model.learn("ban toi", "bàn tối");
+        Assert.assertEquals(1, model.getNumResident());
+
+        // the evicted partition is loaded again from its file
+        model.setGroup("com.example.chat1", "chat");
+        model.setPartition("com.example.chat1");
+        Assert.assertEquals("chat", model.getPartition());
+        LinearBackoffInterpolationModel.flush();
+        Assert.assertEquals(1, model.getNumResident());
+        Assert.assertEquals("bạntôi", model.predict("ban toi"));
+        model.dispose();
+    }
+}
@@ -0,0 +1,143 @@
+package com.accentype.android.softkeyboard;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class PhraseMapTest extends TestCase {
+
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    public void tearDown() throws Exception {
+    }
+
+    public void testPack() throws Exception {
+        long key = Phrase.pack(7, Phrase.MaxWordId, 1);
+        Assert.assertEquals(7, Phrase.word(key, 0));
+        Assert.assertEquals(Phrase.MaxWordId, Phrase.word(key, 1));
+        Assert.assertEquals(1, Phrase.word(key, 2));
+
+        int[] words = { 5, 6, 7, 8 };
+        Assert.assertEquals(Phrase.pack(6, 7), Phrase.pack(words, 1, 2));
+        Assert.assertEquals(Phrase.pack(6, 7, 8), Phrase.pack(words, 1, 3));
+    }
+
+    public void testAdd() throws Exception {
+        PhraseMap map = new PhraseMap();
+        long raw = Phrase.pack(3, 4);
+        map.add(raw, Phrase.pack(5, 6), 2);
+        map.add(raw, Phrase.pack(5, 7), 1);
+        map.add(raw, Phrase.pack(5, 6), 3);
+
+        Assert.assertEquals(1, map.size());
+        Assert.assertEquals(2, map.variantSize());
+
+        int v = map.lookup(raw);
+        Assert.assertEquals(6, map.totalCount(v));
+        Assert.assertEquals(5.0 / 6, map.probability(v, v), 1e-9);
+        Assert.assertEquals(Phrase.pack(5, 6), map.variantKey(v));
+        Assert.assertEquals(6, map.variantWord(v, 1));
+        Assert.assertEquals(5, map.variantCount(v));
+        v = map.nextVariant(v);
+        Assert.assertEquals(Phrase.pack(5, 7), map.variantKey(v));
+        Assert.assertEquals(1, map.variantCount(v));
+        Assert.assertEquals(PhraseMap.NoVariant, map.nextVariant(v));
+
+        Assert.assertEquals(PhraseMap.NoVariant, map.lookup(Phrase.pack(4, 3)));
+    }
+
+    public void testGrowAndMerge() throws Exception {
+        PhraseMap first = new PhraseMap();
+        PhraseMap second = new PhraseMap();
+        for (int i = 1; i <= 1000; i++) {
+            first.add(Phrase.pack(i, i), Phrase.pack(i + 1, i), 1);
+            second.add(Phrase.pack(i, i), Phrase.pack(i + 1, i), 2);
+            second.add(Phrase.pack(i, i), Phrase.pack(i + 2, i), 1);
+        }
+        first.merge(second);
+
+        Assert.assertEquals(1000, first.size());
+        Assert.assertEquals(2000, first.variantSize());
+        for (int i = 1; i <= 1000; i++) {
+            int v = first.lookup(Phrase.pack(i, i));
+            Assert.assertEquals(4, first.totalCount(v));
+            Assert.assertEquals(3, first.variantCount(v));
+            Assert.assertEquals(1, first.variantCount(first.nextVariant(v)));
+        }
+    }
+
+    public void testPrune() throws Exception {
+        PhraseMap map = new PhraseMap();
+        for (int i = 1; i <= 1000; i++) {
+            map.add(Phrase.pack(i, i), Phrase.pack(i + 1, i), i % 3);
+            map.add(Phrase.pack(i, i), Phrase.pack(i + 2, i), 1);
+        }
+
+        // prune in small steps as the model does
+        for (int slot = 0; slot < map.capacity(); ) {
+            slot = map.prune(2, slot, 64);
+        }
+
+        Assert.assertEquals(333, map.size());
+        Assert.assertEquals(333, map.variantSize());
+        for (int i = 1; i <= 1000; i++) {
+            int v = map.lookup(Phrase.pack(i, i));
+            if (i % 3 == 2) {
+                Assert.assertEquals(Phrase.pack(i + 1, i), map.variantKey(v));
+                Assert.assertEquals(2, map.totalCount(v));
+                Assert.assertEquals(PhraseMap.NoVariant, map.nextVariant(v));
+            }
+            else {
+                Assert.assertEquals(PhraseMap.NoVariant, v);
+            }
+        }
+
+        // pruned phrases can be added again
+        map.add(Phrase.pack(1, 1), Phrase.pack(3, 1), 1);
+        Assert.assertEquals(334, map.size());
+        Assert.assertEquals(1, map.totalCount(map.lookup(Phrase.pack(1, 1))));
+    }
+
+    public void testCopy() throws Exception {
+        PhraseMap original = new PhraseMap();
+        for (int i = 1; i <= 5000; i++) {
+            original.add(Phrase.pack(i, i), Phrase.pack(i + 1, i), 2);
+        }
+
+        // copies share the chunks of the original until they are updated, as the model does
+        // for every batch of learned phrases
+        PhraseMap copy = new PhraseMap(original);
+        copy.add(Phrase.pack(1, 1), Phrase.pack(2, 1), 3);
+        copy.add(Phrase.pack(1, 1), Phrase.pack(3, 1), 1);
+        for (int i = 5001; i <= 10000; i++) {
+            copy.add(Phrase.pack(i, i), Phrase.pack(i + 1, i), 1);
+        }
+        PhraseMap pruned = new PhraseMap(copy);
+        for (int slot = 0; slot < pruned.capacity(); ) {
+            slot = pruned.prune(2, slot, 1024);
+        }
+
+        Assert.assertEquals(5000, original.size());
+        Assert.assertEquals(5000, original.variantSize());
+        int v = original.lookup(Phrase.pack(1, 1));
+        Assert.assertEquals(2, original.totalCount(v));
+        Assert.assertEquals(PhraseMap.NoVariant, original.nextVariant(v));
+        Assert.assertEquals(PhraseMap.NoVariant, original.lookup(Phrase.pack(5001, 5001)));
+
+        Assert.assertEquals(10000, copy.size());
+        Assert.assertEquals(10001, copy.variantSize());
+        v = copy.lookup(Phrase.pack(1, 1));
+        Assert.assertEquals(6, copy.totalCount(v));
+        Assert.assertEquals(1, copy.variantCount(copy.nextVariant(v)));
+        Assert.assertEquals(1, copy.totalCount(copy.lookup(Phrase.pack(5001, 5001))));
+
+        Assert.assertEquals(5000, pruned.size());
+        Assert.assertEquals(5000, pruned.variantSize());
+        v = pruned.lookup(Phrase.pack(1, 1));
+        Assert.assertEquals(5, pruned.totalCount(v));
+        Assert.assertEquals(PhraseMap.NoVariant, pruned.nextVariant(v));
+        Assert.assertEquals(PhraseMap.NoVariant, pruned.lookup(Phrase.pack(5001, 5001)));
+        Assert.assertEquals(2, pruned.totalCount(pruned.lookup(Phrase.pack(5000, 5000))));
+    }
+}
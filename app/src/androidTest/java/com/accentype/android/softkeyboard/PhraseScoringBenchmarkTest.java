@@ -0,0 +1,212 @@
+package com.accentype.android.softkeyboard;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares scoring the accents of a phrase with the legacy string maps, which sum the counts
+ * and split every accented phrase per window, against the cached totals of {@link PhraseMap}.
+ */
+public class PhraseScoringBenchmarkTest extends TestCase {
+    private static final String[][] Syllables = {
+        { "toi", "tôi", "tối", "tới" }, { "ban", "bạn", "bàn", "bán" }, { "di", "đi", "dì" },
+        { "hoc", "học", "hóc" }, { "ve", "về", "vé", "vẽ" }, { "nha", "nhà", "nhá" },
+        { "an", "ăn", "ấn", "an" }, { "com", "cơm", "cốm" }, { "khong", "không", "khóng" },
+        { "the", "thế", "thể", "thẻ" }, { "nao", "nào", "não" }, { "lam", "làm", "lâm", "lắm" },
+        { "viec", "việc" }, { "mai", "mai", "mãi", "mái" }, { "gio", "giờ", "gió", "giỏ" },
+        { "bao", "bao", "báo", "bão" }, { "choi", "chơi", "chối" }, { "sao", "sao", "sáo" },
+        { "tai", "tại", "tai", "tài" }, { "lai", "lại", "lái", "lai" }, { "nguoi", "người" },
+        { "viet", "việt", "viết" }, { "nam", "nam", "năm", "nằm" }, { "cua", "của", "cua", "cửa" },
+        { "chung", "chúng", "chung", "chừng" }, { "ta", "ta", "tá" }, { "mot", "một", "mốt" },
+        { "hai", "hai", "hải", "hái" }, { "ba", "ba", "bà", "bá" }, { "con", "con", "còn", "cơn" },
+    };
+    private static final int NumSentences = 2000;
+    private static final int NumQueries = 200;
+    private static final int Rounds = 20;
+
+    private Vocabulary mVocabulary = Vocabulary.getInstance();
+
+    @LargeTest
+    public void testScoringBenchmark() throws Exception {
+        Random random = new Random(42);
+        HashMap<String, HashMap<String, Integer>> legacy2 = new HashMap<>();
+        HashMap<String, HashMap<String, Integer>> legacy3 = new HashMap<>();
+        PhraseMap model2 = new PhraseMap();
+        PhraseMap model3 = new PhraseMap();
+
+        // a history of sentences where the first accent of each syllable is the most frequent
+        for (int s = 0; s < NumSentences; s++) {
+            String[][] sentence = sentence(random);
+            for (int n = 2; n <= 3; n++) {
+                for (int j = 0; j + n <= sentence[0].length; j++) {
+                    String raw = join(sentence[0], j, n);
+                    String accent = join(sentence[1], j, n);
+                    HashMap<String, HashMap<String, Integer>> legacy = n == 2 ? legacy2 : legacy3;
+                    HashMap<String, Integer> accents = legacy.get(raw);
+                    if (accents == null) {
+                        accents = new HashMap<>();
+                        legacy.put(raw, accents);
+                    }
+                    Integer count = accents.get(accent);
+                    accents.put(accent, count == null ? 1 : count + 1);
+
+                    (n == 2 ? model2 : model3).add(pack(sentence[0], j, n), pack(sentence[1], j, n), 1);
+                }
+            }
+        }
+
+        List<String[]> queries = new ArrayList<>();
+        List<int[]> queryIds = new ArrayList<>();
+        for (int q = 0; q < NumQueries; q++) {
+            String[] words = sentence(random)[0];
+            queries.add(words);
+            int[] ids = new int[words.length];
+            for (int i = 0; i < words.length; i++) {
+                ids[i] = mVocabulary.find(words[i]);
+            }
+            queryIds.add(ids);
+        }
+
+        // both must agree on the best score of every word
+        for (int q = 0; q < NumQueries; q++) {
+            String[] words = queries.get(q);
+            int[] ids = queryIds.get(q);
+            for (int i = 0; i < words.length; i++) {
+                Assert.assertEquals(scoreLegacy(words, i, legacy2, legacy3),
+                    score(ids, i, model2, model3, new int[8], new double[8]), 1e-9);
+            }
+        }
+
+        long start = System.nanoTime();
+        double legacyTotal = 0;
+        for (int r = 0; r < Rounds; r++) {
+            for (String[] words : queries) {
+                for (int i = 0; i < words.length; i++) {
+                    legacyTotal += scoreLegacy(words, i, legacy2, legacy3);
+                }
+            }
+        }
+        long legacyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        double total = 0;
+        int[] candidates = new int[8];
+        double[] scores = new double[8];
+        for (int r = 0; r < Rounds; r++) {
+            for (int[] ids : queryIds) {
+                for (int i = 0; i < ids.length; i++) {
+                    total += score(ids, i, model2, model3, candidates, scores);
+                }
+            }
+        }
+        long nanos = System.nanoTime() - start;
+
+        Assert.assertEquals(legacyTotal, total, 1e-6 * legacyTotal);
+        LogUtil.LogMessage(getClass().getName(), "Scored " + Rounds * NumQueries + " phrases in " +
+            legacyNanos / 1000000 + "ms with string maps, " + nanos / 1000000 + "ms with cached totals");
+    }
+
+    /**
+     * Gets the best accent score of word iW as the legacy model did: sum the counts of every
+     * window, then split every accented phrase of the window to find the word.
+     */
+    private static double scoreLegacy(String[] words, int iW,
+                                      HashMap<String, HashMap<String, Integer>> legacy2,
+                                      HashMap<String, HashMap<String, Integer>> legacy3) {
+        HashMap<String, Double> accentScoreMap = new HashMap<>();
+        for (int n = 3; n >= 2; n--) {
+            HashMap<String, HashMap<String, Integer>> model = n == 2 ? legacy2 : legacy3;
+            int g = n - 1;
+            int start = Math.max(iW - g, 0);
+            int end = Math.min(iW + g, words.length - 1);
+            for (int jW = start; jW <= end - g; jW++) {
+                HashMap<String, Integer> accentsCountMap = model.get(join(words, jW, n));
+                if (accentsCountMap == null) {
+                    continue;
+                }
+                double count = 0;
+                for (Integer c : accentsCountMap.values()) {
+                    count += c;
+                }
+                for (String accents : accentsCountMap.keySet()) {
+                    String accentedWord = accents.split("\\s+")[iW - jW];
+                    double accScore = (accentsCountMap.get(accents) / count) * 0.5;
+                    Double score = accentScoreMap.get(accentedWord);
+                    accentScoreMap.put(accentedWord, (score == null ? 0 : score) + accScore);
+                }
+            }
+        }
+        double best = 0;
+        for (Double score : accentScoreMap.values()) {
+            best = Math.max(best, score);
+        }
+        return best;
+    }
+
+    /**
+     * Gets the best accent score of word iW from the cached totals & packed accent ids.
+     */
+    private static double score(int[] words, int iW, PhraseMap model2, PhraseMap model3,
+                                int[] candidates, double[] scores) {
+        int numCandidates = 0;
+        for (int n = 3; n >= 2; n--) {
+            PhraseMap model = n == 2 ? model2 : model3;
+            for (int jW = Math.max(iW - n + 1, 0); jW <= iW && jW + n <= words.length; jW++) {
+                int head = model.lookup(Phrase.pack(words, jW, n));
+                for (int v = head; v != PhraseMap.NoVariant; v = model.nextVariant(v)) {
+                    int word = model.variantWord(v, iW - jW);
+                    int c = 0;
+                    while (c < numCandidates && candidates[c] != word) {
+                        c++;
+                    }
+                    if (c == numCandidates) {
+                        candidates[numCandidates] = word;
+                        scores[numCandidates++] = 0;
+                    }
+                    scores[c] += model.probability(head, v) * 0.5;
+                }
+            }
+        }
+        double best = 0;
+        for (int c = 0; c < numCandidates; c++) {
+            best = Math.max(best, scores[c]);
+        }
+        return best;
+    }
+
+    private static String[][] sentence(Random random) {
+        int length = 4 + random.nextInt(7);
+        String[][] sentence = new String[2][length];
+        for (int i = 0; i < length; i++) {
+            String[] syllable = Syllables[random.nextInt(Syllables.length)];
+            sentence[0][i] = syllable[0];
+            // favor the first accent
+            int accent = random.nextInt(3) == 0 ? 1 + random.nextInt(syllable.length - 1) : 1;
+            sentence[1][i] = syllable[accent];
+        }
+        return sentence;
+    }
+
+    private static String join(String[] words, int start, int n) {
+        StringBuilder sb = new StringBuilder(words[start]);
+        for (int i = start + 1; i < start + n; i++) {
+            sb.append(' ').append(words[i]);
+        }
+        return sb.toString();
+    }
+
+    private long pack(String[] words, int start, int n) {
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = mVocabulary.intern(words[start + i]);
+        }
+        return Phrase.pack(ids, 0, n);
+    }
+}
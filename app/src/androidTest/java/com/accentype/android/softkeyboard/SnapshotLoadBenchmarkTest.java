@@ -0,0 +1,99 @@
+package com.accentype.android.softkeyboard;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.Assert;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Compares loading {@link LinearBackoffInterpolationModel} by replaying a learning log of 20k
+ * phrases against loading the snapshot the log is folded into. Only the load is timed, up to
+ * the model being ready to predict; the files are prepared beforehand so that neither case
+ * includes a migration or the writing of a snapshot.
+ */
+public class SnapshotLoadBenchmarkTest extends AndroidTestCase {
+    private static final String ModelFile = "benchmarkmodel.at";
+    private static final String[][] Syllables = {
+        { "toi", "tôi" }, { "ban", "bạn" }, { "di", "đi" }, { "hoc", "học" }, { "ve", "về" },
+        { "nha", "nhà" }, { "an", "ăn" }, { "com", "cơm" }, { "khong", "không" }, { "the", "thế" },
+        { "nao", "nào" }, { "lam", "làm" }, { "viec", "việc" }, { "mai", "mai" }, { "gio", "giờ" },
+        { "bao", "bao" }, { "choi", "chơi" }, { "sao", "sao" }, { "tai", "tại" }, { "lai", "lại" },
+        { "nguoi", "người" }, { "cua", "của" },
+    };
+    private static final int NumPhrases = 20000;
+    private static final int BatchSize = 100;
+    // a snapshot loads about 4x faster on a desktop JVM, asserted with slack for slow devices
+    private static final int MinSpeedup = 2;
+
+    public void tearDown() throws Exception {
+        LinearBackoffInterpolationModel.flush();
+        for (File file : getContext().getFilesDir().listFiles()) {
+            if (file.getName().startsWith(ModelFile)) {
+                file.delete();
+            }
+        }
+    }
+
+    @LargeTest
+    public void testSnapshotLoadBenchmark() throws Exception {
+        File modelDir = getContext().getFilesDir();
+
+        // a log of learned phrases, as left by a model that has not compacted it yet
+        LearningLog log = new LearningLog(modelDir, ModelFile);
+        // starts appending after segment 0, which stands for no segment
+        log.replay(0, null);
+        Random random = new Random(7);
+        String[] rawPhrases = new String[BatchSize];
+        String[] accentPhrases = new String[BatchSize];
+        int[] counts = new int[BatchSize];
+        for (int i = 0; i < NumPhrases; i += BatchSize) {
+            for (int b = 0; b < BatchSize; b++) {
+                StringBuilder raw = new StringBuilder();
+                StringBuilder accent = new StringBuilder();
+                for (int w = 1 + random.nextInt(5); w >= 0; w--) {
+                    String[] syllable = Syllables[random.nextInt(Syllables.length)];
+                    raw.append(raw.length() > 0 ? " " : "").append(syllable[0]);
+                    accent.append(accent.length() > 0 ? " " : "").append(syllable[1]);
+                }
+                rawPhrases[b] = raw.toString();
+                accentPhrases[b] = accent.toString();
+                counts[b] = 1 + random.nextInt(3);
+            }
+            log.append(rawPhrases, accentPhrases, counts, BatchSize);
+        }
+        log.close();
+
+        long start = System.nanoTime();
+        LinearBackoffInterpolationModel model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir.getPath());
+        LinearBackoffInterpolationModel.flush();
+        long replayNanos = System.nanoTime() - start;
+
+        // learning one more phrase folds the log into a snapshot, outside of the timings
+        model.setMaxEntries(0);
+        model.learn("toi di hoc", "tôi đi học");
+        LinearBackoffInterpolationModel.flush();
+        String[] queries = { "toi di hoc ve", "ban an com khong", "tai sao lai the", "nguoi cua toi" };
+        String[] expected = new String[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            expected[q] = model.predict(queries[q]);
+        }
+        model.dispose();
+        LinearBackoffInterpolationModel.flush();
+
+        start = System.nanoTime();
+        model = LinearBackoffInterpolationModel.getInstance(ModelFile, modelDir.getPath());
+        LinearBackoffInterpolationModel.flush();
+        long snapshotNanos = System.nanoTime() - start;
+        for (int q = 0; q < queries.length; q++) {
+            Assert.assertEquals(expected[q], model.predict(queries[q]));
+        }
+        model.dispose();
+
+        LogUtil.LogMessage(getClass().getName(), "Loaded " + NumPhrases + " phrases in " +
+            replayNanos / 1000000 + "ms by replaying the learning log, " + snapshotNanos / 1000000 + "ms from snapshot");
+        Assert.assertTrue("Snapshot load is not faster than replaying the learning log", snapshotNanos * MinSpeedup < replayNanos);
+    }
+}
@@ -0,0 +1,327 @@
+package com.accentype.android.softkeyboard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Accent-insensitive prefix index of the VN syllables of the dictionary and of the phrases
+ * learned, completing what is typed without accents into accented syllables & phrases.
+ *
+ * The syllables & phrases are kept accented in {@link AutoCompleteTrie}s, which are matched
+ * regardless of accents, so that a completion costs about the same as an EN one. The tries are
+ * immutable, so they are updated like a log-structured merge tree: phrases learned are kept in
+ * a small map, which is built into a new trie on a worker thread once it has
+ * {@link #MaxRecent} phrases. The tries form levels, each at least twice the size of the next
+ * newer one, so a new trie is merged into the level above it from their arrays as long as it
+ * grows to half its size. Each phrase is merged about log2(n / MaxRecent) times, and the largest
+ * merges, of the dictionary with all the learned phrases, happen once per doubling of them.
+ * Completions search the map & the few levels without waiting for the merges, taking the best
+ * score of each phrase; the scores only grow, so that is the score last learned.
+ *
+ * Learned phrases rank by the number of times they were learned, above the syllables of the
+ * dictionary, which rank in the order the dictionary lists them. The unaccented syllable each
+ * line of the dictionary starts with is its key, not a completion, unless the line lists it
+ * among the accented syllables too.
+ */
+public class AccentCompletionIndex implements LearningLog.Replayer {
+    // phrases learned since the trie was built, before they are merged into a new one
+    public static final int MaxRecent = 256;
+    // scores of the syllables of the dictionary are below, those of learned phrases above
+    static final int LearnedScore = 64;
+
+    private static final ExecutorService sWriter = LearningPipeline.newWorker("CompletionIndexWriter");
+
+    // folding of the lower-case accented letters, the others fold to themselves
+    private static final char[] sFoldTable = new char[0x1F00];
+    private static final AutoCompleteTrie.Folding sFolding = new AutoCompleteTrie.Folding() {
+        @Override public char fold(char c) {
+            return c < sFoldTable.length ? sFoldTable[c] : c;
+        }
+    };
+
+    static {
+        for (char c = 0; c < sFoldTable.length; c++) {
+            sFoldTable[c] = c;
+        }
+        for (Map.Entry<Character, Character> entry : LanguageConstruct.AccentToRawMap.entrySet()) {
+            if (entry.getKey() < sFoldTable.length) {
+                sFoldTable[entry.getKey()] = entry.getValue();
+            }
+        }
+    }
+
+    // the levels, largest first, replaced as a whole on the worker thread under the lock
+    private volatile AutoCompleteTrie[] mLevels = new AutoCompleteTrie[0];
+    // guarded by this, the scores of the phrases learned since the last trie was built
+    private final Map<String, Integer> mRecent = new HashMap<>();
+    private boolean mMerging;
+
+    /**
+     * Adds the syllables of a VN dictionary, in the background.
+     */
+    public void addDictionary(final DictionaryFile.Variants variants) {
+        sWriter.execute(new Runnable() {
+            @Override public void run() {
+                Map<String, Integer> words = new HashMap<>();
+                for (int group = 0; group < variants.size(); group++) {
+                    // word 0 is the unaccented key
+                    for (int i = 1; i < variants.getNumWords(group); i++) {
+                        words.put(variants.getWord(group, i), Math.max(0, LearnedScore - i));
+                    }
+                }
+                AutoCompleteTrie[] levels = addLevel(mLevels, build(words));
+                synchronized (AccentCompletionIndex.this) {
+                    mLevels = levels;
+                }
+            }
+        });
+    }
+
+    /**
+     * Learns an accented syllable or phrase once.
+     */
+    public void learn(String accentPhrase) {
+        learn(accentPhrase, 1);
+    }
+
+    /**
+     * Learns an accented syllable or phrase, e.g. from the history of the phrases learned.
+     */
+    public void learn(String accentPhrase, int count) {
+        String phrase = normalize(accentPhrase, false);
+        if (phrase.length() == 0 || count <= 0) {
+            return;
+        }
+        synchronized (this) {
+            Integer score = mRecent.get(phrase);
+            int previous = score != null ? score : score(mLevels, phrase);
+            mRecent.put(phrase, Math.max(previous, LearnedScore) + count);
+            if (mRecent.size() >= MaxRecent && !mMerging) {
+                mMerging = true;
+                sWriter.execute(new MergeRecent());
+            }
+        }
+    }
+
+    @Override public void replay(String rawPhrase, String accentPhrase, int count) {
+        learn(accentPhrase, count);
+    }
+
+    /**
+     * Gets the best accented completions of a phrase typed with or without accents. The whole
+     * phrase is completed first, and then the phrase without its first syllables, keeping
+     * them as typed, until there are enough completions.
+     *
+     * @param text The phrase typed.
+     * @param maxResults The max number of completions to return.
+     * @return The completions, with the case of the phrase typed.
+     */
+    public List<String> complete(String text, int maxResults) {
+        List<String> results = new ArrayList<>();
+        int start = 0;
+        while (start < text.length() && results.size() < maxResults) {
+            String prefix = normalize(text.substring(start), true);
+            if (prefix.trim().length() > 0) {
+                String head = text.substring(0, start);
+                for (String completion : completePrefix(prefix, maxResults)) {
+                    String result = head + StringUtil.normalizeWordCasePreserve(text.substring(start), completion);
+                    if (results.size() < maxResults && !results.contains(result)) {
+                        results.add(result);
+                    }
+                }
+            }
+            // the next syllable
+            while (start < text.length() && !Character.isWhitespace(text.charAt(start))) {
+                start++;
+            }
+            while (start < text.length() && Character.isWhitespace(text.charAt(start))) {
+                start++;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Gets the number of syllables & phrases in the levels, not counting the recent ones. A
+     * phrase learned again after it was merged counts in each level it is in until they merge.
+     */
+    public int size() {
+        int size = 0;
+        for (AutoCompleteTrie trie : mLevels) {
+            size += trie.size();
+        }
+        return size;
+    }
+
+    /**
+     * Gets the number of levels of tries.
+     */
+    int getNumLevels() {
+        return mLevels.length;
+    }
+
+    /**
+     * Waits until the syllables & phrases added so far are merged into the levels. Blocks the
+     * calling thread, so it must not be called from the UI thread.
+     */
+    public void flush() throws InterruptedException {
+        synchronized (this) {
+            if (!mRecent.isEmpty()) {
+                mMerging = true;
+                sWriter.execute(new MergeRecent());
+            }
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        sWriter.execute(new Runnable() {
+            @Override public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+    // completes a normalized prefix, merging the recent phrases with the trie
+    private List<String> completePrefix(String prefix, int maxResults) {
+        // the levels & the recent phrases not merged into them, as of the same time
+        AutoCompleteTrie[] levels;
+        final Map<String, Integer> scores = new HashMap<>();
+        synchronized (this) {
+            levels = mLevels;
+            for (Map.Entry<String, Integer> entry : mRecent.entrySet()) {
+                if (startsWithFolded(entry.getKey(), prefix)) {
+                    scores.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        // a phrase among the best by its best score is among the best of the level holding it
+        for (AutoCompleteTrie trie : levels) {
+            for (String word : trie.autoComplete(prefix, maxResults, sFolding)) {
+                if (!scores.containsKey(word)) {
+                    scores.put(word, score(levels, word));
+                }
+            }
+        }
+        List<String> completions = new ArrayList<>(scores.keySet());
+        Collections.sort(completions, new Comparator<String>() {
+            @Override public int compare(String a, String b) {
+                int comparison = scores.get(b) - scores.get(a);
+                return comparison != 0 ? comparison : a.length() != b.length() ? a.length() - b.length() : a.compareTo(b);
+            }
+        });
+        return completions.subList(0, Math.min(maxResults, completions.size()));
+    }
+
+    private static boolean startsWithFolded(String phrase, String prefix) {
+        if (phrase.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (sFolding.fold(phrase.charAt(i)) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lower-cases a phrase with single spaces between its syllables.
+     *
+     * @param fold Whether to fold the accented letters, keeping a trailing space so that only
+     *             the phrases with more syllables complete it.
+     */
+    static String normalize(String phrase, boolean fold) {
+        StringBuilder sb = new StringBuilder(phrase.length());
+        boolean space = false;
+        for (int i = 0; i < phrase.length(); i++) {
+            char c = phrase.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (space) {
+                sb.append(' ');
+                space = false;
+            }
+            c = Character.toLowerCase(c);
+            sb.append(fold ? sFolding.fold(c) : c);
+        }
+        if (space && fold) {
+            sb.append(' ');
+        }
+        return sb.toString();
+    }
+
+    // the best score of a phrase in the levels, -1 if none has it
+    private static int score(AutoCompleteTrie[] levels, String phrase) {
+        int score = -1;
+        for (AutoCompleteTrie trie : levels) {
+            score = Math.max(score, trie.score(phrase));
+        }
+        return score;
+    }
+
+    private static AutoCompleteTrie build(Map<String, Integer> scores) {
+        AutoCompleteTrie.Builder builder = new AutoCompleteTrie.Builder();
+        for (Map.Entry<String, Integer> entry : scores.entrySet()) {
+            builder.insert(entry.getKey(), entry.getValue());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Adds a trie as the newest level, merging it into the levels above it for as long as it
+     * is at least half their size.
+     *
+     * @return The new levels, largest first.
+     */
+    private static AutoCompleteTrie[] addLevel(AutoCompleteTrie[] levels, AutoCompleteTrie trie) {
+        int numLevels = levels.length;
+        while (numLevels > 0 && 2 * trie.size() >= levels[numLevels - 1].size()) {
+            trie = levels[--numLevels].merge(trie);
+        }
+        AutoCompleteTrie[] added = new AutoCompleteTrie[numLevels + 1];
+        System.arraycopy(levels, 0, added, 0, numLevels);
+        added[numLevels] = trie;
+        return added;
+    }
+
+    /**
+     * Builds the recent phrases into a new level, on the worker thread.
+     */
+    private class MergeRecent implements Runnable {
+        @Override public void run() {
+            Map<String, Integer> recent;
+            synchronized (AccentCompletionIndex.this) {
+                recent = new HashMap<>(mRecent);
+                // another merge may have taken them already
+                if (recent.isEmpty()) {
+                    mMerging = false;
+                    return;
+                }
+            }
+            AutoCompleteTrie[] levels = addLevel(mLevels, build(recent));
+            synchronized (AccentCompletionIndex.this) {
+                mLevels = levels;
+                // phrases learned again while merging stay until the next merge
+                for (Map.Entry<String, Integer> entry : recent.entrySet()) {
+                    if (entry.getValue().equals(mRecent.get(entry.getKey()))) {
+                        mRecent.remove(entry.getKey());
+                    }
+                }
+                mMerging = false;
+                if (mRecent.size() >= MaxRecent) {
+                    mMerging = true;
+                    sWriter.execute(new MergeRecent());
+                }
+            }
+            LogUtil.LogMessage(this.getClass().getName(), "Merged " + recent.size() +
+                " learned phrases into the completion index, now " + levels.length + " levels.");
+        }
+    }
+}
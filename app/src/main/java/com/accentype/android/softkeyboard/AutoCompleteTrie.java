@@ -1,78 +1,870 @@
 package com.accentype.android.softkeyboard;
 
-import java.util.*;
-import java.util.Map.Entry;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Immutable trie of words for auto completion, built with a {@link Builder}.
+ *
+ * Nodes are numbered in breadth-first order and stored in flat arrays: the label of the edge
+ * into each node, and the index of its first child. The children of a node are consecutive and
+ * sorted by label, so a transition is a binary search within one array, and a node costs about
+ * 14 bytes instead of a map and a prefix string. A suffix-sharing DAWG would be smaller still,
+ * but every word needs its own path for the words to be ranked individually.
+ *
+ * Words have scores, and each node also keeps the best score in its subtree, so that the top
+ * completions of a prefix are found best first with a priority queue, see
+ * {@link #autoComplete(String, int)}, visiting a number of nodes that depends on how many
+ * completions are asked for rather than on the size of the subtree.
+ *
+ * Completions can also tolerate typos in the prefix, see {@link #fuzzyComplete}, or match it
+ * regardless of accents, see {@link #autoComplete(String, int, Folding)}.
+ *
+ * The arrays are written as they are, so a trie compiled ahead of time is loaded with bulk
+ * copies, see {@link DictionaryFile}.
+ */
 public class AutoCompleteTrie {
-    protected final Map<Character, AutoCompleteTrie> children;
-    protected String value;
-    protected boolean terminal = false;
+    private static final int Root = 0;
+    private static final int NoNode = -1;
+    // score of the nodes that do not end a word
+    private static final int NoWord = -1;
+    private static final int Unreachable = Integer.MAX_VALUE / 2;
 
+    // max number of nodes a typo-tolerant search visits
+    public static final int DefaultSearchBudget = 20000;
+    // bits a score is shifted right by per unit of typo cost, see KeyProximity
+    private static final int TypoDiscountShift = 1;
+
+    // label of the edge into each node
+    private final char[] mLabels;
+    // children of node i are mFirstChild[i]..mFirstChild[i + 1]
+    private final int[] mFirstChild;
+    // score of the word ending at each node, NoWord if none
+    private final int[] mScores;
+    // best score of the words in the subtree of each node
+    private final int[] mBest;
+    private final int mNumWords;
+    private final int mMaxDepth;
+
+    /**
+     * Creates an empty trie.
+     */
     public AutoCompleteTrie() {
-        this(null);
+        this(new char[1], new int[] { 1, 1 }, new int[] { NoWord }, new int[] { NoWord }, 0, 0);
+    }
+
+    private AutoCompleteTrie(char[] labels, int[] firstChild, int[] scores, int[] best, int numWords, int maxDepth) {
+        mLabels = labels;
+        mFirstChild = firstChild;
+        mScores = scores;
+        mBest = best;
+        mNumWords = numWords;
+        mMaxDepth = maxDepth;
+    }
+
+    /**
+     * Maps characters to the ones they match, e.g. accented letters to unaccented ones.
+     */
+    public interface Folding {
+        char fold(char c);
     }
 
-    private AutoCompleteTrie(String value) {
-        this.value = value;
-        children = new HashMap<>();
+    /**
+     * Collects words and builds a trie of them.
+     */
+    public static class Builder {
+        private final Map<String, Integer> mScores = new HashMap<>();
+
+        /**
+         * Adds a word with a score of 0.
+         */
+        public Builder insert(String word) {
+            return insert(word, 0);
+        }
+
+        /**
+         * Adds a word, keeping the best score if it is added more than once.
+         *
+         * @param score The score of the word, higher ranks first, at least 0.
+         */
+        public Builder insert(String word, int score) {
+            if (word == null) {
+                throw new IllegalArgumentException("Cannot add null to a Trie");
+            }
+            if (score < 0) {
+                throw new IllegalArgumentException("Negative score " + score);
+            }
+            Integer previous = mScores.get(word);
+            if (previous == null || previous < score) {
+                mScores.put(word, score);
+            }
+            return this;
+        }
+
+        public AutoCompleteTrie build() {
+            List<String> words = new ArrayList<>(mScores.keySet());
+            Collections.sort(words);
+
+            // a node is the range of sorted words sharing its prefix, the first one being the
+            // shortest, and nodes are expanded in breadth-first order so that siblings are
+            // numbered consecutively
+            int capacity = 64;
+            int[] lo = new int[capacity];
+            int[] hi = new int[capacity];
+            int[] depths = new int[capacity];
+            char[] labels = new char[capacity];
+            int[] parents = new int[capacity];
+            int[] firstChild = new int[capacity + 1];
+            int[] scores = new int[capacity];
+            lo[Root] = 0;
+            hi[Root] = words.size();
+            int numNodes = 1;
+            int numWords = 0;
+            int maxDepth = 0;
+
+            for (int node = 0; node < numNodes; node++) {
+                int depth = depths[node];
+                int i = lo[node];
+                scores[node] = NoWord;
+                // the shortest word of the range ends here
+                if (i < hi[node] && words.get(i).length() == depth) {
+                    scores[node] = mScores.get(words.get(i));
+                    numWords++;
+                    maxDepth = Math.max(maxDepth, depth);
+                    i++;
+                }
+                firstChild[node] = numNodes;
+                while (i < hi[node]) {
+                    char c = words.get(i).charAt(depth);
+                    int end = i + 1;
+                    while (end < hi[node] && words.get(end).charAt(depth) == c) {
+                        end++;
+                    }
+                    if (numNodes == capacity) {
+                        capacity *= 2;
+                        lo = PhraseMap.grow(lo, capacity);
+                        hi = PhraseMap.grow(hi, capacity);
+                        depths = PhraseMap.grow(depths, capacity);
+                        parents = PhraseMap.grow(parents, capacity);
+                        labels = grow(labels, capacity);
+                        firstChild = PhraseMap.grow(firstChild, capacity + 1);
+                        scores = PhraseMap.grow(scores, capacity);
+                    }
+                    lo[numNodes] = i;
+                    hi[numNodes] = end;
+                    depths[numNodes] = depth + 1;
+                    parents[numNodes] = node;
+                    labels[numNodes] = c;
+                    numNodes++;
+                    i = end;
+                }
+            }
+            firstChild[numNodes] = numNodes;
+
+            // children come after their parent, so a backward pass sees whole subtrees
+            int[] best = new int[numNodes];
+            System.arraycopy(scores, 0, best, 0, numNodes);
+            for (int node = numNodes - 1; node > Root; node--) {
+                best[parents[node]] = Math.max(best[parents[node]], best[node]);
+            }
+
+            return new AutoCompleteTrie(
+                trim(labels, numNodes),
+                trim(firstChild, numNodes + 1),
+                trim(scores, numNodes),
+                best,
+                numWords,
+                maxDepth);
+        }
     }
 
-    protected void add(char c) {
-        String val;
-        if (this.value == null) {
-            val = Character.toString(c);
-        } else {
-            val = this.value + c;
+    /**
+     * Merges the words of another trie with those of this one into a new trie, keeping the
+     * best score of the words in both. The arrays are merged directly, a node at a time in
+     * breadth-first order, so the cost is linear in the number of nodes of both tries.
+     */
+    public AutoCompleteTrie merge(AutoCompleteTrie other) {
+        int capacity = mLabels.length + other.mLabels.length - 1;
+        // the node of each trie that each merged node stands for, NoNode if it is not in it
+        int[] nodes = new int[capacity];
+        int[] otherNodes = new int[capacity];
+        char[] labels = new char[capacity];
+        int[] firstChild = new int[capacity + 1];
+        int[] scores = new int[capacity];
+        int[] best = new int[capacity];
+        nodes[Root] = Root;
+        otherNodes[Root] = Root;
+        int numNodes = 1;
+        int numWords = 0;
+
+        for (int node = 0; node < numNodes; node++) {
+            int a = nodes[node];
+            int b = otherNodes[node];
+            scores[node] = Math.max(a == NoNode ? NoWord : mScores[a], b == NoNode ? NoWord : other.mScores[b]);
+            best[node] = Math.max(a == NoNode ? NoWord : mBest[a], b == NoNode ? NoWord : other.mBest[b]);
+            if (scores[node] != NoWord) {
+                numWords++;
+            }
+            firstChild[node] = numNodes;
+            // the children of both are sorted by label, so they are merged in order
+            int i = a == NoNode ? 0 : mFirstChild[a];
+            int iEnd = a == NoNode ? 0 : mFirstChild[a + 1];
+            int j = b == NoNode ? 0 : other.mFirstChild[b];
+            int jEnd = b == NoNode ? 0 : other.mFirstChild[b + 1];
+            while (i < iEnd || j < jEnd) {
+                if (j == jEnd || (i < iEnd && mLabels[i] < other.mLabels[j])) {
+                    labels[numNodes] = mLabels[i];
+                    nodes[numNodes] = i++;
+                    otherNodes[numNodes] = NoNode;
+                }
+                else if (i == iEnd || other.mLabels[j] < mLabels[i]) {
+                    labels[numNodes] = other.mLabels[j];
+                    nodes[numNodes] = NoNode;
+                    otherNodes[numNodes] = j++;
+                }
+                else {
+                    labels[numNodes] = mLabels[i];
+                    nodes[numNodes] = i++;
+                    otherNodes[numNodes] = j++;
+                }
+                numNodes++;
+            }
         }
-        children.put(c, new AutoCompleteTrie(val));
+        firstChild[numNodes] = numNodes;
+
+        return new AutoCompleteTrie(
+            trim(labels, numNodes),
+            trim(firstChild, numNodes + 1),
+            trim(scores, numNodes),
+            trim(best, numNodes),
+            numWords,
+            Math.max(mMaxDepth, other.mMaxDepth));
     }
 
-    public void insert(String word) {
-        if (word == null) {
-            throw new IllegalArgumentException("Cannot add null to a Trie");
+    /**
+     * Writes the arrays of the trie: the number of nodes, words & the max depth, then the labels,
+     * first children, scores & best scores, all fixed-size big-endian.
+     */
+    void write(DataOutputStream out) throws IOException {
+        int numNodes = mLabels.length;
+        out.writeInt(numNodes);
+        out.writeInt(mNumWords);
+        out.writeInt(mMaxDepth);
+        for (int node = 0; node < numNodes; node++) {
+            out.writeChar(mLabels[node]);
+        }
+        for (int node = 0; node <= numNodes; node++) {
+            out.writeInt(mFirstChild[node]);
+        }
+        for (int node = 0; node < numNodes; node++) {
+            out.writeInt(mScores[node]);
         }
-        AutoCompleteTrie node = this;
-        for (char c : word.toCharArray()) {
-            if (!node.children.containsKey(c)) {
-                node.add(c);
+        for (int node = 0; node < numNodes; node++) {
+            out.writeInt(mBest[node]);
+        }
+    }
+
+    /**
+     * Reads a trie written by {@link #write(DataOutputStream)}, copying the arrays in bulk.
+     */
+    static AutoCompleteTrie read(ByteBuffer buffer) throws IOException {
+        try {
+            int numNodes = buffer.getInt();
+            int numWords = buffer.getInt();
+            int maxDepth = buffer.getInt();
+            if (numNodes < 1 || numNodes > buffer.remaining() / 14 || numWords < 0 || maxDepth < 0) {
+                throw new IOException("Corrupt trie header");
+            }
+            char[] labels = new char[numNodes];
+            buffer.asCharBuffer().get(labels);
+            buffer.position(buffer.position() + 2 * numNodes);
+            int[] firstChild = readInts(buffer, numNodes + 1);
+            int[] scores = readInts(buffer, numNodes);
+            int[] best = readInts(buffer, numNodes);
+
+            // the walks trust the children ranges, so check that they stay within the arrays
+            for (int node = 0; node < numNodes; node++) {
+                if (firstChild[node] <= node || firstChild[node] > firstChild[node + 1]) {
+                    throw new IOException("Corrupt trie node " + node);
+                }
             }
-            node = node.children.get(c);
+            if (firstChild[numNodes] != numNodes) {
+                throw new IOException("Corrupt trie nodes");
+            }
+            return new AutoCompleteTrie(labels, firstChild, scores, best, numWords, maxDepth);
+        }
+        catch (BufferUnderflowException ex) {
+            throw new IOException("Truncated trie");
         }
-        node.terminal = true;
     }
 
+    private static int[] readInts(ByteBuffer buffer, int length) {
+        int[] values = new int[length];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * length);
+        return values;
+    }
+
+    /**
+     * Gets the number of distinct words.
+     */
+    public int size() {
+        return mNumWords;
+    }
+
+    /**
+     * Gets the number of nodes, including the root.
+     */
+    public int getNumNodes() {
+        return mLabels.length;
+    }
+
+    /**
+     * Gets the specified word if it is a prefix of any word in the trie.
+     *
+     * @return The word, or an empty string if no word starts with it.
+     */
     public String find(String word) {
-        AutoCompleteTrie node = this;
-        for (char c : word.toCharArray()) {
-            if (!node.children.containsKey(c)) {
-                return "";
+        return walk(word) == NoNode ? "" : word;
+    }
+
+    /**
+     * Gets the score of the specified word.
+     *
+     * @return The score, or -1 if the trie does not contain the word.
+     */
+    public int score(String word) {
+        int node = walk(word);
+        return node == NoNode ? NoWord : mScores[node];
+    }
+
+    /**
+     * Gets whether the trie contains the specified word.
+     */
+    public boolean contains(String word) {
+        int node = walk(word);
+        return node != NoNode && mScores[node] != NoWord;
+    }
+
+    /**
+     * Gets the words that begin with the specified prefix, in alphabetical order.
+     */
+    public Collection<String> autoComplete(String prefix) {
+        int node = walk(prefix);
+        if (node == NoNode) {
+            return Collections.emptyList();
+        }
+        List<String> results = new ArrayList<>();
+        char[] word = new char[Math.max(mMaxDepth, prefix.length())];
+        prefix.getChars(0, prefix.length(), word, 0);
+
+        // depth-first, keeping the next child to visit at each level
+        int[] next = new int[mMaxDepth - prefix.length() + 1];
+        int[] end = new int[next.length];
+        int level = 0;
+        if (mScores[node] != NoWord) {
+            results.add(prefix);
+        }
+        next[0] = mFirstChild[node];
+        end[0] = mFirstChild[node + 1];
+        while (level >= 0) {
+            if (next[level] == end[level]) {
+                level--;
+                continue;
+            }
+            int child = next[level]++;
+            int length = prefix.length() + level + 1;
+            word[length - 1] = mLabels[child];
+            if (mScores[child] != NoWord) {
+                results.add(new String(word, 0, length));
+            }
+            if (mFirstChild[child] < mFirstChild[child + 1]) {
+                level++;
+                next[level] = mFirstChild[child];
+                end[level] = mFirstChild[child + 1];
             }
-            node = node.children.get(c);
         }
-        return node.value;
+        return results;
     }
 
-    public Collection<String> autoComplete(String prefix) {
-        AutoCompleteTrie node = this;
-        for (char c : prefix.toCharArray()) {
-            if (!node.children.containsKey(c)) {
-                return Collections.emptyList();
+    /**
+     * Gets the best scored words that begin with the specified prefix, best first. Words of
+     * equal score come shorter first.
+     *
+     * @param maxResults The max number of words to return.
+     */
+    public List<String> autoComplete(String prefix, int maxResults) {
+        List<String> results = new ArrayList<>();
+        int start = walk(prefix);
+        if (start == NoNode || maxResults <= 0) {
+            return results;
+        }
+
+        // best first over subtrees keyed by their best score, and words keyed by their score
+        Heap heap = new Heap();
+        heap.push(mBest[start], start, false);
+        char[] word = new char[mMaxDepth];
+        while (heap.size() > 0 && results.size() < maxResults) {
+            long top = heap.pop();
+            int node = Heap.node(top);
+            if (Heap.isWord(top)) {
+                results.add(getWord(prefix, start, node, word));
+                continue;
+            }
+            if (mScores[node] != NoWord) {
+                heap.push(mScores[node], node, true);
+            }
+            for (int child = mFirstChild[node]; child < mFirstChild[node + 1]; child++) {
+                heap.push(mBest[child], child, false);
             }
-            node = node.children.get(c);
         }
-        return node.allPrefixes();
+        return results;
+    }
+
+    /**
+     * Gets the best scored words that begin with the specified prefix once their characters are
+     * folded, best first, e.g. the accented words of an unaccented prefix.
+     *
+     * @param prefix The prefix, folded already.
+     * @param maxResults The max number of words to return.
+     * @param folding The folding of the characters of the words.
+     */
+    public List<String> autoComplete(String prefix, int maxResults, Folding folding) {
+        List<String> results = new ArrayList<>();
+        if (maxResults <= 0) {
+            return results;
+        }
+
+        // the nodes whose paths fold to the prefix so far, in disjoint subtrees
+        int[] nodes = { Root };
+        int numNodes = 1;
+        int[] next = new int[4];
+        for (int i = 0; i < prefix.length() && numNodes > 0; i++) {
+            char c = prefix.charAt(i);
+            int numNext = 0;
+            for (int n = 0; n < numNodes; n++) {
+                for (int child = mFirstChild[nodes[n]]; child < mFirstChild[nodes[n] + 1]; child++) {
+                    if (folding.fold(mLabels[child]) == c) {
+                        if (numNext == next.length) {
+                            next = PhraseMap.grow(next, numNext * 2);
+                        }
+                        next[numNext++] = child;
+                    }
+                }
+            }
+            int[] swap = nodes;
+            nodes = next;
+            next = swap;
+            numNodes = numNext;
+        }
+
+        Heap heap = new Heap();
+        for (int n = 0; n < numNodes; n++) {
+            heap.push(mBest[nodes[n]], nodes[n], false);
+        }
+        char[] word = new char[mMaxDepth];
+        while (heap.size() > 0 && results.size() < maxResults) {
+            long top = heap.pop();
+            int node = Heap.node(top);
+            if (Heap.isWord(top)) {
+                results.add(getWord("", Root, node, word));
+                continue;
+            }
+            if (mScores[node] != NoWord) {
+                heap.push(mScores[node], node, true);
+            }
+            for (int child = mFirstChild[node]; child < mFirstChild[node + 1]; child++) {
+                heap.push(mBest[child], child, false);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Gets the best scored words that begin with a prefix within a few edits of the specified
+     * one, best first once the score of each word is discounted by the cost of its prefix, so
+     * that a correction outranks the exact completions that are much less frequent, e.g. a
+     * typo that is itself a rare prefix.
+     *
+     * Mistyping a letter for one on a nearby key costs less than other edits, see
+     * {@link KeyProximity}. The cost allowed grows by one per typed letter after the first, up
+     * to maxEdits whole edits, so short prefixes only tolerate near misses.
+     *
+     * @param maxResults The max number of words to return.
+     * @param maxEdits The max number of insertions, deletions, substitutions & transpositions.
+     * @param proximity The costs of substitutions, null for every substitution to cost an edit.
+     */
+    public List<String> fuzzyComplete(String prefix, int maxResults, int maxEdits, KeyProximity proximity) {
+        return fuzzyComplete(prefix, maxResults, maxEdits, proximity, DefaultSearchBudget);
     }
 
-    protected Collection<String> allPrefixes() {
+    /**
+     * Same as {@link #fuzzyComplete(String, int, int, KeyProximity)}, visiting at most the
+     * specified number of nodes. The exact completions do not count against it.
+     */
+    public List<String> fuzzyComplete(String prefix, int maxResults, int maxEdits, KeyProximity proximity,
+                                      int searchBudget) {
+        int maxCost = Math.min(maxEdits * KeyProximity.EditCost, prefix.length() - 1);
+        if (maxCost <= 0) {
+            return autoComplete(prefix, maxResults);
+        }
         List<String> results = new ArrayList<>();
-        if (this.terminal) {
-            results.add(this.value);
+        if (maxResults <= 0) {
+            return results;
+        }
+
+        FuzzyMatches matches = new FuzzyMatches(prefix, maxCost, proximity);
+        matches.search(searchBudget);
+
+        // best first within the matches of each cost, merged across the costs by discounted score
+        Heap[] heaps = new Heap[maxCost + 1];
+        for (int cost = 0; cost <= maxCost; cost++) {
+            heaps[cost] = new Heap();
         }
-        for (Entry<Character, AutoCompleteTrie> entry : children.entrySet()) {
-            AutoCompleteTrie child = entry.getValue();
-            Collection<String> childPrefixes = child.allPrefixes();
-            results.addAll(childPrefixes);
+        // the only match of cost 0 is the prefix itself, which the budget may not reach
+        int start = walk(prefix);
+        if (start != NoNode) {
+            heaps[0].push(mBest[start], start, false);
+        }
+        for (int m = 0; m < matches.mSize; m++) {
+            if (matches.mCosts[m] > 0 && matches.mCosts[m] <= maxCost) {
+                heaps[matches.mCosts[m]].push(mBest[matches.mNodes[m]], matches.mNodes[m], false);
+            }
+        }
+        int[] emitted = new int[maxResults];
+        int numEmitted = 0;
+        char[] word = new char[mMaxDepth];
+        while (numEmitted < maxResults) {
+            // the cheapest of the heaps whose top ranks best
+            int cost = -1;
+            int bestRank = 0;
+            for (int c = 0; c <= maxCost; c++) {
+                if (heaps[c].size() > 0) {
+                    int rank = discount(Heap.score(heaps[c].peek()), c);
+                    if (cost < 0 || rank > bestRank) {
+                        cost = c;
+                        bestRank = rank;
+                    }
+                }
+            }
+            if (cost < 0) {
+                break;
+            }
+            Heap heap = heaps[cost];
+            long top = heap.pop();
+            int node = Heap.node(top);
+            if (Heap.isWord(top)) {
+                // a word can be under matches of different costs, the cheapest comes first
+                boolean isEmitted = false;
+                for (int i = 0; i < numEmitted && !isEmitted; i++) {
+                    isEmitted = emitted[i] == node;
+                }
+                if (!isEmitted) {
+                    emitted[numEmitted++] = node;
+                    results.add(getWord("", Root, node, word));
+                }
+                continue;
+            }
+            if (mScores[node] != NoWord) {
+                heap.push(mScores[node], node, true);
+            }
+            for (int child = mFirstChild[node]; child < mFirstChild[node + 1]; child++) {
+                heap.push(mBest[child], child, false);
+            }
         }
         return results;
     }
-}
\ No newline at end of file
+
+    /**
+     * Discounts the score of a word by the cost of the prefix it completes: halved by each near
+     * miss, quartered by each whole edit.
+     */
+    private static int discount(int score, int cost) {
+        return score < 0 ? score : score >> Math.min(cost * TypoDiscountShift, 31);
+    }
+
+    /**
+     * Depth-first search for the nodes whose path is within a cost of a prefix.
+     *
+     * It simulates the Levenshtein automaton of the prefix one row at a time: the row of a
+     * node holds the cost of aligning its path with each prefix of the query, only within the
+     * band of cells that the allowed insertions & deletions can reach, and a subtree is pruned
+     * as soon as every cell of its row is over the max cost. Rows are kept by depth, so the
+     * search allocates nothing per node.
+     */
+    private class FuzzyMatches {
+        private final String mQuery;
+        private final int mMaxCost;
+        private final int mBand;
+        private final KeyProximity mProximity;
+        private final int[][] mRows;
+        private final char[] mPath;
+        // the cheapest match on the path to each depth, deeper matches must beat it
+        private final int[] mCovered;
+        private final int[] mNext;
+        private final int[] mEnd;
+
+        int[] mNodes = new int[16];
+        int[] mCosts = new int[16];
+        int mSize;
+
+        FuzzyMatches(String query, int maxCost, KeyProximity proximity) {
+            mQuery = query;
+            mMaxCost = maxCost;
+            mBand = maxCost / KeyProximity.EditCost;
+            mProximity = proximity;
+            int maxDepth = Math.min(mMaxDepth, query.length() + mBand);
+            mRows = new int[maxDepth + 1][query.length() + 1];
+            mPath = new char[maxDepth + 1];
+            mCovered = new int[maxDepth + 1];
+            mNext = new int[maxDepth + 1];
+            mEnd = new int[maxDepth + 1];
+        }
+
+        void search(int budget) {
+            int m = mQuery.length();
+            int[] root = mRows[0];
+            for (int j = 0; j <= m; j++) {
+                root[j] = j <= mBand ? j * KeyProximity.EditCost : Unreachable;
+            }
+            mCovered[0] = root[m];
+            if (root[m] <= mMaxCost) {
+                add(Root, root[m]);
+            }
+
+            int depth = 0;
+            mNext[0] = mFirstChild[Root];
+            mEnd[0] = mFirstChild[Root + 1];
+            int visited = 0;
+            while (depth >= 0 && visited < budget) {
+                if (mNext[depth] == mEnd[depth] || depth + 1 >= mRows.length) {
+                    depth--;
+                    continue;
+                }
+                int node = mNext[depth]++;
+                visited++;
+                int d = depth + 1;
+                mPath[d] = mLabels[node];
+                if (!computeRow(d)) {
+                    continue;
+                }
+                // the whole query is out of the band of shallow nodes
+                int cost = d + mBand >= m ? mRows[d][m] : Unreachable;
+                mCovered[d] = mCovered[depth];
+                if (cost < mCovered[d]) {
+                    add(node, cost);
+                    mCovered[d] = cost;
+                }
+                depth = d;
+                mNext[d] = mFirstChild[node];
+                mEnd[d] = mFirstChild[node + 1];
+            }
+        }
+
+        /**
+         * Computes the row of the node at a depth from the rows above it.
+         *
+         * @return Whether any cell is within the max cost.
+         */
+        private boolean computeRow(int d) {
+            int[] row = mRows[d];
+            int[] above = mRows[d - 1];
+            char c = mPath[d];
+            int m = mQuery.length();
+            int from = Math.max(0, d - mBand);
+            int to = Math.min(m, d + mBand);
+            if (from > 0) {
+                row[from - 1] = Unreachable;
+            }
+            if (to < m) {
+                row[to + 1] = Unreachable;
+            }
+            boolean isReachable = false;
+            for (int j = from; j <= to; j++) {
+                // a letter of the word that was not typed
+                int cost = above[j] + KeyProximity.EditCost;
+                if (j > 0) {
+                    char typed = mQuery.charAt(j - 1);
+                    int substitution = typed == c ? 0 : mProximity != null ?
+                        mProximity.substitutionCost(typed, c) : KeyProximity.EditCost;
+                    cost = Math.min(cost, above[j - 1] + substitution);
+                    // a letter typed that is not in the word
+                    cost = Math.min(cost, row[j - 1] + KeyProximity.EditCost);
+                    // two letters typed in the wrong order
+                    if (j > 1 && d > 1 && typed == mPath[d - 1] && mQuery.charAt(j - 2) == c) {
+                        cost = Math.min(cost, mRows[d - 2][j - 2] + KeyProximity.EditCost);
+                    }
+                }
+                row[j] = cost;
+                isReachable |= cost <= mMaxCost;
+            }
+            return isReachable;
+        }
+
+        private void add(int node, int cost) {
+            if (mSize == mNodes.length) {
+                mNodes = PhraseMap.grow(mNodes, mSize * 2);
+                mCosts = PhraseMap.grow(mCosts, mSize * 2);
+            }
+            mNodes[mSize] = node;
+            mCosts[mSize] = cost;
+            mSize++;
+        }
+    }
+
+    /**
+     * Gets the word ending at a node under the node of its prefix, walking up the parents.
+     */
+    private String getWord(String prefix, int start, int node, char[] buffer) {
+        int length = buffer.length;
+        for (int n = node; n != start; n = parent(n)) {
+            buffer[--length] = mLabels[n];
+        }
+        StringBuilder sb = new StringBuilder(prefix.length() + buffer.length - length);
+        sb.append(prefix);
+        sb.append(buffer, length, buffer.length - length);
+        return sb.toString();
+    }
+
+    /**
+     * Gets the parent of a node, the last node whose children start at or before it.
+     */
+    private int parent(int node) {
+        int low = Root;
+        int high = node - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mFirstChild[mid] <= node) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Binary max-heap of nodes & words packed into longs, the score in the high bits.
+     */
+    private static class Heap {
+        private long[] mItems = new long[32];
+        private int mSize;
+
+        int size() {
+            return mSize;
+        }
+
+        void push(int score, int node, boolean isWord) {
+            // among equal scores, words before subtrees and lower nodes first
+            long item = ((long)score << 32) | (~((node << 1) | (isWord ? 0 : 1)) & 0xFFFFFFFFL);
+            if (mSize == mItems.length) {
+                long[] items = new long[mSize * 2];
+                System.arraycopy(mItems, 0, items, 0, mSize);
+                mItems = items;
+            }
+            int i = mSize++;
+            while (i > 0 && mItems[(i - 1) >> 1] < item) {
+                mItems[i] = mItems[(i - 1) >> 1];
+                i = (i - 1) >> 1;
+            }
+            mItems[i] = item;
+        }
+
+        long peek() {
+            return mItems[0];
+        }
+
+        long pop() {
+            long top = mItems[0];
+            long last = mItems[--mSize];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= mSize) {
+                    break;
+                }
+                if (child + 1 < mSize && mItems[child + 1] > mItems[child]) {
+                    child++;
+                }
+                if (mItems[child] <= last) {
+                    break;
+                }
+                mItems[i] = mItems[child];
+                i = child;
+            }
+            mItems[i] = last;
+            return top;
+        }
+
+        static int score(long item) {
+            return (int)(item >> 32);
+        }
+
+        static int node(long item) {
+            return ~(int)item >>> 1;
+        }
+
+        static boolean isWord(long item) {
+            return (~(int)item & 1) == 0;
+        }
+    }
+
+    /**
+     * Follows the characters of a string from the root.
+     *
+     * @return The node reached, {@link #NoNode} if the string leaves the trie.
+     */
+    private int walk(String text) {
+        int node = Root;
+        for (int i = 0; i < text.length() && node != NoNode; i++) {
+            node = child(node, text.charAt(i));
+        }
+        return node;
+    }
+
+    private int child(int node, char c) {
+        int low = mFirstChild[node];
+        int high = mFirstChild[node + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char label = mLabels[mid];
+            if (label < c) {
+                low = mid + 1;
+            }
+            else if (label > c) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return NoNode;
+    }
+
+    private static char[] grow(char[] array, int capacity) {
+        char[] grown = new char[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static char[] trim(char[] array, int length) {
+        char[] trimmed = new char[length];
+        System.arraycopy(array, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private static int[] trim(int[] array, int length) {
+        int[] trimmed = new int[length];
+        System.arraycopy(array, 0, trimmed, 0, length);
+        return trimmed;
+    }
+}
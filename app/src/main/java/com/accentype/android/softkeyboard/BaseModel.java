@@ -1,5 +1,7 @@
 package com.accentype.android.softkeyboard;
 
+import java.util.List;
+
 /**
  * Base interface for language models.
  */
@@ -10,6 +12,28 @@ interface BaseModel {
      */
     String predict(String rawPhrase);
 
+    /**
+     * Predicts like {@link #predict(String)} on the prediction thread.
+     * @param rawPhrase The unaccented phrase to be predicted.
+     * @param deadlineMillis The time from now after which the prediction is given up.
+     * @return The pending prediction, which can be cancelled once it is no longer needed.
+     */
+    PredictionFuture predictAsync(String rawPhrase, long deadlineMillis);
+
+    /**
+     * Predicts the most likely accented phrases for a given unaccented phrase, best first.
+     * Like {@link #predict(String)}, words without a prediction may be left as dots.
+     * @param rawPhrase The unaccented phrase to be predicted.
+     * @param maxAlternatives The max number of phrases to return.
+     * @return The predicted phrases, empty if there is no prediction.
+     */
+    List<String> predictAlternatives(String rawPhrase, int maxAlternatives);
+
+    /**
+     * Starts a session for predicting a phrase as it is being typed.
+     */
+    PredictionSession newSession();
+
     /**
      * Learns on the specified unaccented phrase and its one possible accented interpretation.
      * @param rawPhrase The unaccented phrase to learn on.
@@ -0,0 +1,35 @@
+package com.accentype.android.softkeyboard;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Base of the prediction sessions, keeping the one prediction of the session that may still
+ * be pending so that a newer one cancels it.
+ */
+abstract class BasePredictionSession implements PredictionSession {
+    private PredictionFuture mPending;
+
+    /**
+     * Gets the phrase of the session.
+     */
+    protected abstract CharSequence getText();
+
+    @Override public synchronized PredictionFuture predictAsync(long deadlineMillis) {
+        if (mPending != null) {
+            mPending.cancel(true);
+        }
+        final String text = getText().toString();
+        mPending = PredictionFuture.submit(new Callable<String>() {
+            @Override public String call() throws Exception {
+                synchronized (BasePredictionSession.this) {
+                    // typed past, a newer prediction is coming
+                    if (!text.contentEquals(getText())) {
+                        return null;
+                    }
+                }
+                return predict();
+            }
+        }, deadlineMillis);
+        return mPending;
+    }
+}
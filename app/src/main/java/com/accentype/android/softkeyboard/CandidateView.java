@@ -50,7 +50,7 @@ public class CandidateView extends View {
     
     private Rect mBgPadding;
 
-    private static final int MAX_SUGGESTIONS = 40;
+    public static final int MAX_SUGGESTIONS = 40;
     private static final int SCROLL_PIXELS = 20;
     
     private int[] mWordWidth = new int[MAX_SUGGESTIONS];
@@ -0,0 +1,193 @@
+package com.accentype.android.softkeyboard;
+
+import java.util.Arrays;
+
+/**
+ * Primitive arrays split into fixed-size chunks, which copies share until they are written.
+ * Copying a large array then costs the array of its chunks rather than all of its entries,
+ * and a few writes to the copy only clone the chunks they touch. Used by {@link PhraseMap},
+ * whose tables are copied for every batch of learned phrases.
+ *
+ * Reads cost one more array access than a plain array. An array & its copies must only be
+ * written by one thread, while other threads read the copies that are no longer written.
+ */
+class ChunkedArray {
+    static final int ChunkShift = 10;
+    static final int ChunkSize = 1 << ChunkShift;
+    private static final int ChunkMask = ChunkSize - 1;
+
+    /**
+     * Rounds a length up to whole chunks, once it is over one chunk.
+     */
+    static int roundLength(int length) {
+        return length <= ChunkSize ? length : (length + ChunkMask) & ~ChunkMask;
+    }
+
+    private static int numChunks(int length) {
+        return length <= ChunkSize ? 1 : length >>> ChunkShift;
+    }
+
+    static class OfLong {
+        private long[][] mChunks;
+        // whether each chunk is referenced by this array only, so that it is written in place
+        private boolean[] mOwned;
+        private int mLength;
+
+        OfLong(int length) {
+            mLength = roundLength(length);
+            mChunks = new long[numChunks(mLength)][];
+            mOwned = new boolean[mChunks.length];
+            for (int c = 0; c < mChunks.length; c++) {
+                mChunks[c] = new long[Math.min(mLength, ChunkSize)];
+                mOwned[c] = true;
+            }
+        }
+
+        /**
+         * Creates a copy sharing the chunks of another array, until either of them is written.
+         */
+        OfLong(OfLong other) {
+            mChunks = other.mChunks.clone();
+            mOwned = new boolean[mChunks.length];
+            mLength = other.mLength;
+            Arrays.fill(other.mOwned, false);
+        }
+
+        int length() {
+            return mLength;
+        }
+
+        long get(int i) {
+            return mChunks[i >>> ChunkShift][i & ChunkMask];
+        }
+
+        void set(int i, long value) {
+            int c = i >>> ChunkShift;
+            long[] chunk = mChunks[c];
+            // writes that change nothing do not clone the chunk
+            if (chunk[i & ChunkMask] == value) {
+                return;
+            }
+            if (!mOwned[c]) {
+                chunk = chunk.clone();
+                mChunks[c] = chunk;
+                mOwned[c] = true;
+            }
+            chunk[i & ChunkMask] = value;
+        }
+
+        /**
+         * Grows the array to at least the specified length, adding chunks rather than copying
+         * the entries once it is over one chunk.
+         */
+        void grow(int length) {
+            length = roundLength(length);
+            if (length <= mLength) {
+                return;
+            }
+            if (length <= ChunkSize || mLength < ChunkSize) {
+                long[] grown = new long[Math.min(length, ChunkSize)];
+                System.arraycopy(mChunks[0], 0, grown, 0, mLength);
+                mChunks[0] = grown;
+                mOwned[0] = true;
+                mLength = grown.length;
+            }
+            int numChunks = numChunks(length);
+            if (numChunks > mChunks.length) {
+                long[][] chunks = new long[numChunks][];
+                boolean[] owned = new boolean[numChunks];
+                System.arraycopy(mChunks, 0, chunks, 0, mChunks.length);
+                System.arraycopy(mOwned, 0, owned, 0, mOwned.length);
+                for (int c = mChunks.length; c < numChunks; c++) {
+                    chunks[c] = new long[ChunkSize];
+                    owned[c] = true;
+                }
+                mChunks = chunks;
+                mOwned = owned;
+                mLength = length;
+            }
+        }
+    }
+
+    static class OfInt {
+        private int[][] mChunks;
+        // whether each chunk is referenced by this array only, so that it is written in place
+        private boolean[] mOwned;
+        private int mLength;
+
+        OfInt(int length) {
+            mLength = roundLength(length);
+            mChunks = new int[numChunks(mLength)][];
+            mOwned = new boolean[mChunks.length];
+            for (int c = 0; c < mChunks.length; c++) {
+                mChunks[c] = new int[Math.min(mLength, ChunkSize)];
+                mOwned[c] = true;
+            }
+        }
+
+        /**
+         * Creates a copy sharing the chunks of another array, until either of them is written.
+         */
+        OfInt(OfInt other) {
+            mChunks = other.mChunks.clone();
+            mOwned = new boolean[mChunks.length];
+            mLength = other.mLength;
+            Arrays.fill(other.mOwned, false);
+        }
+
+        int length() {
+            return mLength;
+        }
+
+        int get(int i) {
+            return mChunks[i >>> ChunkShift][i & ChunkMask];
+        }
+
+        void set(int i, int value) {
+            int c = i >>> ChunkShift;
+            int[] chunk = mChunks[c];
+            // writes that change nothing do not clone the chunk
+            if (chunk[i & ChunkMask] == value) {
+                return;
+            }
+            if (!mOwned[c]) {
+                chunk = chunk.clone();
+                mChunks[c] = chunk;
+                mOwned[c] = true;
+            }
+            chunk[i & ChunkMask] = value;
+        }
+
+        /**
+         * Grows the array to at least the specified length, adding chunks rather than copying
+         * the entries once it is over one chunk.
+         */
+        void grow(int length) {
+            length = roundLength(length);
+            if (length <= mLength) {
+                return;
+            }
+            if (length <= ChunkSize || mLength < ChunkSize) {
+                int[] grown = new int[Math.min(length, ChunkSize)];
+                System.arraycopy(mChunks[0], 0, grown, 0, mLength);
+                mChunks[0] = grown;
+                mOwned[0] = true;
+                mLength = grown.length;
+            }
+            int numChunks = numChunks(length);
+            if (numChunks > mChunks.length) {
+                int[][] chunks = new int[numChunks][];
+                boolean[] owned = new boolean[numChunks];
+                System.arraycopy(mChunks, 0, chunks, 0, mChunks.length);
+                System.arraycopy(mOwned, 0, owned, 0, mOwned.length);
+                for (int c = mChunks.length; c < numChunks; c++) {
+                    chunks[c] = new int[ChunkSize];
+                    owned[c] = true;
+                }
+                mChunks = chunks;
+                mOwned = owned;
+                mLength = length;
+            }
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package com.accentype.android.softkeyboard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Model that asks several models in parallel and fuses their answers.
+ *
+ * Each query runs on every model at once, on a small pool of threads, and only the answers
+ * that arrive within the latency budget are used, so a query takes about as long as the
+ * slowest model that is still on time rather than the sum of all of them. Answers are fused
+ * word by word: each word takes the accents that the most weight of models agree on, so one
+ * model can fill in the words another one left as dots. Alternatives are ranked by the
+ * weighted reciprocal of their rank in each model.
+ *
+ * Cancelling a late model cannot stop it if it does not respond to interrupts, e.g. while it
+ * waits for a lock, so a model is not asked again until its last task has returned. A model
+ * stuck in a call then holds at most one thread of the pool and misses the queries meanwhile,
+ * rather than filling the pool and holding up the other models.
+ *
+ * Predictions are in the format of {@link LinearBackoffInterpolationModel#predict(String)},
+ * i.e. without whitespaces, whatever the format of the models.
+ */
+public class CompositeModel implements BaseModel {
+    public static final int DefaultNumThreads = 3;
+    public static final long DefaultLatencyBudget = 50;
+
+    private final ExecutorService mExecutor;
+    private volatile BaseModel[] mModels = new BaseModel[0];
+    private volatile float[] mWeights = new float[0];
+    // whether each model has a task queued or running, in the order of the models
+    private volatile AtomicBoolean[] mBusy = new AtomicBoolean[0];
+    private volatile long mLatencyBudget = DefaultLatencyBudget;
+
+    public CompositeModel() {
+        this(DefaultNumThreads);
+    }
+
+    public CompositeModel(int numThreads) {
+        mExecutor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private int mNumThreads;
+
+            @Override public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CompositeModel-" + (++mNumThreads));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Adds a model. Models added first win ties between answers of equal weight.
+     *
+     * @param weight The weight of the model's answers, relative to the other models.
+     */
+    public synchronized void addModel(BaseModel model, float weight) {
+        int n = mModels.length;
+        BaseModel[] models = new BaseModel[n + 1];
+        float[] weights = new float[n + 1];
+        AtomicBoolean[] busy = new AtomicBoolean[n + 1];
+        System.arraycopy(mModels, 0, models, 0, n);
+        System.arraycopy(mWeights, 0, weights, 0, n);
+        System.arraycopy(mBusy, 0, busy, 0, n);
+        models[n] = model;
+        weights[n] = weight;
+        busy[n] = new AtomicBoolean();
+        mWeights = weights;
+        mBusy = busy;
+        mModels = models;
+    }
+
+    /**
+     * Sets how long a query waits for the models to answer, after which the models that have
+     * not answered yet are left out.
+     */
+    public void setLatencyBudget(long latencyBudgetMillis) {
+        mLatencyBudget = latencyBudgetMillis;
+    }
+
+    @Override public String predict(final String rawPhrase) {
+        if (rawPhrase == null) {
+            return null;
+        }
+        BaseModel[] models = mModels;
+        List<Callable<String>> tasks = new ArrayList<>(models.length);
+        for (final BaseModel model : models) {
+            tasks.add(new Callable<String>() {
+                @Override public String call() throws Exception {
+                    return model.predict(rawPhrase);
+                }
+            });
+        }
+        return fuse(rawPhrase, invokeAll(tasks));
+    }
+
+    @Override public List<String> predictAlternatives(final String rawPhrase, final int maxAlternatives) {
+        List<String> alternatives = new ArrayList<>();
+        if (rawPhrase == null || maxAlternatives <= 0) {
+            return alternatives;
+        }
+        BaseModel[] models = mModels;
+        float[] weights = mWeights;
+        List<Callable<List<String>>> tasks = new ArrayList<>(models.length);
+        for (final BaseModel model : models) {
+            tasks.add(new Callable<List<String>>() {
+                @Override public List<String> call() throws Exception {
+                    return model.predictAlternatives(rawPhrase, maxAlternatives);
+                }
+            });
+        }
+        List<List<String>> answers = invokeAll(tasks);
+
+        int length = countNonWhitespace(rawPhrase);
+        List<Float> scores = new ArrayList<>();
+        for (int m = 0; m < answers.size(); m++) {
+            List<String> answer = answers.get(m);
+            if (answer == null) {
+                continue;
+            }
+            for (int rank = 0; rank < answer.size(); rank++) {
+                String alternative = removeWhitespaces(answer.get(rank));
+                if (alternative.length() != length) {
+                    continue;
+                }
+                float score = weights[m] / (rank + 1);
+                int i = alternatives.indexOf(alternative);
+                if (i < 0) {
+                    alternatives.add(alternative);
+                    scores.add(score);
+                }
+                else {
+                    scores.set(i, scores.get(i) + score);
+                }
+            }
+        }
+
+        // insertion sort, stable so that ties keep the order of the models
+        for (int i = 1; i < alternatives.size(); i++) {
+            String alternative = alternatives.get(i);
+            float score = scores.get(i);
+            int j = i;
+            while (j > 0 && scores.get(j - 1) < score) {
+                alternatives.set(j, alternatives.get(j - 1));
+                scores.set(j, scores.get(j - 1));
+                j--;
+            }
+            alternatives.set(j, alternative);
+            scores.set(j, score);
+        }
+        while (alternatives.size() > maxAlternatives) {
+            alternatives.remove(alternatives.size() - 1);
+        }
+        return alternatives;
+    }
+
+    @Override public PredictionFuture predictAsync(String rawPhrase, long deadlineMillis) {
+        return PredictionFuture.submit(this, rawPhrase, deadlineMillis);
+    }
+
+    @Override public PredictionSession newSession() {
+        return new CompositeSession();
+    }
+
+    @Override public void learn(String rawPhrase, String accentPhrase) {
+        for (BaseModel model : mModels) {
+            model.learn(rawPhrase, accentPhrase);
+        }
+    }
+
+    @Override public void dispose() {
+        for (BaseModel model : mModels) {
+            model.dispose();
+        }
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Gets the version of the first model.
+     */
+    @Override public int version() {
+        BaseModel[] models = mModels;
+        return models.length > 0 ? models[0].version() : 0;
+    }
+
+    /**
+     * Runs the tasks in parallel and waits for them until the latency budget runs out. The
+     * models that are still busy with an earlier task are skipped.
+     *
+     * @param tasks A task for each model, in the order of the models.
+     * @return The results in the order of the tasks, null for the tasks that failed, were
+     * skipped or did not complete in time.
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mLatencyBudget);
+        AtomicBoolean[] busy = mBusy;
+        List<ModelTask<T>> modelTasks = new ArrayList<>(tasks.size());
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (int m = 0; m < tasks.size(); m++) {
+            if (!busy[m].compareAndSet(false, true)) {
+                LogUtil.LogMessage(this.getClass().getName(), "Model " + m + " is still busy");
+                modelTasks.add(null);
+                futures.add(null);
+                continue;
+            }
+            ModelTask<T> modelTask = new ModelTask<>(tasks.get(m), busy[m]);
+            modelTasks.add(modelTask);
+            futures.add(mExecutor.submit(modelTask));
+        }
+
+        List<T> results = new ArrayList<>(tasks.size());
+        boolean isInterrupted = false;
+        for (int m = 0; m < futures.size(); m++) {
+            Future<T> future = futures.get(m);
+            if (future == null) {
+                results.add(null);
+                continue;
+            }
+            T result = null;
+            try {
+                if (!isInterrupted) {
+                    result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+            }
+            catch (TimeoutException ex) {
+                LogUtil.LogMessage(this.getClass().getName(), "Model " + results.size() + " missed the latency budget");
+            }
+            catch (ExecutionException ex) {
+                LogUtil.LogError(this.getClass().getName(), "Error in model " + results.size(), ex);
+            }
+            catch (InterruptedException ex) {
+                isInterrupted = true;
+            }
+            // let late models stop early if they can
+            future.cancel(true);
+            modelTasks.get(m).cancelIfQueued();
+            results.add(result);
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+
+    /**
+     * Task of a model, which keeps the model busy from when it is queued until it returns, even
+     * if it is cancelled meanwhile.
+     */
+    private static class ModelTask<T> implements Callable<T> {
+        private static final int Queued = 0;
+        private static final int Running = 1;
+        private static final int Finished = 2;
+
+        private final Callable<T> mTask;
+        private final AtomicBoolean mBusy;
+        private final AtomicInteger mState = new AtomicInteger(Queued);
+
+        ModelTask(Callable<T> task, AtomicBoolean busy) {
+            mTask = task;
+            mBusy = busy;
+        }
+
+        @Override public T call() throws Exception {
+            if (!mState.compareAndSet(Queued, Running)) {
+                return null;
+            }
+            try {
+                return mTask.call();
+            }
+            finally {
+                mState.set(Finished);
+                mBusy.set(false);
+            }
+        }
+
+        /**
+         * Frees the model of a cancelled task that will never run.
+         */
+        void cancelIfQueued() {
+            if (mState.compareAndSet(Queued, Finished)) {
+                mBusy.set(false);
+            }
+        }
+    }
+
+    /**
+     * Fuses predictions word by word, taking the accents of each word that the most weight
+     * of models agree on.
+     *
+     * @return The fused prediction, null if no model predicted any word.
+     */
+    private String fuse(String rawPhrase, List<String> predictions) {
+        float[] weights = mWeights;
+        int length = countNonWhitespace(rawPhrase);
+        String[] compacted = new String[predictions.size()];
+        for (int m = 0; m < compacted.length; m++) {
+            String prediction = predictions.get(m);
+            if (prediction != null) {
+                prediction = removeWhitespaces(prediction);
+                // a prediction that does not line up with the phrase cannot be fused
+                compacted[m] = prediction.length() == length ? prediction : null;
+            }
+        }
+
+        StringBuilder fused = new StringBuilder(length);
+        boolean hasPrediction = false;
+        float[] votes = new float[compacted.length];
+        int start = 0;
+        int i = 0;
+        while (i < rawPhrase.length()) {
+            if (Character.isWhitespace(rawPhrase.charAt(i))) {
+                i++;
+                continue;
+            }
+            int end = start;
+            while (i < rawPhrase.length() && !Character.isWhitespace(rawPhrase.charAt(i))) {
+                end++;
+                i++;
+            }
+
+            // each model votes for its accents of the word, if it has any
+            int best = -1;
+            for (int m = 0; m < compacted.length; m++) {
+                votes[m] = 0;
+                if (compacted[m] == null || hasDots(compacted[m], start, end)) {
+                    continue;
+                }
+                int first = firstSameWord(compacted, m, start, end);
+                votes[first] += weights[m];
+                if (best < 0 || votes[first] > votes[best]) {
+                    best = first;
+                }
+            }
+            if (best < 0) {
+                for (int k = start; k < end; k++) {
+                    fused.append('.');
+                }
+            }
+            else {
+                fused.append(compacted[best], start, end);
+                hasPrediction = true;
+            }
+            start = end;
+        }
+        return hasPrediction ? fused.toString() : null;
+    }
+
+    /**
+     * Gets the first prediction with the same accents of a word as the specified one.
+     */
+    private static int firstSameWord(String[] predictions, int m, int start, int end) {
+        for (int first = 0; first < m; first++) {
+            if (sameWord(predictions[first], predictions[m], start, end)) {
+                return first;
+            }
+        }
+        return m;
+    }
+
+    private static boolean hasDots(String prediction, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (prediction.charAt(i) == '.') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean sameWord(String a, String b, int start, int end) {
+        return a != null && a.regionMatches(start, b, start, end - start);
+    }
+
+    private static int countNonWhitespace(String text) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String removeWhitespaces(String text) {
+        if (countNonWhitespace(text) == text.length()) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                sb.append(text.charAt(i));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Session that keeps a session of each model, and fans a prediction out to them like
+     * {@link #predict(String)}. The phrase is only handed to the model sessions by the tasks
+     * that predict, so that a model that is late never holds up typing.
+     */
+    private class CompositeSession extends BasePredictionSession {
+        private final StringBuilder mText = new StringBuilder();
+        private BaseModel[] mSessionModels = new BaseModel[0];
+        private PredictionSession[] mSessions = new PredictionSession[0];
+
+        @Override public synchronized void append(char c) {
+            mText.append(c);
+        }
+
+        @Override public synchronized void deleteLast() {
+            if (mText.length() > 0) {
+                mText.setLength(mText.length() - 1);
+            }
+        }
+
+        @Override public synchronized void update(CharSequence text) {
+            mText.setLength(0);
+            mText.append(text);
+        }
+
+        @Override public synchronized void reset() {
+            mText.setLength(0);
+        }
+
+        @Override protected CharSequence getText() {
+            return mText;
+        }
+
+        @Override public String predict() {
+            final String text;
+            PredictionSession[] sessions;
+            synchronized (this) {
+                text = mText.toString();
+                sessions = getSessions();
+            }
+            List<Callable<String>> tasks = new ArrayList<>(sessions.length);
+            for (final PredictionSession session : sessions) {
+                tasks.add(new Callable<String>() {
+                    @Override public String call() throws Exception {
+                        synchronized (session) {
+                            session.update(text);
+                            return session.predict();
+                        }
+                    }
+                });
+            }
+            return fuse(text, invokeAll(tasks));
+        }
+
+        /**
+         * Gets a session of each model, starting sessions for the models added since.
+         */
+        private PredictionSession[] getSessions() {
+            BaseModel[] models = mModels;
+            if (models != mSessionModels) {
+                PredictionSession[] sessions = new PredictionSession[models.length];
+                for (int m = 0; m < models.length; m++) {
+                    sessions[m] = m < mSessions.length && mSessionModels[m] == models[m] ?
+                        mSessions[m] : models[m].newSession();
+                }
+                mSessions = sessions;
+                mSessionModels = models;
+            }
+            return mSessions;
+        }
+    }
+}
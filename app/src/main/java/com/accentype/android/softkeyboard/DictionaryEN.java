@@ -2,16 +2,19 @@ package com.accentype.android.softkeyboard;
 
 import android.os.AsyncTask;
 
-import java.io.BufferedReader;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Collection;
+import java.util.List;
 
 /**
- * EN Dictionary as a simple trie for auto completion.
+ * EN Dictionary as a compact trie for auto completion, compiled at build time, see
+ * {@link DictionaryFile}.
  */
 public class DictionaryEN {
+    // edits tolerated in the typed prefix, see AutoCompleteTrie#fuzzyComplete
+    private static final int MaxEdits = 2;
+
     private AutoCompleteTrie mDictionary = new AutoCompleteTrie();
+    private volatile KeyProximity mKeyProximity = KeyProximity.qwerty();
 
     private static DictionaryEN instance = null;
 
@@ -27,26 +30,28 @@ public class DictionaryEN {
     }
 
     /**
-     * Gets the list of words that begin with the specified prefix.
+     * Gets the most frequent words that begin with the specified prefix, followed by the
+     * words that begin with a prefix close to it if there are not enough of them.
      * @param prefix The prefix.
-     * @return A list of words that begin with the specified prefix.
+     * @param maxResults The max number of words to return.
+     * @return A list of words that begin with the specified prefix, most frequent first.
+     */
+    public List<String> complete(String prefix, int maxResults) {
+        return mDictionary.fuzzyComplete(prefix, maxResults, MaxEdits, mKeyProximity);
+    }
+
+    /**
+     * Sets the layout of the keyboard that typos are made on.
      */
-    public Collection<String> complete(String prefix) {
-        return mDictionary.autoComplete(prefix);
+    public void setKeyProximity(KeyProximity keyProximity) {
+        mKeyProximity = keyProximity;
     }
 
     private class FromFileLoader extends AsyncTask<InputStream, Void, AutoCompleteTrie> {
         protected AutoCompleteTrie doInBackground(InputStream... dictFileStreams) {
             try
             {
-                InputStream accStream = dictFileStreams[0];
-                BufferedReader accReader = new BufferedReader(new InputStreamReader(accStream, "UTF-8"));
-                AutoCompleteTrie dictionary = new AutoCompleteTrie();
-                String line;
-                while ((line = accReader.readLine()) != null) {
-                    dictionary.insert(line.trim());
-                }
-                return dictionary;
+                return DictionaryFile.readWords(dictFileStreams[0]);
             }
             catch (Exception ex) {
                 LogUtil.LogError(this.getClass().getName(), "Cannot load auto-complete trie for English", ex);
@@ -0,0 +1,335 @@
+package com.accentype.android.softkeyboard;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Binary form of the dictionaries, compiled from their text files at build time (see the
+ * compileDictionaries task of the app module) so that they load with a bulk read and a few
+ * bulk array copies instead of reading & splitting lines and building structures on every
+ * start of the keyboard.
+ *
+ * Layout, with fixed ints big-endian:
+ * <pre>
+ * int magic, int version, int type, int length of the body
+ * body
+ * </pre>
+ * The body of an EN dictionary is the flat arrays of its {@link AutoCompleteTrie}, with the
+ * words scored by frequency. The body of a VN dictionary lists each unaccented syllable
+ * followed by its accented variants, as in the text file, in ascending order of the unaccented
+ * syllables:
+ * <pre>
+ * int numGroups, int numWords, int numBytes
+ * int[numGroups + 1] index of the first word of each group, the unaccented one
+ * int[numWords + 1] offset of the UTF-8 bytes of each word
+ * byte[numBytes] UTF-8 bytes of the words
+ * </pre>
+ */
+public class DictionaryFile {
+    public static final int Magic = 0x41544443;
+    public static final int Version = 1;
+    public static final int NotFound = -1;
+
+    static final int TypeWords = 1;
+    static final int TypeVariants = 2;
+
+    private static final int HeaderLength = 16;
+
+    /**
+     * Syllables & their accented variants of a VN dictionary, read in place from the file.
+     */
+    public static class Variants {
+        private final int[] mFirstWord;
+        private final int[] mOffsets;
+        private final byte[] mBytes;
+
+        private Variants(int[] firstWord, int[] offsets, byte[] bytes) {
+            mFirstWord = firstWord;
+            mOffsets = offsets;
+            mBytes = bytes;
+        }
+
+        /**
+         * Gets the number of unaccented syllables.
+         */
+        public int size() {
+            return mFirstWord.length - 1;
+        }
+
+        /**
+         * Finds an unaccented syllable within a larger text, ignoring case.
+         *
+         * @return The index of the syllable, or {@link #NotFound} if it is unknown.
+         */
+        public int find(CharSequence text, int start, int end) {
+            int lo = 0;
+            int hi = size() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int comparison = compare(mFirstWord[mid], text, start, end);
+                if (comparison == 0) {
+                    return mid;
+                }
+                if (comparison < 0) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid - 1;
+                }
+            }
+            return NotFound;
+        }
+
+        /**
+         * Gets the number of words of a syllable, the unaccented one & its variants.
+         */
+        public int getNumWords(int group) {
+            return mFirstWord[group + 1] - mFirstWord[group];
+        }
+
+        /**
+         * Gets a word of a syllable, the unaccented one first.
+         */
+        public String getWord(int group, int i) {
+            int word = mFirstWord[group] + i;
+            try {
+                return new String(mBytes, mOffsets[word], mOffsets[word + 1] - mOffsets[word], "UTF-8");
+            }
+            catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException("UTF-8 is not supported");
+            }
+        }
+
+        // compares UTF-8 bytes to lower-case chars, which orders the same as Strings for the
+        // unaccented syllables since they are ASCII
+        private int compare(int word, CharSequence text, int start, int end) {
+            int i = mOffsets[word];
+            int wordEnd = mOffsets[word + 1];
+            for (int j = start; j < end; j++, i++) {
+                if (i == wordEnd) {
+                    return -1;
+                }
+                int b = mBytes[i] & 0xFF;
+                int c = Character.toLowerCase(text.charAt(j));
+                if (b != c) {
+                    return b - c;
+                }
+            }
+            return i == wordEnd ? 0 : 1;
+        }
+    }
+
+    /**
+     * Compiles an EN dictionary, listing one word per line from the most frequent.
+     */
+    public static void compileWords(InputStream text, OutputStream out) throws IOException {
+        List<String> words = readLines(text);
+        AutoCompleteTrie.Builder builder = new AutoCompleteTrie.Builder();
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i).trim();
+            if (word.length() > 0) {
+                builder.insert(word, words.size() - i);
+            }
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        builder.build().write(new DataOutputStream(body));
+        write(TypeWords, body, out);
+    }
+
+    /**
+     * Compiles a VN dictionary, listing an unaccented syllable & its variants per line.
+     */
+    public static void compileVariants(InputStream text, OutputStream out) throws IOException {
+        List<String[]> groups = new ArrayList<>();
+        for (String line : readLines(text)) {
+            line = line.trim();
+            if (line.length() > 0) {
+                groups.add(line.toLowerCase().split("\\s+"));
+            }
+        }
+        // the order find() searches in, see Variants#compare
+        Collections.sort(groups, new Comparator<String[]>() {
+            @Override public int compare(String[] a, String[] b) {
+                return a[0].compareTo(b[0]);
+            }
+        });
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        List<Integer> offsets = new ArrayList<>();
+        int[] firstWord = new int[groups.size() + 1];
+        for (int g = 0; g < groups.size(); g++) {
+            String[] words = groups.get(g);
+            if (g > 0 && words[0].equals(groups.get(g - 1)[0])) {
+                throw new IOException("Duplicate syllable " + words[0]);
+            }
+            for (int i = 0; i < words[0].length(); i++) {
+                if (words[0].charAt(i) >= 0x80) {
+                    throw new IOException("Accented syllable " + words[0] + " listed first");
+                }
+            }
+            firstWord[g] = offsets.size();
+            for (String word : words) {
+                offsets.add(bytes.size());
+                byte[] utf8 = word.getBytes("UTF-8");
+                bytes.write(utf8, 0, utf8.length);
+            }
+        }
+        firstWord[groups.size()] = offsets.size();
+        offsets.add(bytes.size());
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(body);
+        data.writeInt(groups.size());
+        data.writeInt(offsets.size() - 1);
+        data.writeInt(bytes.size());
+        for (int first : firstWord) {
+            data.writeInt(first);
+        }
+        for (int offset : offsets) {
+            data.writeInt(offset);
+        }
+        bytes.writeTo(data);
+        write(TypeVariants, body, out);
+    }
+
+    /**
+     * Reads a compiled EN dictionary.
+     */
+    public static AutoCompleteTrie readWords(InputStream in) throws IOException {
+        return AutoCompleteTrie.read(read(TypeWords, in));
+    }
+
+    /**
+     * Reads a compiled VN dictionary.
+     */
+    public static Variants readVariants(InputStream in) throws IOException {
+        ByteBuffer buffer = read(TypeVariants, in);
+        try {
+            int numGroups = buffer.getInt();
+            int numWords = buffer.getInt();
+            int numBytes = buffer.getInt();
+            if (numGroups < 0 || numWords < numGroups || numBytes < 0 ||
+                4L * (numGroups + numWords + 2) + numBytes != buffer.remaining()) {
+                throw new IOException("Corrupt variants header");
+            }
+            int[] firstWord = new int[numGroups + 1];
+            buffer.asIntBuffer().get(firstWord);
+            buffer.position(buffer.position() + 4 * firstWord.length);
+            int[] offsets = new int[numWords + 1];
+            buffer.asIntBuffer().get(offsets);
+            buffer.position(buffer.position() + 4 * offsets.length);
+            byte[] bytes = new byte[numBytes];
+            buffer.get(bytes);
+
+            // lookups trust the ranges, so check that they stay within the arrays
+            for (int g = 0; g < numGroups; g++) {
+                if (firstWord[g] >= firstWord[g + 1]) {
+                    throw new IOException("Corrupt variants group " + g);
+                }
+            }
+            for (int w = 0; w < numWords; w++) {
+                if (offsets[w] < 0 || offsets[w] > offsets[w + 1]) {
+                    throw new IOException("Corrupt variants word " + w);
+                }
+            }
+            if (firstWord[0] != 0 || firstWord[numGroups] != numWords || offsets[numWords] != numBytes) {
+                throw new IOException("Corrupt variants");
+            }
+            return new Variants(firstWord, offsets, bytes);
+        }
+        catch (BufferUnderflowException ex) {
+            throw new IOException("Truncated variants");
+        }
+    }
+
+    private static void write(int type, ByteArrayOutputStream body, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(Magic);
+        data.writeInt(Version);
+        data.writeInt(type);
+        data.writeInt(body.size());
+        body.writeTo(data);
+        data.flush();
+    }
+
+    // reads the whole body in one bulk read
+    private static ByteBuffer read(int type, InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] header = new byte[HeaderLength];
+        in.readFully(header);
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        if (buffer.getInt() != Magic) {
+            throw new IOException("Not a dictionary file");
+        }
+        int version = buffer.getInt();
+        if (version != Version) {
+            throw new IOException("Unexpected dictionary version " + version);
+        }
+        int fileType = buffer.getInt();
+        if (fileType != type) {
+            throw new IOException("Unexpected dictionary type " + fileType);
+        }
+        int length = buffer.getInt();
+        if (length < 0) {
+            throw new IOException("Corrupt dictionary header");
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return ByteBuffer.wrap(body);
+    }
+
+    private static List<String> readLines(InputStream text) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(text, "UTF-8"));
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * Compiles dictionaries at build time.
+     *
+     * @param args For each dictionary, "en" or "vn", the text file and the compiled file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0 || args.length % 3 != 0) {
+            throw new IllegalArgumentException("Usage: (en|vn) <text file> <compiled file>...");
+        }
+        for (int i = 0; i < args.length; i += 3) {
+            InputStream in = new FileInputStream(args[i + 1]);
+            OutputStream out = new FileOutputStream(args[i + 2]);
+            try {
+                if (args[i].equals("en")) {
+                    compileWords(in, out);
+                }
+                else if (args[i].equals("vn")) {
+                    compileVariants(in, out);
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown dictionary " + args[i]);
+                }
+            }
+            finally {
+                in.close();
+                out.close();
+            }
+        }
+    }
+}
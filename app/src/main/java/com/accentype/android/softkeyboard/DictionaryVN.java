@@ -2,19 +2,27 @@ package com.accentype.android.softkeyboard;
 
 import android.os.AsyncTask;
 
-import java.io.BufferedReader;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 /**
- * VN Dictionary as a map from unaccented to a list of accented words.
+ * VN Dictionary as a map from unaccented to a list of accented words. The words and their
+ * variants are kept in the shared {@link Vocabulary}, so the choices also include accented
+ * words that have been learned.
+ *
+ * The dictionary is compiled at build time, see {@link DictionaryFile}. It answers from the
+ * compiled file as soon as it is read, while its words are added to the vocabulary.
+ *
+ * Partially typed syllables & phrases are completed by an {@link AccentCompletionIndex} of the
+ * syllables and of the phrases learned.
  */
 public class DictionaryVN {
     private static DictionaryVN instance = null;
-    private HashMap<String, String[]> mDictionary = null;
+    private Vocabulary mVocabulary = Vocabulary.getInstance();
+    private volatile boolean mLoaded = false;
+    private volatile DictionaryFile.Variants mVariants;
+    private final AccentCompletionIndex mCompletionIndex = new AccentCompletionIndex();
+    private boolean mHistoryAdded = false;
 
     protected DictionaryVN(InputStream dictFileStream) {
         new FromFileLoader().execute(dictFileStream);
@@ -43,56 +51,123 @@ public class DictionaryVN {
      * @return A list of accented words corresponding to the specified word in the query phrase.
      */
     public String[] get(String query, int iWord) {
-        if (mDictionary != null && query != null) {
-            String[] rawWords = query.trim().split("\\s+");
-            if (iWord < rawWords.length) {
-                String rawWord = rawWords[iWord];
-                String rawWordLower = rawWord.toLowerCase();
-                if (mDictionary.containsKey(rawWordLower)) {
-                    List<Integer> upperCaseLocations = new ArrayList<>();
-                    for (int i = 0; i < rawWord.length(); i++) {
-                        if (Character.isUpperCase(rawWord.charAt(i))) {
-                            upperCaseLocations.add(i);
-                        }
-                    }
-                    // Normalize case w.r.t raw word
-                    String[] dictionaryChoices = mDictionary.get(rawWordLower);
-                    String[] additionalChoices = new String[dictionaryChoices.length];
-                    for (int i = 0; i < dictionaryChoices.length; i++) {
-                        char[] choiceChars = dictionaryChoices[i].toCharArray();
-                        for (int j = 0; j < upperCaseLocations.size(); j++) {
-                            choiceChars[j] = Character.toUpperCase(choiceChars[j]);
-                        }
-                        additionalChoices[i] = new String(choiceChars);
-                    }
-                    return additionalChoices;
+        DictionaryFile.Variants variants = mVariants;
+        if ((mLoaded || variants != null) && query != null) {
+            // find the boundaries of the word in place
+            int start = 0;
+            int end = 0;
+            for (int w = 0; w <= iWord; w++) {
+                start = end;
+                while (start < query.length() && Character.isWhitespace(query.charAt(start))) {
+                    start++;
+                }
+                end = start;
+                while (end < query.length() && !Character.isWhitespace(query.charAt(end))) {
+                    end++;
                 }
             }
+            if (start == end) {
+                return null;
+            }
+            if (!mLoaded) {
+                return get(variants, query, start, end);
+            }
+            int rawId = mVocabulary.find(query, start, end);
+            int numChoices = 0;
+            for (int v = mVocabulary.firstVariant(rawId); v != Vocabulary.None; v = mVocabulary.nextVariant(v)) {
+                numChoices++;
+            }
+            if (numChoices > 0) {
+                // Normalize case w.r.t raw word
+                String rawWord = query.substring(start, end);
+                String[] choices = new String[numChoices];
+                int i = 0;
+                for (int v = mVocabulary.firstVariant(rawId);
+                     v != Vocabulary.None && i < numChoices;
+                     v = mVocabulary.nextVariant(v)) {
+                    choices[i++] = StringUtil.normalizeWordCasePreserve(rawWord, mVocabulary.get(v));
+                }
+                return choices;
+            }
         }
         return null;
     }
 
-    private class FromFileLoader extends AsyncTask<InputStream, Void, HashMap<String, String[]>> {
-        protected HashMap<String, String[]> doInBackground(InputStream... dictFileStreams) {
+    /**
+     * Gets the best accented completions of a phrase being typed. It searches every level of
+     * the completion index, so the keyboard calls it in the background with the predictions.
+     * @param query The phrase typed so far.
+     * @param maxResults The max number of completions to return.
+     * @return A list of completions of the phrase or of its last syllables, best first.
+     */
+    public List<String> complete(String query, int maxResults) {
+        return mCompletionIndex.complete(query, maxResults);
+    }
+
+    /**
+     * Learns an accented phrase that was typed, for it to be completed.
+     */
+    public void learn(String accentPhrase) {
+        mCompletionIndex.learn(accentPhrase);
+    }
+
+    /**
+     * Adds the phrases learned before to the completion index. The dictionary lives as long
+     * as the process, so this is done once, when the keyboard first starts, and not again each
+     * time it is recreated, which would count the phrases again.
+     */
+    public synchronized void addHistory(LinearBackoffInterpolationModel model) {
+        if (!mHistoryAdded) {
+            mHistoryAdded = true;
+            model.replayHistory(mCompletionIndex);
+        }
+    }
+
+    /**
+     * Gets the choices of a word from the compiled dictionary, before the vocabulary is loaded.
+     */
+    private static String[] get(DictionaryFile.Variants variants, String query, int start, int end) {
+        int group = variants.find(query, start, end);
+        if (group == DictionaryFile.NotFound) {
+            return null;
+        }
+        String rawWord = query.substring(start, end);
+        String[] choices = new String[variants.getNumWords(group)];
+        for (int i = 0; i < choices.length; i++) {
+            choices[i] = StringUtil.normalizeWordCasePreserve(rawWord, variants.getWord(group, i));
+        }
+        return choices;
+    }
+
+    private class FromFileLoader extends AsyncTask<InputStream, DictionaryFile.Variants, Boolean> {
+        protected Boolean doInBackground(InputStream... dictFileStreams) {
             try {
-                InputStream accStream = dictFileStreams[0];
-                BufferedReader accReader = new BufferedReader(new InputStreamReader(accStream, "UTF-8"));
-                HashMap<String, String[]> dictionary = new HashMap<>();
-                String line;
-                while ((line = accReader.readLine()) != null) {
-                    String[] words = line.split("\\s+");
-                    dictionary.put(words[0], words);
+                DictionaryFile.Variants variants = DictionaryFile.readVariants(dictFileStreams[0]);
+                publishProgress(variants);
+                mCompletionIndex.addDictionary(variants);
+                for (int group = 0; group < variants.size(); group++) {
+                    // the unaccented word comes first and is also one of its choices
+                    for (int i = 0; i < variants.getNumWords(group); i++) {
+                        mVocabulary.addVariant(mVocabulary.intern(variants.getWord(group, i)));
+                    }
                 }
-                return dictionary;
+                return true;
             }
             catch (Exception ex) {
                 LogUtil.LogError(this.getClass().getName(), "Error in async vn dict load", ex);
             }
-            return null;
+            return false;
+        }
+
+        protected void onProgressUpdate(DictionaryFile.Variants... variants) {
+            mVariants = variants[0];
         }
 
-        protected void onPostExecute(HashMap<String, String[]> dictionary) {
-            mDictionary = dictionary;
+        protected void onPostExecute(Boolean loaded) {
+            mLoaded = loaded;
+            if (loaded) {
+                mVariants = null;
+            }
         }
     }
 }
@@ -0,0 +1,121 @@
+package com.accentype.android.softkeyboard;
+
+/**
+ * Open-addressing index from 64-bit key fingerprints to the numbered slots of a record store,
+ * e.g. the slots of {@link LookupModel}'s file. Slots of the same fingerprint are chained,
+ * newest first, and the table only holds primitives so probing stays within a few arrays.
+ *
+ * Different keys may still share a fingerprint, so callers compare the key stored in each
+ * slot of the chain.
+ */
+public class FingerprintIndex {
+    public static final int NoSlot = -1;
+
+    private long[] mFingerprints;
+    // first slot of the fingerprint + 1, so that 0 is empty
+    private int[] mHeads;
+    // next slot with the same fingerprint, indexed by slot
+    private int[] mNextSlot;
+    private int mNumFingerprints;
+
+    public FingerprintIndex(int expectedSlots) {
+        int capacity = 16;
+        while (capacity < expectedSlots * 2) {
+            capacity <<= 1;
+        }
+        mFingerprints = new long[capacity];
+        mHeads = new int[capacity];
+        mNextSlot = new int[Math.max(16, expectedSlots)];
+    }
+
+    /**
+     * Fingerprints a UTF-8 key with 64-bit FNV-1a.
+     */
+    public static long fingerprint(byte[] bytes, int offset, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= bytes[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Gets the newest slot with the specified fingerprint, {@link #NoSlot} if none.
+     */
+    public int first(long fingerprint) {
+        int mask = mHeads.length - 1;
+        for (int i = hash(fingerprint) & mask; mHeads[i] != 0; i = (i + 1) & mask) {
+            if (mFingerprints[i] == fingerprint) {
+                return mHeads[i] - 1;
+            }
+        }
+        return NoSlot;
+    }
+
+    /**
+     * Gets the next older slot with the same fingerprint, {@link #NoSlot} if none.
+     */
+    public int next(int slot) {
+        return mNextSlot[slot];
+    }
+
+    /**
+     * Adds a slot, which becomes the first of its fingerprint.
+     */
+    public void add(long fingerprint, int slot) {
+        if (slot >= mNextSlot.length) {
+            int length = mNextSlot.length;
+            while (length <= slot) {
+                length *= 2;
+            }
+            int[] nextSlot = new int[length];
+            System.arraycopy(mNextSlot, 0, nextSlot, 0, mNextSlot.length);
+            mNextSlot = nextSlot;
+        }
+        if ((mNumFingerprints + 1) * 2 > mHeads.length) {
+            rehash(mHeads.length * 2);
+        }
+        int mask = mHeads.length - 1;
+        int i = hash(fingerprint) & mask;
+        while (mHeads[i] != 0 && mFingerprints[i] != fingerprint) {
+            i = (i + 1) & mask;
+        }
+        if (mHeads[i] == 0) {
+            mNumFingerprints++;
+        }
+        mNextSlot[slot] = mHeads[i] - 1;
+        mFingerprints[i] = fingerprint;
+        mHeads[i] = slot + 1;
+    }
+
+    /**
+     * Gets the number of distinct fingerprints.
+     */
+    public int size() {
+        return mNumFingerprints;
+    }
+
+    private void rehash(int capacity) {
+        long[] fingerprints = mFingerprints;
+        int[] heads = mHeads;
+        mFingerprints = new long[capacity];
+        mHeads = new int[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < heads.length; j++) {
+            if (heads[j] != 0) {
+                int i = hash(fingerprints[j]) & mask;
+                while (mHeads[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                mFingerprints[i] = fingerprints[j];
+                mHeads[i] = heads[j];
+            }
+        }
+    }
+
+    private static int hash(long fingerprint) {
+        // FNV mixes the low bits poorly, fold the high ones in
+        return (int)(fingerprint ^ (fingerprint >>> 32));
+    }
+}
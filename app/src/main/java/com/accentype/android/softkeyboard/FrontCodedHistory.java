@@ -0,0 +1,255 @@
+package com.accentype.android.softkeyboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encoding of a {@link PhraseHistory} as sorted, front-coded blocks of phrases, used by the
+ * history section of {@link ModelSnapshotFile}. Learned phrases share long prefixes, so each
+ * phrase only stores the bytes that differ from the previous one.
+ *
+ * Layout, all varints (see {@link VarInt}):
+ * <pre>
+ * numPhrases, numBlocks
+ * numBlocks x (first phrase as a string, offset, storedLength, rawLength &lt;&lt; 1 | deflated)
+ * blocks
+ * </pre>
+ * Each block holds up to {@link #BlockSize} phrases, the last one possibly fewer, as (shared
+ * prefix length with the previous phrase in UTF-8 bytes, suffix length, suffix bytes, count).
+ * The first phrase of a block shares nothing, so blocks decode on their own, and a block is
+ * deflated when that makes it smaller. The index of first phrases lets a single phrase be
+ * found by decoding only its block.
+ */
+public class FrontCodedHistory {
+    public static final int BlockSize = 64;
+
+    /**
+     * Writes a history.
+     *
+     * @param deflate Whether to try deflating the blocks.
+     */
+    public static void write(ByteArrayOutputStream out, PhraseHistory history, boolean deflate) throws IOException {
+        List<String> phrases = new ArrayList<>(history.keySet());
+        Collections.sort(phrases);
+        int numBlocks = (phrases.size() + BlockSize - 1) / BlockSize;
+
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+        byte[] deflated = new byte[1024];
+        try {
+            for (int b = 0; b < numBlocks; b++) {
+                block.reset();
+                byte[] previous = new byte[0];
+                int end = Math.min(phrases.size(), (b + 1) * BlockSize);
+                for (int i = b * BlockSize; i < end; i++) {
+                    byte[] bytes = phrases.get(i).getBytes("UTF-8");
+                    int shared = 0;
+                    int max = Math.min(bytes.length, previous.length);
+                    while (shared < max && bytes[shared] == previous[shared]) {
+                        shared++;
+                    }
+                    VarInt.write(block, shared);
+                    VarInt.write(block, bytes.length - shared);
+                    block.write(bytes, shared, bytes.length - shared);
+                    VarInt.write(block, history.get(phrases.get(i)));
+                    previous = bytes;
+                }
+
+                byte[] raw = block.toByteArray();
+                int storedLength = raw.length;
+                boolean isDeflated = false;
+                if (deflater != null) {
+                    deflater.reset();
+                    deflater.setInput(raw);
+                    deflater.finish();
+                    if (deflated.length < raw.length) {
+                        deflated = new byte[raw.length];
+                    }
+                    int length = deflater.deflate(deflated);
+                    // keep it only if it is complete & smaller
+                    if (deflater.finished() && length < raw.length) {
+                        storedLength = length;
+                        isDeflated = true;
+                    }
+                }
+
+                VarInt.writeString(index, phrases.get(b * BlockSize));
+                VarInt.write(index, blocks.size());
+                VarInt.write(index, storedLength);
+                VarInt.write(index, ((long)raw.length << 1) | (isDeflated ? 1 : 0));
+                blocks.write(isDeflated ? deflated : raw, 0, storedLength);
+            }
+        }
+        finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+
+        VarInt.write(out, phrases.size());
+        VarInt.write(out, numBlocks);
+        index.writeTo(out);
+        blocks.writeTo(out);
+    }
+
+    /**
+     * Reads a history written by {@link #write}, either whole or a phrase at a time.
+     */
+    public static class Reader {
+        private final byte[] mData;
+        private final int mNumPhrases;
+        private final String[] mFirstPhrases;
+        private final int[] mOffsets;
+        private final int[] mStoredLengths;
+        private final long[] mRawLengths;
+
+        /**
+         * Reads the block index of a history in a range of a byte array.
+         */
+        public Reader(byte[] data, int start, int end) throws IOException {
+            mData = data;
+            VarInt.Reader reader = new VarInt.Reader(data, start, end);
+            mNumPhrases = reader.hasMore() ? reader.readInt() : 0;
+            int numBlocks = reader.hasMore() ? reader.readInt() : 0;
+            if (numBlocks != (mNumPhrases + BlockSize - 1) / BlockSize) {
+                throw new IOException("Unexpected number of history blocks " + numBlocks);
+            }
+            mFirstPhrases = new String[numBlocks];
+            mOffsets = new int[numBlocks];
+            mStoredLengths = new int[numBlocks];
+            mRawLengths = new long[numBlocks];
+            for (int b = 0; b < numBlocks; b++) {
+                mFirstPhrases[b] = reader.readString();
+                mOffsets[b] = reader.readInt();
+                mStoredLengths[b] = reader.readInt();
+                mRawLengths[b] = reader.readLong();
+            }
+            // make the offsets absolute
+            int blocksStart = end - reader.remaining();
+            for (int b = 0; b < numBlocks; b++) {
+                mOffsets[b] += blocksStart;
+                if (mOffsets[b] < blocksStart || mOffsets[b] + mStoredLengths[b] > end || mStoredLengths[b] < 0) {
+                    throw new IOException("History block " + b + " out of range");
+                }
+            }
+        }
+
+        public int size() {
+            return mNumPhrases;
+        }
+
+        /**
+         * Decodes all the phrases into a history.
+         */
+        public void readAll(PhraseHistory history) throws IOException {
+            for (int b = 0; b < mFirstPhrases.length; b++) {
+                readBlock(b, null, history);
+            }
+        }
+
+        public int numBlocks() {
+            return mFirstPhrases.length;
+        }
+
+        /**
+         * Decodes the phrases of a block into a history, so that a large history can be
+         * processed a few blocks at a time.
+         */
+        public void readBlock(int b, PhraseHistory history) throws IOException {
+            readBlock(b, null, history);
+        }
+
+        /**
+         * Gets the count of a phrase by decoding only the block it would be in.
+         *
+         * @return The count, 0 if the phrase is not in the history.
+         */
+        public int get(String phrase) throws IOException {
+            // last block whose first phrase is not after the phrase
+            int low = 0;
+            int high = mFirstPhrases.length - 1;
+            int block = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (mFirstPhrases[mid].compareTo(phrase) <= 0) {
+                    block = mid;
+                    low = mid + 1;
+                }
+                else {
+                    high = mid - 1;
+                }
+            }
+            if (block < 0) {
+                return 0;
+            }
+            return readBlock(block, phrase, null);
+        }
+
+        /**
+         * Decodes a block, adding its phrases to a history or looking for a phrase.
+         *
+         * @return The count of the phrase looked for, 0 if not found.
+         */
+        private int readBlock(int b, String phrase, PhraseHistory history) throws IOException {
+            byte[] data = mData;
+            int start = mOffsets[b];
+            int end = start + mStoredLengths[b];
+            if ((mRawLengths[b] & 1) != 0) {
+                int rawLength = (int)(mRawLengths[b] >>> 1);
+                data = new byte[rawLength];
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(mData, start, mStoredLengths[b]);
+                    if (inflater.inflate(data) != rawLength || !inflater.finished()) {
+                        throw new IOException("Truncated history block " + b);
+                    }
+                }
+                catch (DataFormatException ex) {
+                    throw new IOException("Corrupt history block " + b + ": " + ex.getMessage());
+                }
+                finally {
+                    inflater.end();
+                }
+                start = 0;
+                end = rawLength;
+            }
+
+            VarInt.Reader reader = new VarInt.Reader(data, start, end);
+            int numPhrases = Math.min(BlockSize, mNumPhrases - b * BlockSize);
+            byte[] previous = new byte[64];
+            int previousLength = 0;
+            for (int i = 0; i < numPhrases; i++) {
+                int shared = reader.readInt();
+                int suffixLength = reader.readInt();
+                if (shared > previousLength || suffixLength > end - start) {
+                    throw new IOException("Corrupt history block " + b);
+                }
+                int length = shared + suffixLength;
+                if (length > previous.length) {
+                    byte[] bytes = new byte[Math.max(length, previous.length * 2)];
+                    System.arraycopy(previous, 0, bytes, 0, shared);
+                    previous = bytes;
+                }
+                reader.readBytes(previous, shared, suffixLength);
+                previousLength = length;
+                String current = new String(previous, 0, length, "UTF-8");
+                int count = reader.readInt();
+                if (history != null) {
+                    history.put(current, count);
+                }
+                else if (current.equals(phrase)) {
+                    return count;
+                }
+            }
+            return 0;
+        }
+    }
+}
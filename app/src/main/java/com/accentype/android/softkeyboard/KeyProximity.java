@@ -0,0 +1,90 @@
+package com.accentype.android.softkeyboard;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Costs of mistyping one letter for another, from the positions of their keys: letters on keys
+ * that touch, e.g. 'q' & 'w' or 'q' & 'a', cost {@link #NearCost}, any other letter costs a
+ * whole edit. Used by the typo-tolerant completion of {@link AutoCompleteTrie}.
+ */
+public class KeyProximity {
+    public static final int NearCost = 1;
+    public static final int EditCost = 2;
+
+    // costs between characters below 128, other characters cost an edit unless equal
+    private static final int TableSize = 128;
+
+    private final byte[] mCosts;
+
+    private KeyProximity(byte[] costs) {
+        mCosts = costs;
+    }
+
+    /**
+     * Collects the keys of a layout.
+     */
+    public static class Builder {
+        private final List<int[]> mKeys = new ArrayList<>();
+
+        /**
+         * Adds a letter key, by its bounds as in {@link android.inputmethodservice.Keyboard.Key}.
+         */
+        public Builder addKey(char label, int x, int y, int width, int height) {
+            mKeys.add(new int[] { Character.toLowerCase(label), x, y, width, height });
+            return this;
+        }
+
+        public KeyProximity build() {
+            byte[] costs = new byte[TableSize * TableSize];
+            for (int i = 0; i < costs.length; i++) {
+                costs[i] = (byte)(i / TableSize == i % TableSize ? 0 : EditCost);
+            }
+            for (int[] a : mKeys) {
+                for (int[] b : mKeys) {
+                    if (a[0] >= TableSize || b[0] >= TableSize || a[0] == b[0]) {
+                        continue;
+                    }
+                    // keys touch if their centers are about a key apart, which takes in the
+                    // staggered keys of the rows above & below
+                    long dx2 = Math.abs((2L * a[1] + a[3]) - (2L * b[1] + b[3]));
+                    long dy2 = Math.abs((2L * a[2] + a[4]) - (2L * b[2] + b[4]));
+                    if (4 * dx2 <= 5L * (a[3] + b[3]) && 2 * dy2 <= 3L * (a[4] + b[4])) {
+                        costs[a[0] * TableSize + b[0]] = NearCost;
+                    }
+                }
+            }
+            return new KeyProximity(costs);
+        }
+    }
+
+    /**
+     * Gets the proximity of the standard qwerty layout, for when the keyboard has not been laid
+     * out yet.
+     */
+    public static KeyProximity qwerty() {
+        String[] rows = { "qwertyuiop", "asdfghjkl", "zxcvbnm" };
+        // offsets of the rows in tenths of a key, see qwerty.xml
+        int[] offsets = { 0, 5, 15 };
+        Builder builder = new Builder();
+        for (int r = 0; r < rows.length; r++) {
+            for (int i = 0; i < rows[r].length(); i++) {
+                builder.addKey(rows[r].charAt(i), offsets[r] + i * 10, r * 10, 10, 10);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Gets the cost of typing a character in place of another one.
+     */
+    public int substitutionCost(char typed, char intended) {
+        if (typed == intended) {
+            return 0;
+        }
+        if (typed >= TableSize || intended >= TableSize) {
+            return EditCost;
+        }
+        return mCosts[typed * TableSize + intended];
+    }
+}
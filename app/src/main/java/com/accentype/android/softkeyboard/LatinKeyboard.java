@@ -132,6 +132,19 @@ public class LatinKeyboard extends Keyboard {
         return new int[0];
     }
 
+    /**
+     * Gets the costs of mistyping a letter for another, from the positions of the letter keys.
+     */
+    KeyProximity getKeyProximity() {
+        KeyProximity.Builder builder = new KeyProximity.Builder();
+        for (Key key : getKeys()) {
+            if (key.codes != null && key.codes.length > 0 && Character.isLetter(key.codes[0])) {
+                builder.addKey((char)key.codes[0], key.x, key.y, key.width, key.height);
+            }
+        }
+        return builder.build();
+    }
+
     /**
      * Dynamically change the visibility of the language switch key (a.k.a. globe key).
      * @param visible True if the language switch key should be visible.
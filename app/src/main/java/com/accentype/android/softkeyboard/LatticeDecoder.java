@@ -0,0 +1,279 @@
+package com.accentype.android.softkeyboard;
+
+/**
+ * Beam search decoder that picks the jointly best accented sentence for a phrase.
+ *
+ * Each position of the phrase gets the accented syllables seen in the 2-gram & 3-gram windows
+ * covering it as candidates. A path through the candidates is scored by interpolating the
+ * relative frequency of each of its 2-gram & 3-gram windows. Positions without candidates
+ * keep a single {@link Vocabulary#None} candidate, i.e. the model has no opinion there.
+ *
+ * A decoder reuses its buffers between calls and is not thread-safe, so each thread should
+ * own one. Consecutive calls for the same phrase being typed can also reuse the lattice of the
+ * words that did not change, see {@link #decode(int[], int, int, PhraseMap, PhraseMap, double, double)}.
+ */
+public class LatticeDecoder {
+    private int mBeamWidth;
+    private long mTimeBudgetNanos;
+
+    private int mNumWords;
+    private boolean mTruncated;
+    // whether the lattice of the last decode can be reused by the next one
+    private boolean mReusable;
+
+    // candidates of position i are mCandidates[mCandidateStart[i]..mCandidateStart[i + 1])
+    private int[] mCandidates = new int[64];
+    private int[] mCandidateStart = new int[17];
+
+    // raw windows ending at each position
+    private int[] mHead2 = new int[16];
+    private int[] mHead3 = new int[16];
+
+    // hypotheses of position i are at [i * beam width, i * beam width + mHypCount[i]),
+    // sorted by descending score
+    private int[] mHypCount = new int[16];
+    private int[] mHypWord = new int[0];
+    private int[] mHypBack = new int[0];
+    private double[] mHypScore = new double[0];
+
+    /**
+     * @param beamWidth The max number of partial sentences kept at each position.
+     * @param timeBudgetMillis The time after which the rest of the phrase is decoded greedily,
+     *                         or 0 for no limit.
+     */
+    public LatticeDecoder(int beamWidth, long timeBudgetMillis) {
+        setBeamWidth(beamWidth);
+        setTimeBudget(timeBudgetMillis);
+    }
+
+    public void setBeamWidth(int beamWidth) {
+        beamWidth = Math.max(1, beamWidth);
+        if (beamWidth != mBeamWidth) {
+            mBeamWidth = beamWidth;
+            mReusable = false;
+        }
+    }
+
+    public int getBeamWidth() {
+        return mBeamWidth;
+    }
+
+    public void setTimeBudget(long timeBudgetMillis) {
+        mTimeBudgetNanos = Math.max(0, timeBudgetMillis) * 1000000L;
+    }
+
+    /**
+     * Decodes the specified phrase.
+     *
+     * @param words The unaccented syllable ids, including the begin & end markers.
+     * @param numWords The number of ids in words.
+     * @param m2 The 2-gram model.
+     * @param m3 The 3-gram model.
+     * @param beta2 The weight of the 2-gram model.
+     * @param beta3 The weight of the 3-gram model.
+     * @return The number of decoded sentences, best first.
+     */
+    public int decode(int[] words, int numWords, PhraseMap m2, PhraseMap m3, double beta2, double beta3) {
+        return decode(words, numWords, 0, m2, m3, beta2, beta3);
+    }
+
+    /**
+     * Decodes the specified phrase, reusing the lattice of the previous decode up to the
+     * first changed word. Only the candidates & hypotheses of the positions whose n-gram
+     * windows touch a changed word are recomputed.
+     *
+     * @param words The unaccented syllable ids, including the begin & end markers.
+     * @param numWords The number of ids in words.
+     * @param firstChanged The index of the first id that differs from the previous decode.
+     *                     The caller must pass 0 if the models or weights have changed.
+     * @return The number of decoded sentences, best first, 0 if the prediction running on the
+     * calling thread was cancelled, see {@link PredictionFuture#shouldStop()}.
+     */
+    public int decode(int[] words, int numWords, int firstChanged,
+                      PhraseMap m2, PhraseMap m3, double beta2, double beta3) {
+        long start = mTimeBudgetNanos > 0 ? System.nanoTime() : 0;
+
+        // candidates of a position depend on the words up to 2 positions away
+        int redo = Math.max(0, Math.min(firstChanged, mNumWords) - 2);
+        if (ensureCapacity(numWords) || !mReusable) {
+            redo = 0;
+        }
+        mNumWords = numWords;
+        mTruncated = false;
+        mReusable = false;
+
+        collectCandidates(words, redo, numWords, m2, m3);
+
+        int beamWidth = mBeamWidth;
+
+        if (redo == 0) {
+            // the begin marker is the only start
+            mHypCount[0] = 0;
+            insertHyp(0, beamWidth, mCandidates[mCandidateStart[0]], -1, 0);
+        }
+
+        for (int i = Math.max(1, redo); i < numWords; i++) {
+            if (PredictionFuture.shouldStop()) {
+                // stale, leave the lattice unusable for the next decode
+                return 0;
+            }
+            if (beamWidth > 1 && mTimeBudgetNanos > 0 && System.nanoTime() - start > mTimeBudgetNanos) {
+                // out of time, finish greedily
+                beamWidth = 1;
+                mTruncated = true;
+            }
+            mHypCount[i] = 0;
+            int prevStart = (i - 1) * mBeamWidth;
+            int prevEnd = prevStart + Math.min(mHypCount[i - 1], beamWidth);
+            for (int h = prevStart; h < prevEnd; h++) {
+                int a1 = mHypWord[h];
+                int a0 = i >= 2 ? mHypWord[mHypBack[h]] : Vocabulary.None;
+                for (int c = mCandidateStart[i]; c < mCandidateStart[i + 1]; c++) {
+                    int a2 = mCandidates[c];
+                    double score = mHypScore[h];
+                    if (mHead2[i] != PhraseMap.NoVariant) {
+                        score += beta2 * relativeCount(m2, mHead2[i], Phrase.pack(a1, a2));
+                    }
+                    if (mHead3[i] != PhraseMap.NoVariant) {
+                        score += beta3 * relativeCount(m3, mHead3[i], Phrase.pack(a0, a1, a2));
+                    }
+                    insertHyp(i, beamWidth, a2, h, score);
+                }
+            }
+        }
+        // a greedy tail is not worth keeping
+        mReusable = !mTruncated;
+        return mHypCount[numWords - 1];
+    }
+
+    /**
+     * Gets whether the last decode ran out of time and finished greedily.
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * Gets the score of a decoded sentence.
+     *
+     * @param rank The rank of the sentence, 0 for the best one.
+     */
+    public double score(int rank) {
+        return mHypScore[(mNumWords - 1) * mBeamWidth + rank];
+    }
+
+    /**
+     * Gets the accented syllable ids of a decoded sentence.
+     *
+     * @param rank The rank of the sentence, 0 for the best one.
+     * @param ids Receives one id per position including the markers, {@link Vocabulary#None}
+     *            where the model has no opinion.
+     */
+    public void path(int rank, int[] ids) {
+        int h = (mNumWords - 1) * mBeamWidth + rank;
+        for (int i = mNumWords - 1; i >= 0; i--) {
+            ids[i] = mHypWord[h];
+            h = mHypBack[h];
+        }
+    }
+
+    private void collectCandidates(int[] words, int from, int numWords, PhraseMap m2, PhraseMap m3) {
+        int size = mCandidateStart[from];
+        for (int i = from; i < numWords; i++) {
+            mCandidateStart[i] = size;
+
+            mHead2[i] = i >= 1 ? m2.lookup(Phrase.pack(words, i - 1, 2)) : PhraseMap.NoVariant;
+            mHead3[i] = i >= 2 ? m3.lookup(Phrase.pack(words, i - 2, 3)) : PhraseMap.NoVariant;
+
+            if (i == 0 || i == numWords - 1) {
+                // phrase markers
+                size = addCandidate(size, mCandidateStart[i], words[i]);
+                continue;
+            }
+            for (int n = 2; n <= 3; n++) {
+                PhraseMap model = n == 2 ? m2 : m3;
+                if (model.isEmpty()) {
+                    continue;
+                }
+                for (int j = Math.max(i - n + 1, 0); j <= i && j + n <= numWords; j++) {
+                    for (int v = model.lookup(Phrase.pack(words, j, n));
+                         v != PhraseMap.NoVariant;
+                         v = model.nextVariant(v)) {
+                        size = addCandidate(size, mCandidateStart[i], model.variantWord(v, i - j));
+                    }
+                }
+            }
+            if (size == mCandidateStart[i]) {
+                size = addCandidate(size, mCandidateStart[i], Vocabulary.None);
+            }
+        }
+        mCandidateStart[numWords] = size;
+    }
+
+    private int addCandidate(int size, int start, int id) {
+        for (int c = start; c < size; c++) {
+            if (mCandidates[c] == id) {
+                return size;
+            }
+        }
+        if (size == mCandidates.length) {
+            mCandidates = PhraseMap.grow(mCandidates, size * 2);
+        }
+        mCandidates[size] = id;
+        return size + 1;
+    }
+
+    private void insertHyp(int i, int beamWidth, int word, int back, double score) {
+        int base = i * mBeamWidth;
+        int count = mHypCount[i];
+        if (count == beamWidth && score <= mHypScore[base + count - 1]) {
+            return;
+        }
+        // insertion sort, dropping the worst hypothesis when the beam is full
+        int h = Math.min(count, beamWidth - 1);
+        while (h > 0 && mHypScore[base + h - 1] < score) {
+            mHypWord[base + h] = mHypWord[base + h - 1];
+            mHypBack[base + h] = mHypBack[base + h - 1];
+            mHypScore[base + h] = mHypScore[base + h - 1];
+            h--;
+        }
+        mHypWord[base + h] = word;
+        mHypBack[base + h] = back;
+        mHypScore[base + h] = score;
+        mHypCount[i] = Math.min(count + 1, beamWidth);
+    }
+
+    private static double relativeCount(PhraseMap model, int head, long accentPhrase) {
+        for (int v = head; v != PhraseMap.NoVariant; v = model.nextVariant(v)) {
+            if (model.variantKey(v) == accentPhrase) {
+                return model.probability(head, v);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Grows the buffers to fit the specified number of words.
+     *
+     * @return Whether the buffers were reallocated, losing the previous lattice.
+     */
+    private boolean ensureCapacity(int numWords) {
+        boolean grown = false;
+        if (mHead2.length < numWords) {
+            grown = true;
+            int capacity = numWords * 2;
+            mHead2 = new int[capacity];
+            mHead3 = new int[capacity];
+            mHypCount = new int[capacity];
+            mCandidateStart = new int[capacity + 1];
+        }
+        int numHyps = mHypCount.length * mBeamWidth;
+        if (mHypWord.length < numHyps) {
+            grown = true;
+            mHypWord = new int[numHyps];
+            mHypBack = new int[numHyps];
+            mHypScore = new double[numHyps];
+        }
+        return grown;
+    }
+}
@@ -0,0 +1,207 @@
+package com.accentype.android.softkeyboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Append-only log of learned phrases, so that they survive the process being killed without
+ * rewriting the whole model on every change.
+ *
+ * The log is split into numbered segment files next to the model file. A snapshot of the model
+ * records the last segment it includes; the segments after it are replayed on load, and the
+ * ones it includes are deleted once the snapshot is in place. Each batch of phrases is written
+ * and synced at once, so the cost of syncing is shared by the phrases of the batch.
+ *
+ * A record is its varint length followed by the unaccented phrase, the accented phrase and the
+ * count, so a record torn by a crash is detected and dropped. Not thread-safe, the model only
+ * uses it from its writer thread.
+ */
+public class LearningLog {
+    private static final String SegmentSuffix = ".log.";
+
+    /**
+     * Receives the phrases of the log when replaying it.
+     */
+    public interface Replayer {
+        void replay(String rawPhrase, String accentPhrase, int count);
+    }
+
+    private final File mDir;
+    private final String mFileName;
+    private int mSegment;
+    private FileOutputStream mOut;
+    // bytes in the segments that are not folded into a snapshot yet
+    private long mSize;
+
+    /**
+     * @param dir The directory of the model file.
+     * @param fileName The name of the model file, which prefixes the segment files.
+     */
+    public LearningLog(File dir, String fileName) {
+        mDir = dir;
+        mFileName = fileName;
+    }
+
+    /**
+     * Replays the segments after the last one included in the snapshot, in order, and deletes
+     * the included ones left over by an interrupted compaction. Appending then starts a new
+     * segment after the replayed ones.
+     *
+     * @param lastIncluded The last segment included in the snapshot, 0 if none.
+     * @return The number of phrases replayed.
+     */
+    public int replay(int lastIncluded, Replayer replayer) {
+        int numReplayed = 0;
+        int[] segments = listSegments();
+        mSegment = lastIncluded;
+        for (int segment : segments) {
+            File file = segmentFile(segment);
+            if (segment <= lastIncluded) {
+                file.delete();
+                continue;
+            }
+            mSegment = Math.max(mSegment, segment);
+            mSize += file.length();
+            try {
+                numReplayed += replay(file, replayer);
+            }
+            catch (IOException ex) {
+                LogUtil.LogError(this.getClass().getName(), "Error in replaying learning log " + file, ex);
+            }
+        }
+        mSegment++;
+        return numReplayed;
+    }
+
+    /**
+     * Appends a batch of phrases and syncs it to storage.
+     */
+    public void append(String[] rawPhrases, String[] accentPhrases, int[] counts, int size) throws IOException {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        for (int i = 0; i < size; i++) {
+            record.reset();
+            VarInt.writeString(record, rawPhrases[i]);
+            VarInt.writeString(record, accentPhrases[i]);
+            VarInt.write(record, counts[i]);
+            VarInt.write(batch, record.size());
+            record.writeTo(batch);
+        }
+        if (mOut == null) {
+            mOut = new FileOutputStream(segmentFile(mSegment), true);
+        }
+        batch.writeTo(mOut);
+        mOut.flush();
+        mOut.getFD().sync();
+        mSize += batch.size();
+    }
+
+    /**
+     * Gets the segment being replayed, or appended to once replayed.
+     */
+    public int getSegment() {
+        return mSegment;
+    }
+
+    /**
+     * Gets the number of bytes logged since the last compaction.
+     */
+    public long size() {
+        return mSize;
+    }
+
+    /**
+     * Closes the current segment so that a snapshot can include it, appending to a new one.
+     *
+     * @return The last segment to be included in the snapshot.
+     */
+    public int rollSegment() throws IOException {
+        close();
+        return mSegment++;
+    }
+
+    /**
+     * Deletes the segments included in a snapshot that has been saved.
+     */
+    public void deleteUpTo(int lastIncluded) {
+        for (int segment : listSegments()) {
+            if (segment <= lastIncluded) {
+                segmentFile(segment).delete();
+            }
+        }
+        mSize = mOut == null ? 0 : segmentFile(mSegment).length();
+    }
+
+    public void close() throws IOException {
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+    }
+
+    private int replay(File file, Replayer replayer) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        }
+        finally {
+            in.close();
+        }
+
+        int numReplayed = 0;
+        VarInt.Reader reader = new VarInt.Reader(data, 0, data.length);
+        try {
+            while (reader.hasMore()) {
+                int length = reader.readInt();
+                VarInt.Reader record = reader.slice(length);
+                String rawPhrase = record.readString();
+                String accentPhrase = record.readString();
+                int count = record.readInt();
+                replayer.replay(rawPhrase, accentPhrase, count);
+                numReplayed++;
+            }
+        }
+        catch (IOException ex) {
+            // the last batch was torn by a crash, keep what was complete
+            LogUtil.LogError(this.getClass().getName(), "Dropped torn tail of learning log " + file, ex);
+        }
+        return numReplayed;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(mDir, mFileName + SegmentSuffix + segment);
+    }
+
+    /**
+     * Gets the numbers of the existing segments in ascending order.
+     */
+    private int[] listSegments() {
+        String[] names = mDir.list();
+        if (names == null) {
+            return new int[0];
+        }
+        String prefix = mFileName + SegmentSuffix;
+        int[] segments = new int[names.length];
+        int numSegments = 0;
+        for (String name : names) {
+            if (name.startsWith(prefix)) {
+                try {
+                    segments[numSegments++] = Integer.parseInt(name.substring(prefix.length()));
+                }
+                catch (NumberFormatException ex) {
+                    numSegments--;
+                }
+            }
+        }
+        int[] result = new int[numSegments];
+        System.arraycopy(segments, 0, result, 0, numSegments);
+        Arrays.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,152 @@
+package com.accentype.android.softkeyboard;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded queue of learned phrases, drained in batches by a background worker so that
+ * learning never blocks the caller. Identical phrases within a batch are coalesced into a
+ * single entry with a count before they reach the model.
+ *
+ * When the queue is full new phrases are dropped rather than blocking, and counted so that
+ * the loss is visible.
+ */
+public class LearningPipeline {
+    public static final int DefaultCapacity = 256;
+    public static final int MaxBatchSize = 64;
+
+    /**
+     * Applies the batches of a pipeline to a model.
+     */
+    public interface Learner {
+        /**
+         * Learns a batch of coalesced phrases. Only called on the worker thread.
+         *
+         * @param rawPhrases The unaccented phrases.
+         * @param accentPhrases The corresponding accented phrases.
+         * @param counts The # of times each phrase was learned.
+         * @param size The number of phrases in the batch.
+         */
+        void learnBatch(String[] rawPhrases, String[] accentPhrases, int[] counts, int size);
+    }
+
+    private final ArrayBlockingQueue<String[]> mQueue;
+    private final Executor mExecutor;
+    private final Learner mLearner;
+    // whether a drain is queued on the executor and has not started yet
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private final AtomicInteger mNumDropped = new AtomicInteger();
+    private final AtomicInteger mNumLearned = new AtomicInteger();
+    private final AtomicInteger mNumBatches = new AtomicInteger();
+
+    // batch buffers, only used by the worker
+    private final String[] mRawPhrases = new String[MaxBatchSize];
+    private final String[] mAccentPhrases = new String[MaxBatchSize];
+    private final int[] mCounts = new int[MaxBatchSize];
+
+    /**
+     * @param capacity The max number of phrases waiting to be learned.
+     * @param executor The executor running the worker, which should run one task at a time.
+     * @param learner The model to learn the batches.
+     */
+    public LearningPipeline(int capacity, Executor executor, Learner learner) {
+        mQueue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        mExecutor = executor;
+        mLearner = learner;
+    }
+
+    /**
+     * Creates a single low-priority worker thread that does not keep the process alive.
+     */
+    public static ExecutorService newWorker(final String name) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues a phrase to be learned. Never blocks.
+     *
+     * @return Whether the phrase was queued, false if it was dropped because the queue is full.
+     */
+    public boolean offer(String rawPhrase, String accentPhrase) {
+        if (!mQueue.offer(new String[] { rawPhrase, accentPhrase })) {
+            mNumDropped.incrementAndGet();
+            return false;
+        }
+        if (mScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(mDrain);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of phrases that were dropped because the queue was full.
+     */
+    public int getDroppedCount() {
+        return mNumDropped.get();
+    }
+
+    /**
+     * Gets the number of phrases that have been learned, before coalescing.
+     */
+    public int getLearnedCount() {
+        return mNumLearned.get();
+    }
+
+    /**
+     * Gets the number of batches given to the learner.
+     */
+    public int getBatchCount() {
+        return mNumBatches.get();
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override public void run() {
+            // clear first so that phrases queued from now on schedule another drain
+            mScheduled.set(false);
+            int size;
+            while ((size = nextBatch()) > 0) {
+                mLearner.learnBatch(mRawPhrases, mAccentPhrases, mCounts, size);
+                mNumBatches.incrementAndGet();
+            }
+        }
+    };
+
+    /**
+     * Takes up to {@link #MaxBatchSize} distinct phrases from the queue.
+     *
+     * @return The number of distinct phrases in the batch.
+     */
+    private int nextBatch() {
+        int size = 0;
+        String[] phrase;
+        while (size < MaxBatchSize && (phrase = mQueue.poll()) != null) {
+            mNumLearned.incrementAndGet();
+            int i = 0;
+            while (i < size && !(phrase[0].equals(mRawPhrases[i]) && phrase[1].equals(mAccentPhrases[i]))) {
+                i++;
+            }
+            if (i < size) {
+                mCounts[i]++;
+                continue;
+            }
+            mRawPhrases[size] = phrase[0];
+            mAccentPhrases[size] = phrase[1];
+            mCounts[size] = 1;
+            size++;
+        }
+        return size;
+    }
+}
@@ -1,27 +1,75 @@
 package com.accentype.android.softkeyboard;
 
-import android.os.AsyncTask;
-
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Linear model with backoff interpolation.
+ *
+ * The model is kept under a budget of entries, counting accented n-grams and history phrases.
+ * Once over budget, rare 3-grams are pruned first, then rare 2-grams, then rare 1-grams, then
+ * rare history phrases, raising the min count until the model is back under a low watermark.
+ * Pruning runs a few slots at a time on each learn so that no single call pays for a full pass.
+ *
+ * Readers never lock: the n-gram tables are published as immutable snapshots through a
+ * volatile field. Learned phrases go through a {@link LearningPipeline} drained by a single
+ * writer thread shared by all instances, which copies the current tables, applies a batch of
+ * phrases and then publishes the copy. The copies share the chunks of the tables that the batch
+ * does not update, see {@link PhraseMap}. Loading and saving the model file also run on the
+ * writer, in order.
+ *
+ * The model is saved as a snapshot file plus a {@link LearningLog} that each batch of learned
+ * phrases is appended to. Once the log grows past a threshold, the writer folds it into a new
+ * snapshot, so that neither learning nor shutting down rewrites the whole model.
+ *
+ * Phrase counts are exported to other installations as deltas, see {@link #exportDelta(File)}.
+ * The counts learned here since the last export are kept on the side and saved with the
+ * snapshot, so an export writes only them; imported counts never enter them, so they are not
+ * exported back. The export itself only saves a watermark: its sequence number and the last
+ * segment of the learning log it covers.
  */
 public class LinearBackoffInterpolationModel implements BaseModel {
 
-    private PhraseMap mModel1 = new PhraseMap();
-    private PhraseMap mModel2 = new PhraseMap();
-    private PhraseMap mModel3 = new PhraseMap();
+    private volatile Snapshot mSnapshot = new Snapshot(new PhraseMap(), new PhraseMap(), new PhraseMap(), 0);
+    // only accessed by the writer thread
     private PhraseHistory mPhraseHistory = new PhraseHistory();
+    private final LearningPipeline mLearningPipeline;
+    // only accessed by the writer thread, opened when loading
+    private LearningLog mLearningLog;
+    // whether the file needs rewriting as a snapshot, e.g. it was in an older format
+    private boolean mNeedsCompaction;
+    // only accessed by the writer thread, ids of the deltas whose counts were imported
+    private final HashSet<String> mImportedDeltas = new HashSet<>();
+    // whether a delta is being imported, which defers compacting until it is complete
+    private boolean mImporting;
+    // only accessed by the writer thread, the counts learned here & not exported yet
+    private PhraseHistory mUnexported = new PhraseHistory();
+    // only accessed by the writer thread, the watermark of the last export, see exportDelta
+    private long mExportSourceId;
+    private int mExportSequence;
+    private int mExportSegment;
+
+    private static final long LogCompactionBytes = 64 * 1024;
+    // number of history blocks of a delta imported before letting other tasks run on the writer
+    private static final int ImportBlocksPerStep = 16;
+    private static final String ExportWatermarkSuffix = ".export";
+    private Vocabulary mVocabulary = Vocabulary.getInstance();
 
     private static LinearBackoffInterpolationModel instance = null;
 
@@ -29,14 +77,35 @@ public class LinearBackoffInterpolationModel implements BaseModel {
     private float beta2 = 0.15f;
     private float beta1 = 0.1f;
 
+    private int mBeamWidth = 8;
+    private long mDecodeTimeBudget = 20;
+
+    // about 40 bytes per n-gram entry, i.e. a few MB at most
+    public static final int DefaultMaxEntries = 100000;
+    private static final int PruneStepSlots = 512;
+
+    // pruning stages, run in order until the model fits
+    private static final int PruneIdle = 0;
+    private static final int PruneModel3 = 1;
+    private static final int PruneModel2 = 2;
+    private static final int PruneModel1 = 3;
+    private static final int PruneHistory = 4;
+
+    private volatile int mMaxEntries = DefaultMaxEntries;
+    private int mPruneStage = PruneIdle;
+    private int mPruneMinCount;
+    private int mPruneSlot;
+    private int mPruneRemoved;
+
     private String mFileName;
     private String mFileDir;
 
     protected LinearBackoffInterpolationModel(String fileName, String fileDir) {
         mFileName = fileName;
         mFileDir = fileDir;
+        mLearningPipeline = new LearningPipeline(LearningPipeline.DefaultCapacity, sWriter, new BatchLearner());
 
-        new LoadFromFile().execute();
+        sWriter.execute(new LoadFromFile());
     }
 
     public static LinearBackoffInterpolationModel getInstance(String fileName, String fileDir) {
@@ -46,228 +115,979 @@ public class LinearBackoffInterpolationModel implements BaseModel {
         return instance;
     }
 
+    /**
+     * Predicts the accents of the specified phrase. Once the scratch buffers of the calling
+     * thread have grown to fit the phrase, the only allocation is the returned string.
+     */
     @Override public String predict(String rawPhrase) {
         if (rawPhrase == null) {
             return null;
         }
-        String[] words = rawPhrase.trim().toLowerCase().split("\\s+");
+        PredictScratch scratch = sPredictScratch.get();
+        Snapshot snapshot = mSnapshot;
+
+        // tokenize in place, leaving room for the phrase markers
+        int numWords = mVocabulary.lookupAll(rawPhrase, scratch.wordIds, scratch.wordLengths, 1, false);
+        if (numWords + 2 > scratch.wordIds.length) {
+            scratch.ensureCapacity(numWords + 2);
+            mVocabulary.lookupAll(rawPhrase, scratch.wordIds, scratch.wordLengths, 1, false);
+        }
+        int[] wordIds = scratch.wordIds;
+        int[] wordLengths = scratch.wordLengths;
 
-        StringBuilder sbPredictions = new StringBuilder();
+        StringBuilder sbPredictions = scratch.predictions;
+        sbPredictions.setLength(0);
 
-        if (words.length == 0) {
+        if (numWords == 0) {
             return null;
         }
         // for single-word query, take most likely
-        else if (words.length == 1) {
-            HashMap<String, Short> accentsCountMap = mModel1.lookup(new Phrase(words[0]));
-            if (accentsCountMap == null) {
+        else if (numWords == 1) {
+            int bestGuess = predictWord(snapshot.model1, wordIds[1]);
+            if (bestGuess == Vocabulary.None) {
                 return null;
             }
-            Short max = -1;
-            String bestGuess = null;
-            for (String v : accentsCountMap.keySet()) {
-                if (max <= accentsCountMap.get(v)) {
-                    max = accentsCountMap.get(v);
-                    bestGuess = v;
-                }
+            sbPredictions.append(rawPhrase);
+            StringUtil.replaceDottedPreserveCase(sbPredictions, mVocabulary.get(bestGuess));
+            return sbPredictions.toString();
+        }
+        else {
+            prepareMarkers(wordIds, wordLengths, numWords);
+
+            LatticeDecoder decoder = scratch.getDecoder(mBeamWidth, mDecodeTimeBudget);
+            if (decoder.decode(wordIds, numWords + 2, snapshot.model2, snapshot.model3, beta2, beta3) == 0) {
+                return null;
             }
-            if (bestGuess == null) {
+            decoder.path(0, scratch.accentIds);
+            if (!appendPath(scratch.accentIds, wordLengths, numWords, sbPredictions)) {
                 return null;
             }
-            sbPredictions.append(bestGuess);
-            return StringUtil.replaceDottedPreserveCase(rawPhrase, sbPredictions);
+            // don't normalize yet, wait until incorporating with the full prediction from server
+            return sbPredictions.toString();
         }
-        else {
-            boolean hasPredictions = false;
-            List<String> wordMarkers = new ArrayList<>(words.length + 2);
-            wordMarkers.add(Phrase.BeginMarker);
-            wordMarkers.addAll(Arrays.asList(words));
-            wordMarkers.add(Phrase.EndMarker);
-
-            for (int i = 0; i < wordMarkers.size(); i++) {
-                HashMap<String, Double> accScoreMap = new HashMap<>();
-
-                // only look at 2-gram & 3-gram
-                ComputeAccentScore(wordMarkers, i, beta3, mModel3, 3, accScoreMap);
-                ComputeAccentScore(wordMarkers, i, beta2, mModel2, 2, accScoreMap);
-
-                String bestPrediction = null;
-                if (accScoreMap.size() > 0) {
-                    double bestScore = -1;
-                    for (String accentPhrase : accScoreMap.keySet()) {
-                        double score = accScoreMap.get(accentPhrase);
-                        if (bestScore <= score) {
-                            bestPrediction = accentPhrase;
-                            bestScore = score;
-                        }
-                    }
-                }
-                if (bestPrediction != null) {
-                    hasPredictions = true;
-                    sbPredictions.append(bestPrediction);
+    }
+
+    @Override public PredictionFuture predictAsync(String rawPhrase, long deadlineMillis) {
+        return PredictionFuture.submit(this, rawPhrase, deadlineMillis);
+    }
+
+    @Override public PredictionSession newSession() {
+        return new NGramSession();
+    }
+
+    @Override public List<String> predictAlternatives(String rawPhrase, int maxAlternatives) {
+        List<String> alternatives = new ArrayList<>();
+        if (rawPhrase == null || maxAlternatives <= 0) {
+            return alternatives;
+        }
+        PredictScratch scratch = sPredictScratch.get();
+        Snapshot snapshot = mSnapshot;
+        int numWords = Vocabulary.countWords(rawPhrase);
+        scratch.ensureCapacity(numWords + 2);
+        int[] wordIds = scratch.wordIds;
+        int[] wordLengths = scratch.wordLengths;
+        mVocabulary.lookupAll(rawPhrase, wordIds, wordLengths, 1, false);
+        StringBuilder sbPredictions = scratch.predictions;
+
+        if (numWords == 1) {
+            // accented variants of a single word, most frequent first
+            PhraseMap model1 = snapshot.model1;
+            int head = model1.lookup(Phrase.pack(wordIds[1]));
+            int numVariants = 0;
+            for (int v = head; v != PhraseMap.NoVariant; v = model1.nextVariant(v)) {
+                numVariants++;
+            }
+            int[] variants = new int[numVariants];
+            numVariants = 0;
+            for (int v = head; v != PhraseMap.NoVariant; v = model1.nextVariant(v)) {
+                int i = numVariants++;
+                while (i > 0 && model1.variantCount(variants[i - 1]) < model1.variantCount(v)) {
+                    variants[i] = variants[i - 1];
+                    i--;
                 }
-                else {
-                    for (int c = 0; c < wordMarkers.get(i).length(); c++) {
-                        sbPredictions.append(".");
+                variants[i] = v;
+            }
+            for (int i = 0; i < numVariants && alternatives.size() < maxAlternatives; i++) {
+                sbPredictions.setLength(0);
+                sbPredictions.append(rawPhrase);
+                StringUtil.replaceDottedPreserveCase(
+                    sbPredictions, mVocabulary.get(model1.variantWord(variants[i], 0)));
+                alternatives.add(sbPredictions.toString());
+            }
+        }
+        else if (numWords > 1) {
+            prepareMarkers(wordIds, wordLengths, numWords);
+
+            LatticeDecoder decoder = scratch.getDecoder(Math.max(mBeamWidth, maxAlternatives), mDecodeTimeBudget);
+            int numResults = decoder.decode(wordIds, numWords + 2, snapshot.model2, snapshot.model3, beta2, beta3);
+            for (int r = 0; r < numResults && alternatives.size() < maxAlternatives; r++) {
+                decoder.path(r, scratch.accentIds);
+                sbPredictions.setLength(0);
+                if (appendPath(scratch.accentIds, wordLengths, numWords, sbPredictions)) {
+                    String alternative = sbPredictions.toString();
+                    if (!alternatives.contains(alternative)) {
+                        alternatives.add(alternative);
                     }
                 }
             }
-            if (!hasPredictions) {
-                return null;
+        }
+        return alternatives;
+    }
+
+    /**
+     * Sets the number of partial sentences the decoder keeps at each word.
+     */
+    public void setBeamWidth(int beamWidth) {
+        mBeamWidth = Math.max(1, beamWidth);
+    }
+
+    /**
+     * Sets the time after which a prediction stops searching and finishes greedily.
+     *
+     * @param timeBudgetMillis The time budget in milliseconds, or 0 for no limit.
+     */
+    public void setDecodeTimeBudget(long timeBudgetMillis) {
+        mDecodeTimeBudget = timeBudgetMillis;
+    }
+
+    /**
+     * Sets the max number of entries kept, counting n-grams and history phrases.
+     *
+     * @param maxEntries The max number of entries, or 0 for no limit.
+     */
+    public void setMaxEntries(int maxEntries) {
+        mMaxEntries = Math.max(0, maxEntries);
+    }
+
+    /**
+     * Gets the number of entries counted against the budget.
+     */
+    public int getNumEntries() {
+        Snapshot snapshot = mSnapshot;
+        return getNumEntries(snapshot.model1, snapshot.model2, snapshot.model3);
+    }
+
+    private int getNumEntries(PhraseMap m1, PhraseMap m2, PhraseMap m3) {
+        return m1.variantSize() + m2.variantSize() + m3.variantSize() + mPhraseHistory.size();
+    }
+
+    /**
+     * Runs one step of pruning on the tables being updated by the writer, if the model is
+     * over budget or is being pruned.
+     *
+     * @return Whether anything was removed.
+     */
+    private boolean pruneStep(PhraseMap m1, PhraseMap m2, PhraseMap m3) {
+        if (mMaxEntries <= 0) {
+            mPruneStage = PruneIdle;
+            return false;
+        }
+        int numEntries = getNumEntries(m1, m2, m3);
+        if (mPruneStage == PruneIdle) {
+            if (numEntries <= mMaxEntries) {
+                return false;
+            }
+            mPruneStage = PruneModel3;
+            mPruneMinCount = 2;
+            mPruneSlot = 0;
+            mPruneRemoved = 0;
+        }
+        // stop at a low watermark so that pruning does not restart on every learn
+        if (numEntries <= mMaxEntries - mMaxEntries / 10) {
+            mPruneStage = PruneIdle;
+            return false;
+        }
+
+        if (mPruneStage == PruneHistory) {
+            mPruneRemoved += mPhraseHistory.prune(mPruneMinCount);
+            // the counts of the phrases pruned are not exported either
+            for (Iterator<String> it = mUnexported.keySet().iterator(); it.hasNext(); ) {
+                if (!mPhraseHistory.containsKey(it.next())) {
+                    it.remove();
+                }
+            }
+            mPruneStage = PruneModel3;
+            // a pass that removed nothing skips ahead, so that a model of frequent phrases does
+            // not take a pass per count to get back under budget
+            mPruneMinCount = mPruneRemoved == 0 ? mPruneMinCount * 2 : mPruneMinCount + 1;
+            mPruneRemoved = 0;
+        }
+        else {
+            PhraseMap model = mPruneStage == PruneModel3 ? m3 : mPruneStage == PruneModel2 ? m2 : m1;
+            int size = model.variantSize();
+            mPruneSlot = model.prune(mPruneMinCount, mPruneSlot, PruneStepSlots);
+            mPruneRemoved += size - model.variantSize();
+            if (mPruneSlot >= model.capacity()) {
+                mPruneStage++;
+                mPruneSlot = 0;
+            }
+        }
+        return getNumEntries(m1, m2, m3) < numEntries;
+    }
+
+    /**
+     * Gets the most likely accented version of a single word.
+     */
+    private static int predictWord(PhraseMap model1, int wordId) {
+        int max = -1;
+        int bestGuess = Vocabulary.None;
+        for (int v = model1.lookup(Phrase.pack(wordId));
+             v != PhraseMap.NoVariant;
+             v = model1.nextVariant(v)) {
+            if (max <= model1.variantCount(v)) {
+                max = model1.variantCount(v);
+                bestGuess = model1.variantWord(v, 0);
+            }
+        }
+        return bestGuess;
+    }
+
+    private static void prepareMarkers(int[] wordIds, int[] wordLengths, int numWords) {
+        wordIds[0] = Vocabulary.BeginMarker;
+        wordLengths[0] = Phrase.BeginMarker.length();
+        wordIds[numWords + 1] = Vocabulary.EndMarker;
+        wordLengths[numWords + 1] = Phrase.EndMarker.length();
+    }
+
+    /**
+     * Appends the words of a decoded path without the phrase markers, with dots in place
+     * of the words the model has no opinion about.
+     *
+     * @return Whether any of the words has a prediction.
+     */
+    private boolean appendPath(int[] accentIds, int[] wordLengths, int numWords, StringBuilder sb) {
+        boolean hasPredictions = false;
+        for (int i = 1; i <= numWords; i++) {
+            String accentWord = mVocabulary.get(accentIds[i]);
+            if (accentWord != null && accentWord.length() == wordLengths[i]) {
+                hasPredictions = true;
+                sb.append(accentWord);
+            }
+            else {
+                for (int c = 0; c < wordLengths[i]; c++) {
+                    sb.append('.');
+                }
             }
-            // don't normalize yet, wait until incorporating with the full prediction from server
-            // remove the first and last phrase markers from predictions
-            return sbPredictions.substring(1, sbPredictions.length() - 1);
         }
+        return hasPredictions;
     }
 
+    /**
+     * Queues a phrase to be learned by the writer thread. Never blocks, and the phrase is
+     * seen by predictions once the writer publishes its next snapshot.
+     */
     @Override public void learn(String rawPhrase, String accentPhrase) {
-        learnStatic(rawPhrase, accentPhrase, (short) 1, mModel1, mModel2, mModel3, mPhraseHistory);
+        if (rawPhrase == null || accentPhrase == null) {
+            return;
+        }
+        mLearningPipeline.offer(rawPhrase, accentPhrase);
     }
 
-    @Override public void dispose() {
-        // TODO: stupid serialization scheme for now, implement efficient trie encoding instead
+    /**
+     * Hands every phrase of the history & its count to a replayer on the writer thread, once
+     * the model is loaded, e.g. to index the phrases learned so far.
+     */
+    public void replayHistory(final LearningLog.Replayer replayer) {
+        sWriter.execute(new Runnable() {
+            @Override public void run() {
+                for (Map.Entry<String, Integer> entry : mPhraseHistory.entrySet()) {
+                    String accentPhrase = entry.getKey();
+                    replayer.replay(ModelMigrator.removeAccents(accentPhrase), accentPhrase, entry.getValue());
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the pipeline queuing the learned phrases, e.g. to read its counters.
+     */
+    public LearningPipeline getLearningPipeline() {
+        return mLearningPipeline;
+    }
+
+    /**
+     * Waits until the phrases and the file operations queued so far by any instance have
+     * been applied.
+     * Blocks the calling thread, so it must not be called from the UI thread.
+     */
+    public static void flush() throws InterruptedException {
+        // imports queue their steps again, so wait until they are complete
+        do {
+            final CountDownLatch done = new CountDownLatch(1);
+            sWriter.execute(new Runnable() {
+                @Override public void run() {
+                    done.countDown();
+                }
+            });
+            done.await();
+        } while (sNumImports.get() > 0);
+    }
+
+    /**
+     * Exports the phrase counts learned here since the previous export, or all of them the
+     * first time, to a delta file that another installation can import. Counts imported from
+     * other installations are not exported again. Runs on the writer thread, writing only the
+     * delta and the watermark of the export.
+     */
+    public void exportDelta(final File deltaFile) {
+        sWriter.execute(new Runnable() {
+            @Override public void run() {
+                // a new source, so that its deltas cannot be mistaken for those of another
+                long sourceId = mExportSourceId != 0 ? mExportSourceId : new Random().nextLong() | 1;
+                int sequence = mExportSequence + 1;
+                try {
+                    // the phrases learned from here on go to the next segments, after the watermark
+                    int segment = mLearningLog != null ? mLearningLog.rollSegment() : mExportSegment;
+                    new ModelDeltaFile(sourceId, sequence, mUnexported).write(deltaFile);
+                    writeExportWatermark(sourceId, sequence, segment);
+                    mExportSourceId = sourceId;
+                    mExportSequence = sequence;
+                    mExportSegment = segment;
+                    LogUtil.LogMessage(this.getClass().getName(), "Exported " + mUnexported.size() + " phrases.");
+                    mUnexported = new PhraseHistory();
+                }
+                catch (IOException ex) {
+                    LogUtil.LogError(this.getClass().getName(), "Error in exporting model delta", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves the watermark of an export: the source id, the sequence number of the delta & the
+     * last learning log segment it covers.
+     */
+    private void writeExportWatermark(long sourceId, int sequence, int segment) throws IOException {
+        File watermarkFile = new File(mFileDir, mFileName + ExportWatermarkSuffix);
+        File tempFile = new File(mFileDir, mFileName + ExportWatermarkSuffix + ".tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
         try {
-            // write from history to file
-            // overwriting existing content but should be ok since history is only larger
-            // this is inefficient, see todo above.
+            DataOutputStream out = new DataOutputStream(fileOutputStream);
+            out.writeLong(sourceId);
+            out.writeInt(sequence);
+            out.writeInt(segment);
+            out.flush();
+            fileOutputStream.getFD().sync();
+        }
+        finally {
+            fileOutputStream.close();
+        }
+        if (!tempFile.renameTo(watermarkFile)) {
+            throw new IOException("Cannot replace " + watermarkFile);
+        }
+    }
 
-            String localModelFileName = mFileName;
-            File localModelFile = new File(mFileDir, localModelFileName);
+    /**
+     * Reads the watermark of the last export, if any.
+     */
+    private void readExportWatermark() {
+        File watermarkFile = new File(mFileDir, mFileName + ExportWatermarkSuffix);
+        if (!watermarkFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(watermarkFile));
+            try {
+                mExportSourceId = in.readLong();
+                mExportSequence = in.readInt();
+                mExportSegment = in.readInt();
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ex) {
+            LogUtil.LogError(this.getClass().getName(), "Error in reading export watermark, exporting all", ex);
+            mExportSourceId = 0;
+            mExportSequence = 0;
+            mExportSegment = 0;
+        }
+    }
 
-            FileOutputStream localModelOutputStream = new FileOutputStream(localModelFile); // truncates file if exists
-            DataOutputStream localModelBinaryWriter = new DataOutputStream(localModelOutputStream);
+    /**
+     * Adds the phrase counts of a delta exported by another installation to the model. The
+     * delta is applied on the writer thread a few blocks at a time, letting learned phrases in
+     * between, and saved with the snapshot once complete. A delta that was already imported
+     * is ignored.
+     */
+    public void importDelta(File deltaFile) {
+        sNumImports.incrementAndGet();
+        sWriter.execute(new ImportDelta(deltaFile));
+    }
 
-            localModelBinaryWriter.writeInt(version()); // model version
-            localModelBinaryWriter.writeInt(mPhraseHistory.size()); // update count
+    /**
+     * Closes the model on the writer thread, after the phrases learned so far. Everything
+     * learned is already in the learning log, so the model is only rewritten if its file
+     * is in an older format.
+     */
+    @Override public void dispose() {
+        sWriter.execute(new Runnable() {
+            @Override public void run() {
+                if (mLearningLog == null) {
+                    return;
+                }
+                if (mNeedsCompaction) {
+                    compact();
+                }
+                try {
+                    mLearningLog.close();
+                }
+                catch (IOException ex) {
+                    LogUtil.LogError(this.getClass().getName(), "Error in closing learning log", ex);
+                }
+            }
+        });
+        // partitions are not the shared instance, see PartitionedModel
+        if (instance == this) {
+            instance = null;
+        }
+    }
 
-            for (String s : mPhraseHistory.keySet()) {
-                byte[] accentBytes = s.getBytes("UTF-8"); // accent string
-                localModelBinaryWriter.writeByte(accentBytes.length);
-                localModelBinaryWriter.write(accentBytes);
+    /**
+     * Folds the learning log into a new snapshot file, see {@link ModelSnapshotFile}. The snapshot
+     * is written & synced next to the current one then renamed over it, so a crash leaves either
+     * one in place.
+     */
+    private void compact() {
+        try {
+            String localModelFileName = mFileName;
+            File localModelFile = new File(mFileDir, localModelFileName);
+            File tempFile = new File(mFileDir, localModelFileName + ".tmp");
 
-                localModelBinaryWriter.writeInt(mPhraseHistory.get(s));
+            Snapshot snapshot = mSnapshot;
+            ModelSnapshotFile snapshotFile = new ModelSnapshotFile(
+                snapshot.model1, snapshot.model2, snapshot.model3, mPhraseHistory);
+            snapshotFile.logSegment = mLearningLog.rollSegment();
+            snapshotFile.importedDeltas.addAll(mImportedDeltas);
+            snapshotFile.exportSequence = mExportSequence;
+            snapshotFile.setUnexported(mUnexported);
+            FileOutputStream localModelOutputStream = new FileOutputStream(tempFile);
+            try {
+                snapshotFile.write(new BufferedOutputStream(localModelOutputStream, 64 * 1024));
+                // on storage before it replaces the current file
+                localModelOutputStream.getFD().sync();
+            }
+            finally {
+                localModelOutputStream.close();
             }
+            if (!tempFile.renameTo(localModelFile)) {
+                throw new IOException("Cannot replace " + localModelFile);
+            }
+            mLearningLog.deleteUpTo(snapshotFile.logSegment);
+            mNeedsCompaction = false;
 
             LogUtil.LogMessage(this.getClass().getName(),
-                    MessageFormat.format("Serialized model with {0} unique phrases", mPhraseHistory.size())
+                    MessageFormat.format("Serialized model with {0} unique phrases, {1} learned phrases dropped",
+                        mPhraseHistory.size(), mLearningPipeline.getDroppedCount())
             );
         }
         catch (IOException ex) {
-            LogUtil.LogError(this.getClass().getName(), "Error in disposing model: cannot write to file.", ex);
+            LogUtil.LogError(this.getClass().getName(), "Error in compacting model: cannot write to file.", ex);
         }
-
-        instance = null;
     }
 
     @Override public int version() {
         return ModelVersion.LINEAR_BACKOFF_INTERPOLATION;
     }
 
-    private static void learnStatic(String rawPhrase, String accentPhrase, short count,
+    /**
+     * Adds the count of an accented phrase to a history, keyed as in {@link #learnStatic}.
+     */
+    private static void addCount(PhraseHistory history, String accentPhrase, int count) {
+        if (accentPhrase == null) {
+            return;
+        }
+        String lowerAccentPhrase = accentPhrase.trim().toLowerCase();
+        Integer previous = history.get(lowerAccentPhrase);
+        history.put(lowerAccentPhrase, previous == null ? count : previous + count);
+    }
+
+    private static void learnStatic(String rawPhrase, String accentPhrase, int count,
         PhraseMap m1, PhraseMap m2, PhraseMap m3, HashMap<String, Integer> hist)
     {
         if (rawPhrase == null || accentPhrase == null) {
             return;
         }
 
-        String[] rawWords = rawPhrase.trim().toLowerCase().split("\\s+");
-
         String lowerAccentPhrase = accentPhrase.trim().toLowerCase();
         if (hist.containsKey(lowerAccentPhrase)) {
             hist.put(lowerAccentPhrase, hist.get(lowerAccentPhrase) + count);
         }
         else {
-            hist.put(lowerAccentPhrase, (int)count);
+            hist.put(lowerAccentPhrase, count);
         }
 
-        String[] accentWords = lowerAccentPhrase.split("\\s+");
+        Vocabulary vocabulary = Vocabulary.getInstance();
+        int numWords = Vocabulary.countWords(lowerAccentPhrase);
+        if (numWords == 0 || Vocabulary.countWords(rawPhrase) != numWords) {
+            return;
+        }
+
+        int[] rawIds = new int[numWords + 2];
+        int[] accentIds = new int[numWords + 2];
+        vocabulary.lookupAll(rawPhrase, rawIds, null, 1, true);
+        vocabulary.lookupAll(lowerAccentPhrase, accentIds, null, 1, true);
+
+        learnIds(rawIds, accentIds, numWords, count, m1, m2, m3);
+    }
+
+    /**
+     * Learns on a phrase given as syllable ids.
+     *
+     * @param rawIds The unaccented syllable ids, starting at index 1. Indexes 0 and
+     *               numWords + 1 are overwritten with the phrase markers.
+     * @param accentIds The accented syllable ids, laid out the same way.
+     * @param numWords The number of syllables in the phrase.
+     */
+    private static void learnIds(int[] rawIds, int[] accentIds, int numWords, int count,
+        PhraseMap m1, PhraseMap m2, PhraseMap m3)
+    {
+        Vocabulary vocabulary = Vocabulary.getInstance();
+        for (int i = 1; i <= numWords; i++) {
+            if (vocabulary.rawOf(accentIds[i]) == rawIds[i]) {
+                vocabulary.addVariant(accentIds[i]);
+            }
+        }
 
         // for single word query, simply do look up
-        if (rawWords.length == 1) {
-            m1.add(new Phrase(rawWords[0]), accentWords[0], count);
+        if (numWords == 1) {
+            m1.add(Phrase.pack(rawIds[1]), Phrase.pack(accentIds[1]), count);
             return;
         }
 
-        List<String> rawWordMarkers = new ArrayList<>(rawWords.length + 2);
-        rawWordMarkers.add(Phrase.BeginMarker);
-        rawWordMarkers.addAll(Arrays.asList(rawWords));
-        rawWordMarkers.add(Phrase.EndMarker);
+        rawIds[0] = accentIds[0] = Vocabulary.BeginMarker;
+        rawIds[numWords + 1] = accentIds[numWords + 1] = Vocabulary.EndMarker;
 
-        List<String> accentWordMarkers = new ArrayList<>(accentWords.length + 2);
-        accentWordMarkers.add(Phrase.BeginMarker);
-        accentWordMarkers.addAll(Arrays.asList(accentWords));
-        accentWordMarkers.add(Phrase.EndMarker);
+        for (int i = 0; i < numWords + 1; i++) {
+            m2.add(Phrase.pack(rawIds, i, 2), Phrase.pack(accentIds, i, 2), count);
+        }
 
-        for (int i = 0; i < rawWordMarkers.size() - 1; i++) {
-            // TODO: use composite hash key instead of concatenating string with spaces
-            m2.add(
-                new Phrase(rawWordMarkers.get(i), rawWordMarkers.get(i + 1)),
-                String.format("%s %s", accentWordMarkers.get(i), accentWordMarkers.get(i + 1)),
-                count
-            );
+        for (int i = 0; i < numWords; i++) {
+            m3.add(Phrase.pack(rawIds, i, 3), Phrase.pack(accentIds, i, 3), count);
+        }
+    }
+
+    /**
+     * Per-thread buffers reused by {@link #predict(String)} so that steady-state predictions
+     * produce no garbage.
+     */
+    private static class PredictScratch {
+        int[] wordIds = new int[32];
+        int[] wordLengths = new int[32];
+        int[] accentIds = new int[32];
+        StringBuilder predictions = new StringBuilder(128);
+        LatticeDecoder decoder;
+
+        void ensureCapacity(int numWords) {
+            if (wordIds.length < numWords) {
+                wordIds = new int[numWords * 2];
+                wordLengths = new int[numWords * 2];
+                accentIds = new int[numWords * 2];
+            }
         }
 
-        for (int i = 0; i < rawWordMarkers.size() - 2; i++) {
-            m3.add(
-                new Phrase(rawWordMarkers.get(i), rawWordMarkers.get(i + 1), rawWordMarkers.get(i + 2)),
-                String.format("%s %s %s", accentWordMarkers.get(i), accentWordMarkers.get(i + 1), accentWordMarkers.get(i + 2)),
-                count
-            );
+        LatticeDecoder getDecoder(int beamWidth, long timeBudgetMillis) {
+            if (decoder == null) {
+                decoder = new LatticeDecoder(beamWidth, timeBudgetMillis);
+            }
+            decoder.setBeamWidth(beamWidth);
+            decoder.setTimeBudget(timeBudgetMillis);
+            return decoder;
         }
     }
 
-    private void ComputeAccentScore (
-        List<String> words,
-        int iW,
-        double weight,
-        PhraseMap model,
-        int n,
-        HashMap<String, Double> accentScoreMap) {
+    private static final ThreadLocal<PredictScratch> sPredictScratch = new ThreadLocal<PredictScratch>() {
+        @Override protected PredictScratch initialValue() {
+            return new PredictScratch();
+        }
+    };
 
-        if (model.isEmpty()) {
-            return;
+    /**
+     * Session that keeps the syllable ids and the decoded lattice of the phrase being typed,
+     * so that a keystroke only re-tokenizes the last word and the decoder only re-scores the
+     * positions within reach of it.
+     */
+    private class NGramSession extends BasePredictionSession {
+        private final StringBuilder mText = new StringBuilder();
+        // words are at positions 1..mNumWords, the phrase markers are added when predicting
+        private int[] mWordIds = new int[32];
+        private int[] mWordLengths = new int[32];
+        private int[] mWordStarts = new int[32];
+        private int[] mAccentIds = new int[32];
+        private int mNumWords;
+
+        private final LatticeDecoder mDecoder = new LatticeDecoder(mBeamWidth, mDecodeTimeBudget);
+        private final StringBuilder mPrediction = new StringBuilder(128);
+        private int mDecodedWords;
+        private int mDecodedGeneration = -1;
+        // the size of the vocabulary when the unknown words were last looked up
+        private int mResolvedSize;
+        // the first position that changed since the last decode
+        private int mFirstChanged;
+
+        @Override public synchronized void append(char c) {
+            boolean newWord = mText.length() == 0 || Character.isWhitespace(mText.charAt(mText.length() - 1));
+            mText.append(c);
+            if (Character.isWhitespace(c)) {
+                return;
+            }
+            if (newWord) {
+                mNumWords++;
+                if (mNumWords + 2 > mWordIds.length) {
+                    int capacity = mWordIds.length * 2;
+                    mWordIds = PhraseMap.grow(mWordIds, capacity);
+                    mWordLengths = PhraseMap.grow(mWordLengths, capacity);
+                    mWordStarts = PhraseMap.grow(mWordStarts, capacity);
+                    mAccentIds = new int[capacity];
+                }
+                mWordStarts[mNumWords] = mText.length() - 1;
+            }
+            updateLastWord();
+        }
+
+        @Override public synchronized void deleteLast() {
+            int length = mText.length();
+            if (length == 0) {
+                return;
+            }
+            char c = mText.charAt(length - 1);
+            mText.setLength(length - 1);
+            if (Character.isWhitespace(c)) {
+                return;
+            }
+            if (mWordStarts[mNumWords] == length - 1) {
+                mNumWords--;
+                mFirstChanged = Math.min(mFirstChanged, mNumWords + 1);
+            }
+            else {
+                updateLastWord();
+            }
+        }
+
+        @Override public synchronized void update(CharSequence text) {
+            int common = 0;
+            int max = Math.min(text.length(), mText.length());
+            while (common < max && text.charAt(common) == mText.charAt(common)) {
+                common++;
+            }
+            while (mText.length() > common) {
+                deleteLast();
+            }
+            for (int i = common; i < text.length(); i++) {
+                append(text.charAt(i));
+            }
         }
 
-        int g = n - 1;
+        @Override public synchronized void reset() {
+            mText.setLength(0);
+            mNumWords = 0;
+            mFirstChanged = 0;
+        }
 
-        // compute accent probability for this word
-        int g3Start = Math.max(iW - g, 0);
-        int g3End = Math.min(iW + g, words.size() - 1);
+        @Override public synchronized String predict() {
+            mPrediction.setLength(0);
+            if (mNumWords == 0) {
+                return null;
+            }
+            Snapshot snapshot = mSnapshot;
+            int generation = snapshot.generation;
+            if (generation != mDecodedGeneration || mVocabulary.size() != mResolvedSize) {
+                resolveUnknownWords();
+            }
+            if (mNumWords == 1) {
+                int bestGuess = predictWord(snapshot.model1, mWordIds[1]);
+                if (bestGuess == Vocabulary.None) {
+                    return null;
+                }
+                mPrediction.append(mText);
+                StringUtil.replaceDottedPreserveCase(mPrediction, mVocabulary.get(bestGuess));
+                return mPrediction.toString();
+            }
 
-        for (int jW = g3Start; jW <= g3End - g; jW++) {
-            Phrase segment =
-                (g == 2) ? new Phrase(words.get(jW), words.get(jW + 1), words.get(jW + 2)) :
-                (g == 1) ? new Phrase(words.get(jW), words.get(jW + 1)) : new Phrase(words.get(jW));
+            if (generation != mDecodedGeneration) {
+                mFirstChanged = 0;
+            }
+            if (mNumWords != mDecodedWords) {
+                // the end marker moved
+                mFirstChanged = Math.min(mFirstChanged, Math.min(mNumWords, mDecodedWords) + 1);
+            }
+            prepareMarkers(mWordIds, mWordLengths, mNumWords);
+            mDecoder.setBeamWidth(mBeamWidth);
+            mDecoder.setTimeBudget(mDecodeTimeBudget);
+            int numResults = mDecoder.decode(
+                mWordIds, mNumWords + 2, mFirstChanged, snapshot.model2, snapshot.model3, beta2, beta3);
+            mDecodedWords = mNumWords;
+            mDecodedGeneration = generation;
+            mFirstChanged = Integer.MAX_VALUE;
 
-            HashMap<String, Short> accentsCountMap = model.lookup(segment);
-            if (accentsCountMap == null) {
-                continue;
+            if (numResults == 0) {
+                return null;
+            }
+            mDecoder.path(0, mAccentIds);
+            if (!appendPath(mAccentIds, mWordLengths, mNumWords, mPrediction)) {
+                return null;
             }
+            return mPrediction.toString();
+        }
+
+        @Override protected CharSequence getText() {
+            return mText;
+        }
+
+        private void updateLastWord() {
+            int start = mWordStarts[mNumWords];
+            mWordIds[mNumWords] = mVocabulary.find(mText, start, mText.length());
+            mWordLengths[mNumWords] = mText.length() - start;
+            mFirstChanged = Math.min(mFirstChanged, mNumWords);
+        }
 
-            double count = 0;
-            for (Short c : accentsCountMap.values()) {
-                count += c;
+        /**
+         * Looks up again the words that were unknown when typed, e.g. while the model was
+         * loading or before the word was first learned in the middle of the phrase.
+         */
+        private void resolveUnknownWords() {
+            // read the size first, so that words interned meanwhile are looked up next time
+            mResolvedSize = mVocabulary.size();
+            for (int i = 1; i <= mNumWords; i++) {
+                if (mWordIds[i] == Vocabulary.None) {
+                    int start = mWordStarts[i];
+                    mWordIds[i] = mVocabulary.find(mText, start, start + mWordLengths[i]);
+                    if (mWordIds[i] != Vocabulary.None) {
+                        mFirstChanged = Math.min(mFirstChanged, i);
+                    }
+                }
             }
+        }
+    }
+
+    /**
+     * Immutable n-gram tables as seen by predictions.
+     */
+    private static class Snapshot {
+        final PhraseMap model1;
+        final PhraseMap model2;
+        final PhraseMap model3;
+        // incremented with every published snapshot, invalidating decoded lattices
+        final int generation;
+
+        Snapshot(PhraseMap model1, PhraseMap model2, PhraseMap model3, int generation) {
+            this.model1 = model1;
+            this.model2 = model2;
+            this.model3 = model3;
+            this.generation = generation;
+        }
+    }
 
-            for (String accents : accentsCountMap.keySet()) {
-                String[] accWords = accents.split("\\s+");
-                String accentedWord = accWords[iW - jW];
-                double accScore = (accentsCountMap.get(accents) / count) * weight;
+    private static final ExecutorService sWriter = LearningPipeline.newWorker("ModelWriter");
+    // number of imports queued or in progress
+    private static final AtomicInteger sNumImports = new AtomicInteger();
 
-                if (!accentScoreMap.containsKey(accentedWord)) {
-                    accentScoreMap.put(accentedWord, 0.0);
+    /**
+     * Applies a batch of phrases to copies of the current tables and publishes them. A copy
+     * costs its chunks updated by the batch, not the whole tables.
+     */
+    private class BatchLearner implements LearningPipeline.Learner {
+        @Override public void learnBatch(String[] rawPhrases, String[] accentPhrases, int[] counts, int size) {
+            if (mLearningLog != null) {
+                try {
+                    mLearningLog.append(rawPhrases, accentPhrases, counts, size);
+                }
+                catch (IOException ex) {
+                    LogUtil.LogError(this.getClass().getName(), "Error in appending to learning log", ex);
                 }
-                accentScoreMap.put(accentedWord, accentScoreMap.get(accentedWord) + accScore);
+            }
+
+            Snapshot current = mSnapshot;
+            PhraseMap m1 = new PhraseMap(current.model1);
+            PhraseMap m2 = new PhraseMap(current.model2);
+            PhraseMap m3 = new PhraseMap(current.model3);
+            for (int i = 0; i < size; i++) {
+                learnStatic(rawPhrases[i], accentPhrases[i], counts[i], m1, m2, m3, mPhraseHistory);
+                addCount(mUnexported, accentPhrases[i], counts[i]);
+                pruneStep(m1, m2, m3);
+            }
+            mSnapshot = new Snapshot(m1, m2, m3, current.generation + 1);
+
+            if (mLearningLog != null && mLearningLog.size() > LogCompactionBytes && !mImporting) {
+                compact();
             }
         }
     }
 
-    private class LoadFromFile extends AsyncTask<Void, Void, LocalModelItemData> {
-        /** The system calls this to perform work in a worker thread and
-         * delivers it the parameters given to AsyncTask.execute() */
-        protected LocalModelItemData doInBackground(Void... params) {
-            LocalModelItemData localModel = new LocalModelItemData();
+    /**
+     * Imports a delta in steps that each apply a few of its blocks to copies of the tables then
+     * publish them, the same way as a batch of learned phrases. Nothing of the delta is saved
+     * until it is complete, so that an interrupted import can be done again. The counts imported
+     * are not added to the unexported ones, so they are never exported from here.
+     */
+    private class ImportDelta implements Runnable {
+        private final File mDeltaFile;
+        private ModelDeltaFile mDelta;
+        private boolean mStarted;
+        private int mNextBlock;
+        private int mNumImported;
+
+        ImportDelta(File deltaFile) {
+            mDeltaFile = deltaFile;
+        }
+
+        @Override public void run() {
+            if (!step()) {
+                sNumImports.decrementAndGet();
+            }
+        }
+
+        /**
+         * Applies the next blocks of the delta.
+         *
+         * @return Whether the import continues in another step.
+         */
+        private boolean step() {
+            try {
+                if (mDelta == null) {
+                    mDelta = ModelDeltaFile.read(mDeltaFile);
+                }
+                if (!mStarted) {
+                    if (mImporting) {
+                        // one import at a time, so that each is saved on its own
+                        sWriter.execute(this);
+                        return true;
+                    }
+                    if (mImportedDeltas.contains(mDelta.getId())) {
+                        LogUtil.LogMessage(this.getClass().getName(), "Skipped importing delta " + mDelta.getId() + " again");
+                        return false;
+                    }
+                    if (mExportSourceId == mDelta.sourceId) {
+                        LogUtil.LogMessage(this.getClass().getName(), "Skipped importing delta " + mDelta.getId() + " exported here");
+                        return false;
+                    }
+                    mImporting = true;
+                    mStarted = true;
+                }
+
+                FrontCodedHistory.Reader reader = mDelta.getReader();
+                PhraseHistory phrases = new PhraseHistory();
+                int end = Math.min(reader.numBlocks(), mNextBlock + ImportBlocksPerStep);
+                for (; mNextBlock < end; mNextBlock++) {
+                    reader.readBlock(mNextBlock, phrases);
+                }
+
+                Snapshot current = mSnapshot;
+                PhraseMap m1 = new PhraseMap(current.model1);
+                PhraseMap m2 = new PhraseMap(current.model2);
+                PhraseMap m3 = new PhraseMap(current.model3);
+                for (Map.Entry<String, Integer> entry : phrases.entrySet()) {
+                    String accentPhrase = entry.getKey();
+                    learnStatic(ModelMigrator.removeAccents(accentPhrase), accentPhrase, entry.getValue(),
+                        m1, m2, m3, mPhraseHistory);
+                    pruneStep(m1, m2, m3);
+                }
+                mSnapshot = new Snapshot(m1, m2, m3, current.generation + 1);
+                mNumImported += phrases.size();
+
+                if (mNextBlock < reader.numBlocks()) {
+                    // let the phrases learned meanwhile in before the next step
+                    sWriter.execute(this);
+                    return true;
+                }
+                mImporting = false;
+                mImportedDeltas.add(mDelta.getId());
+                LogUtil.LogMessage(this.getClass().getName(), "Imported " + mNumImported + " phrases of delta " + mDelta.getId());
+                if (mLearningLog != null) {
+                    compact();
+                }
+            }
+            catch (IOException ex) {
+                LogUtil.LogError(this.getClass().getName(), "Error in importing model delta", ex);
+                // the counts applied so far are kept in memory, but not saved as imported
+                if (mStarted) {
+                    mImporting = false;
+                }
+            }
+            return false;
+        }
+    }
+
+    private class LoadFromFile implements Runnable {
+        @Override public void run() {
+            ModelSnapshotFile md = load();
+
+            Snapshot current = mSnapshot;
+            final PhraseMap m1 = new PhraseMap(current.model1);
+            final PhraseMap m2 = new PhraseMap(current.model2);
+            final PhraseMap m3 = new PhraseMap(current.model3);
+            m1.merge(md.model1);
+            m2.merge(md.model2);
+            m3.merge(md.model3);
+
+            // then what was learned after the snapshot, unexported if after the last export
+            readExportWatermark();
+            final PhraseHistory replayedUnexported = new PhraseHistory();
+            mLearningLog = new LearningLog(new File(mFileDir), mFileName);
+            int numReplayed = mLearningLog.replay(md.logSegment, new LearningLog.Replayer() {
+                @Override public void replay(String rawPhrase, String accentPhrase, int count) {
+                    learnStatic(rawPhrase, accentPhrase, count, m1, m2, m3, mPhraseHistory);
+                    if (mLearningLog.getSegment() > mExportSegment) {
+                        addCount(replayedUnexported, accentPhrase, count);
+                    }
+                }
+            });
+            if (numReplayed > 0) {
+                LogUtil.LogMessage(this.getClass().getName(), "Replayed " + numReplayed + " learned phrases.");
+            }
+            // saved files are already within budget, pruning resumes with the next learn
+            mSnapshot = new Snapshot(m1, m2, m3, current.generation + 1);
+            mImportedDeltas.addAll(md.importedDeltas);
+
+            // the model is ready, the history is only needed for saving
+            try {
+                mPhraseHistory.merge(md.getHistory());
+                if (md.exportSequence != mExportSequence) {
+                    // exported after the snapshot was saved
+                    mUnexported = new PhraseHistory();
+                }
+                else if (md.getUnexported() == null) {
+                    // never exported, the history is not needed apart from the copy just merged
+                    mUnexported = md.getHistory() != null ? md.getHistory() : new PhraseHistory();
+                }
+                else {
+                    mUnexported = md.getUnexported();
+                }
+                mUnexported.merge(replayedUnexported);
+            }
+            catch (IOException ex) {
+                LogUtil.LogError(this.getClass().getName(), "Error in async local model history load", ex);
+            }
+
+            // save a migrated model right away rather than migrating it again on every start
+            if (mNeedsCompaction) {
+                compact();
+            }
+        }
+
+        /**
+         * Rebuilds the tables of a snapshot from its history, e.g. when a table is corrupt.
+         */
+        private ModelSnapshotFile rebuildTables(ModelSnapshotFile md) throws IOException {
+            LogUtil.LogMessage(this.getClass().getName(), "Rebuilding corrupt model tables from history.");
+            PhraseMap m1 = new PhraseMap();
+            PhraseMap m2 = new PhraseMap();
+            PhraseMap m3 = new PhraseMap();
+            PhraseHistory hist = new PhraseHistory();
+            for (Map.Entry<String, Integer> entry : md.getHistory().entrySet()) {
+                String accentPhrase = entry.getKey();
+                learnStatic(ModelMigrator.removeAccents(accentPhrase), accentPhrase, entry.getValue(), m1, m2, m3, hist);
+            }
+            ModelSnapshotFile rebuilt = new ModelSnapshotFile(m1, m2, m3, hist);
+            rebuilt.logSegment = md.logSegment;
+            rebuilt.importedDeltas = md.importedDeltas;
+            rebuilt.exportSequence = md.exportSequence;
+            rebuilt.setUnexported(md.getUnexported());
+            return rebuilt;
+        }
+
+        private ModelSnapshotFile load() {
+            ModelSnapshotFile localModel = new ModelSnapshotFile(null, null, null, null);
 
             try
             {
@@ -279,57 +1099,46 @@ public class LinearBackoffInterpolationModel implements BaseModel {
                     return localModel;
                 }
 
-                CountingFileInputStream fileInputStream = new CountingFileInputStream(localModelFile);
-                DataInputStream binaryReader = new DataInputStream(fileInputStream);
-
+                int modelVersion;
+                DataInputStream binaryReader = new DataInputStream(new FileInputStream(localModelFile));
                 try {
-                    int modelVersion = binaryReader.readInt();
-                    if (modelVersion != version()) {
-                        // ok if older version, will be truncated & written to on destroy
-                        // TODO: convert from older version to maintain history
-                        return localModel;
-                    }
-                    int numEntries = binaryReader.readInt();
-
-                    PhraseMap m1 = new PhraseMap();
-                    PhraseMap m2 = new PhraseMap();
-                    PhraseMap m3 = new PhraseMap();
-                    PhraseHistory hist = new PhraseHistory();
-
-                    for (int i = 0; i < numEntries; i++) {
-                        // Read accent string
-                        byte numUnicodeBytes = binaryReader.readByte();
-                        byte[] unicodeBytes = new byte[numUnicodeBytes];
-                        binaryReader.read(unicodeBytes);
-                        String accentPhrase = new String(unicodeBytes, "UTF-8");
-                        StringBuilder rawString = new StringBuilder();
-
-                        char[] accentChars = accentPhrase.toCharArray();
-                        for (char c : accentChars) {
-                            if (LanguageConstruct.AccentToRawMap.containsKey(c)) {
-                                rawString.append(LanguageConstruct.AccentToRawMap.get(c));
-                            }
-                            else {
-                                rawString.append(c);
-                            }
-                        }
-
-                        // Read # occurrences for this accent string
-                        int count = binaryReader.readInt();
-
-                        learnStatic(rawString.toString(), accentPhrase, (short)count, m1, m2, m3, hist);
-
-                        localModel.model1 = m1;
-                        localModel.model2 = m2;
-                        localModel.model3 = m3;
-                        localModel.history = hist;
-
-                        LogUtil.LogMessage(this.getClass().getName(), "Successfully loaded local model file.");
-                    }
+                    modelVersion = binaryReader.readInt();
                 }
                 finally {
                     binaryReader.close();
                 }
+
+                if (ModelSnapshotFile.canRead(modelVersion)) {
+                    localModel = ModelSnapshotFile.read(localModelFile);
+                    // rewritten in the current version, without the corrupt sections
+                    mNeedsCompaction = modelVersion != ModelSnapshotFile.Version || localModel.hasCorruptSections();
+                    if (localModel.hasCorruptTables() && !localModel.hasCorruptHistory()) {
+                        localModel = rebuildTables(localModel);
+                    }
+                    LogUtil.LogMessage(this.getClass().getName(), "Successfully loaded local model snapshot.");
+                    return localModel;
+                }
+                if (!ModelMigrator.canMigrate(modelVersion)) {
+                    LogUtil.LogMessage(this.getClass().getName(), "Cannot migrate model version " + modelVersion);
+                    return localModel;
+                }
+
+                // phrases of an older format, migrated then saved as a snapshot
+                mNeedsCompaction = true;
+                final PhraseMap m1 = new PhraseMap();
+                final PhraseMap m2 = new PhraseMap();
+                final PhraseMap m3 = new PhraseMap();
+                final PhraseHistory hist = new PhraseHistory();
+                ModelMigrator.migrate(localModelFile, new LearningPipeline.Learner() {
+                    @Override public void learnBatch(String[] rawPhrases, String[] accentPhrases, int[] counts, int size) {
+                        for (int i = 0; i < size; i++) {
+                            learnStatic(rawPhrases[i], accentPhrases[i], counts[i], m1, m2, m3, hist);
+                        }
+                    }
+                });
+                localModel = new ModelSnapshotFile(m1, m2, m3, hist);
+
+                LogUtil.LogMessage(this.getClass().getName(), "Successfully loaded local model file.");
             }
             catch (Exception ex)
             {
@@ -340,21 +1149,5 @@ public class LinearBackoffInterpolationModel implements BaseModel {
 
             return localModel;
         }
-
-        /** The system calls this to perform work in the UI thread and delivers
-         * the result from doInBackground() */
-        protected void onPostExecute(LocalModelItemData md) {
-            mModel1.merge(md.model1);
-            mModel2.merge(md.model2);
-            mModel3.merge(md.model3);
-            mPhraseHistory.merge(md.history);
-        }
-    }
-
-    private class LocalModelItemData {
-        PhraseMap model1;
-        PhraseMap model2;
-        PhraseMap model3;
-        PhraseHistory history;
     }
 }
\ No newline at end of file
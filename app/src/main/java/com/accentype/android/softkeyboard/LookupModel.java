@@ -1,37 +1,95 @@
 package com.accentype.android.softkeyboard;
 
-import android.content.Context;
-import android.os.AsyncTask;
-
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Simple lookup model.
+ *
+ * The model file is memory-mapped and made of fixed-width slots, one per accented phrase:
+ * <pre>
+ * int version, int numSlots
+ * numSlots x (long fingerprint, int count, byte rawLength, byte accentLength,
+ *             UTF-8 unaccented phrase, UTF-8 accented phrase)
+ * </pre>
+ * Learning a known phrase increments its count in place, and new phrases are appended to the
+ * first unused slot, so updates are memory writes rather than seeks & writes to the file. The
+ * in-memory {@link FingerprintIndex} only keeps the fingerprints & slot numbers; the phrases &
+ * counts are read from the mapping, and the unaccented phrase of a slot is compared to the
+ * query so that phrases sharing a fingerprint are told apart.
+ *
+ * Phrases longer than {@link #MaxPhraseBytes} together, about 40 VN letters, are kept in an
+ * overflow file, memory-mapped the same way and appended to, and their slot holds lengths of
+ * {@link #OverflowLength} followed by the offset & lengths of the phrases in that file:
+ * <pre>
+ * int usedBytes, UTF-8 unaccented & accented phrases back to back
+ * </pre>
+ * Phrases longer than {@link #MaxOverflowPhraseBytes}, e.g. a whole paragraph pasted, are
+ * dropped and counted.
+ *
+ * Files of older versions are renamed aside and their phrases streamed into a new file by
+ * {@link ModelMigrator}, the older file being deleted once the new one is complete. The model
+ * predicts nothing until it is loaded and migrated, rather than having predictions wait for it.
  */
 public class LookupModel implements BaseModel {
+    public static final int SlotSize = 128;
+    static final int HeaderSize = 8;
+    private static final int CountOffset = 8;
+    private static final int RawLengthOffset = 12;
+    private static final int AccentLengthOffset = 13;
+    private static final int PhraseOffset = 14;
+    // longest unaccented & accented phrases that fit in a slot together, in UTF-8 bytes
+    public static final int MaxPhraseBytes = SlotSize - PhraseOffset;
+    // longest unaccented & accented phrases kept in the overflow file, in UTF-8 bytes
+    public static final int MaxOverflowPhraseBytes = 4096;
+    // lengths of a slot whose phrases are in the overflow file
+    static final int OverflowLength = 0xFF;
+    private static final int OverflowHeaderSize = 4;
+    private static final int InitialOverflowBytes = 4096;
+    private static final int InitialSlots = 256;
+    // suffix of a file of an older version while its phrases are migrated
+    private static final String MigratingSuffix = ".migrating";
+    // suffix of the overflow file of the long phrases
+    private static final String OverflowSuffix = ".overflow";
 
-    private HashMap<Integer, HashMap<String, LocalModelItemData>> mLocalModel;
-    private DataOutputStream mLocalModelBinaryWriter;
-    private FileOutputStream mLocalModelOutputStream;
     private static LookupModel instance = null;
 
+    // package-private so that tests can hold the writer
+    static final ExecutorService sWriter = LearningPipeline.newWorker("LookupModelWriter");
+    private final LearningPipeline mLearningPipeline =
+        new LearningPipeline(LearningPipeline.DefaultCapacity, sWriter, new BatchLearner());
+
     private String mFileName;
     private String mFileDir;
 
+    // guarded by this, written by the writer thread only
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+    private int mNumSlots;
+    private int mCapacitySlots;
+    private FingerprintIndex mIndex;
+    // overflow file, opened with the first long phrase
+    private RandomAccessFile mOverflowFile;
+    private MappedByteBuffer mOverflow;
+    private int mOverflowCapacity;
+    private int mNumDropped;
+    // set once the file is loaded & migrated, predictions return null until then
+    private volatile boolean mLoaded;
+
     protected LookupModel(String fileName, String fileDir) {
         mFileName = fileName;
         mFileDir = fileDir;
 
-        new LoadFromFile().execute();
+        sWriter.execute(new LoadFromFile());
     }
 
     public static LookupModel getInstance(String fileName, String fileDir) {
@@ -42,194 +100,437 @@ public class LookupModel implements BaseModel {
     }
 
     @Override public String predict(String rawPhrase) {
-        if (mLocalModel != null) {
-            String trimmedPhrase = rawPhrase.trim();
-            if (trimmedPhrase.length() == 0) {
+        String trimmedPhrase = rawPhrase.trim();
+        if (trimmedPhrase.length() == 0) {
+            return null;
+        }
+        if (!mLoaded) {
+            return null;
+        }
+        byte[] rawBytes = getBytes(trimmedPhrase);
+        String topPrediction;
+        synchronized (this) {
+            if (mBuffer == null) {
                 return null;
             }
-            int hashCode = trimmedPhrase.hashCode();
-            if (mLocalModel.containsKey(hashCode)) {
-                String topPrediction = null;
-
-                HashMap<String, LocalModelItemData> hashEntryValue = mLocalModel.get(hashCode);
-
-                int maxCount = -1;
-                Iterator it = hashEntryValue.entrySet().iterator();
-                while (it.hasNext()) {
-                    Map.Entry pair = (Map.Entry)it.next();
-                    LocalModelItemData localModelItemData = (LocalModelItemData)pair.getValue();
-                    if (maxCount < localModelItemData.count) {
-                        maxCount = localModelItemData.count;
-                        topPrediction = (String)pair.getKey();
-                    }
+            int topSlot = -1;
+            int maxCount = -1;
+            long fingerprint = FingerprintIndex.fingerprint(rawBytes, 0, rawBytes.length);
+            for (int slot = mIndex.first(fingerprint); slot != FingerprintIndex.NoSlot; slot = mIndex.next(slot)) {
+                if (!rawEquals(slot, rawBytes)) {
+                    continue;
                 }
-
-                // pad prediction with whitespaces in the original phrase
-                int i = 0;
-                for (; i < rawPhrase.length(); i++) {
-                    if (!Character.isWhitespace(rawPhrase.charAt(i))) {
-                        break;
-                    }
+                int count = mBuffer.getInt(slotOffset(slot) + CountOffset);
+                if (maxCount < count) {
+                    maxCount = count;
+                    topSlot = slot;
                 }
-                StringBuilder finalPrediction = new StringBuilder(rawPhrase);
-                finalPrediction.replace(i, i + topPrediction.length(), topPrediction);
+            }
+            if (topSlot < 0) {
+                return null;
+            }
+            topPrediction = readAccentPhrase(topSlot);
+        }
 
-                return finalPrediction.toString();
+        // pad prediction with whitespaces in the original phrase
+        int i = 0;
+        for (; i < rawPhrase.length(); i++) {
+            if (!Character.isWhitespace(rawPhrase.charAt(i))) {
+                break;
             }
         }
-        return null;
-    }
+        StringBuilder finalPrediction = new StringBuilder(rawPhrase);
+        finalPrediction.replace(i, i + topPrediction.length(), topPrediction);
 
-    @Override public void learn(String rawPhrase, String accentPhrase) {
-        try {
-            // TODO: for now skip input until model has been loaded
-            if (mLocalModel != null && mLocalModelBinaryWriter != null) {
-                String trimmedPhrase = rawPhrase.trim();
-                String trimmedAccentPhrase = accentPhrase.trim();
-                if (trimmedPhrase.length() == 0 || trimmedAccentPhrase.length() == 0) {
-                    return;
-                }
-                int hashCode = trimmedPhrase.hashCode();
-                HashMap<String, LocalModelItemData> hashEntryValue;
-                LocalModelItemData localModelItem;
-                if (mLocalModel.containsKey(hashCode)) {
-                    hashEntryValue = mLocalModel.get(hashCode);
-                } else {
-                    hashEntryValue = new HashMap<>();
-                }
+        return finalPrediction.toString();
+    }
 
-                if (hashEntryValue.containsKey(trimmedAccentPhrase)) {
-                    localModelItem = hashEntryValue.get(trimmedAccentPhrase);
-                } else {
-                    localModelItem = new LocalModelItemData();
-                }
-                localModelItem.count++;
-                hashEntryValue.put(trimmedAccentPhrase, localModelItem);
+    @Override public List<String> predictAlternatives(String rawPhrase, int maxAlternatives) {
+        List<String> alternatives = new ArrayList<>();
+        String prediction = predict(rawPhrase);
+        if (prediction != null && maxAlternatives > 0) {
+            alternatives.add(prediction);
+        }
+        return alternatives;
+    }
 
-                FileChannel fileChannel = mLocalModelOutputStream.getChannel();
-                if (localModelItem.offset >= 0) {
-                    fileChannel.position(localModelItem.offset);
-                    mLocalModelBinaryWriter.writeInt(localModelItem.count);
-                } else {
-                    fileChannel.position(4);
-                    mLocalModelBinaryWriter.writeInt(mLocalModel.size()); // update count
+    @Override public PredictionFuture predictAsync(String rawPhrase, long deadlineMillis) {
+        return PredictionFuture.submit(this, rawPhrase, deadlineMillis);
+    }
 
-                    fileChannel.position(fileChannel.size()); // seek to end
-                    mLocalModelBinaryWriter.writeInt(hashCode); // hash
+    @Override public PredictionSession newSession() {
+        return new SimplePredictionSession(this);
+    }
 
-                    byte[] accentBytes = trimmedAccentPhrase.getBytes("UTF-8"); // accent string
-                    mLocalModelBinaryWriter.writeByte(accentBytes.length);
-                    mLocalModelBinaryWriter.write(accentBytes);
+    /**
+     * Queues a phrase to be learned and written to file by the writer thread. Never blocks.
+     */
+    @Override public void learn(String rawPhrase, String accentPhrase) {
+        if (rawPhrase == null || accentPhrase == null) {
+            return;
+        }
+        mLearningPipeline.offer(rawPhrase, accentPhrase);
+    }
 
-                    // update offset in memory
-                    localModelItem.offset = fileChannel.position();
-                    mLocalModelBinaryWriter.writeInt(1); // count
-                }
+    /**
+     * Waits until the phrases and the file operations queued so far have been applied.
+     * Blocks the calling thread, so it must not be called from the UI thread.
+     */
+    public static void flush() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        sWriter.execute(new Runnable() {
+            @Override public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
 
-                // update model
-                mLocalModel.put(hashCode, hashEntryValue);
+    private class BatchLearner implements LearningPipeline.Learner {
+        @Override public void learnBatch(String[] rawPhrases, String[] accentPhrases, int[] counts, int size) {
+            for (int i = 0; i < size; i++) {
+                learn(rawPhrases[i], accentPhrases[i], counts[i]);
             }
         }
-        catch (IOException ex) { }
     }
 
-    @Override public int version() {
-        return ModelVersion.LOOKUP;
-    }
+    private synchronized void learn(String rawPhrase, String accentPhrase, int count) {
+        if (mBuffer == null) {
+            return;
+        }
+        try {
+            String trimmedPhrase = rawPhrase.trim();
+            String trimmedAccentPhrase = accentPhrase.trim();
+            if (trimmedPhrase.length() == 0 || trimmedAccentPhrase.length() == 0) {
+                return;
+            }
+            byte[] rawBytes = getBytes(trimmedPhrase);
+            byte[] accentBytes = getBytes(trimmedAccentPhrase);
+            if (rawBytes.length + accentBytes.length > MaxOverflowPhraseBytes) {
+                mNumDropped++;
+                LogUtil.LogMessage(this.getClass().getName(), "Dropped a phrase of " + rawBytes.length +
+                    " bytes, " + mNumDropped + " dropped so far");
+                return;
+            }
+            long fingerprint = FingerprintIndex.fingerprint(rawBytes, 0, rawBytes.length);
 
-    @Override public void dispose() {}
+            for (int slot = mIndex.first(fingerprint); slot != FingerprintIndex.NoSlot; slot = mIndex.next(slot)) {
+                if (rawEquals(slot, rawBytes) && accentEquals(slot, accentBytes)) {
+                    int countOffset = slotOffset(slot) + CountOffset;
+                    mBuffer.putInt(countOffset, mBuffer.getInt(countOffset) + count);
+                    return;
+                }
+            }
 
-    private class LoadFromFile extends AsyncTask<Void, Void, HashMap<Integer, HashMap<String, LocalModelItemData>>> {
-        /** The system calls this to perform work in a worker thread and
-         * delivers it the parameters given to AsyncTask.execute() */
-        protected HashMap<Integer, HashMap<String, LocalModelItemData>> doInBackground(Void... params) {
-            HashMap<Integer, HashMap<String, LocalModelItemData>> localModel = new HashMap<>();
+            if (mNumSlots == mCapacitySlots) {
+                map(mCapacitySlots * 2);
+            }
+            int slot = mNumSlots;
+            int offset = slotOffset(slot);
+            mBuffer.putLong(offset, fingerprint);
+            mBuffer.putInt(offset + CountOffset, count);
+            if (rawBytes.length + accentBytes.length > MaxPhraseBytes) {
+                int overflowOffset = appendOverflow(rawBytes, accentBytes);
+                mBuffer.put(offset + RawLengthOffset, (byte)OverflowLength);
+                mBuffer.put(offset + AccentLengthOffset, (byte)OverflowLength);
+                mBuffer.putInt(offset + PhraseOffset, overflowOffset);
+                mBuffer.putInt(offset + PhraseOffset + 4, rawBytes.length);
+                mBuffer.putInt(offset + PhraseOffset + 8, accentBytes.length);
+            }
+            else {
+                mBuffer.put(offset + RawLengthOffset, (byte)rawBytes.length);
+                mBuffer.put(offset + AccentLengthOffset, (byte)accentBytes.length);
+                for (int i = 0; i < rawBytes.length; i++) {
+                    mBuffer.put(offset + PhraseOffset + i, rawBytes[i]);
+                }
+                for (int i = 0; i < accentBytes.length; i++) {
+                    mBuffer.put(offset + PhraseOffset + rawBytes.length + i, accentBytes[i]);
+                }
+            }
+            // the slot is complete before it is counted in the header
+            mNumSlots++;
+            mBuffer.putInt(4, mNumSlots);
+            mIndex.add(fingerprint, slot);
+        }
+        catch (IOException ex) {
+            LogUtil.LogError(this.getClass().getName(), "Error in learning phrase: cannot grow file.", ex);
+        }
+    }
 
-            try
-            {
-                String localModelFileName = mFileName;
-                File localModelFile = new File(mFileDir, localModelFileName);
+    /**
+     * Gets the number of phrases dropped for being longer than {@link #MaxOverflowPhraseBytes}.
+     */
+    public synchronized int getNumDropped() {
+        return mNumDropped;
+    }
 
-                mLocalModelOutputStream = new FileOutputStream(localModelFile);
-                mLocalModelBinaryWriter = new DataOutputStream(mLocalModelOutputStream);
+    /**
+     * Gets the version of the file format, {@link ModelVersion#LOOKUP_FINGERPRINT}.
+     */
+    @Override public int version() {
+        return ModelVersion.LOOKUP_FINGERPRINT;
+    }
 
-                // if not exists, then write header information and return
-                if (!localModelFile.exists()) {
-                    mLocalModelBinaryWriter.writeInt(version()); // model version
-                    mLocalModelBinaryWriter.writeInt(0); // number of entries
-                    return localModel;
+    /**
+     * Writes the mapping back to the file on the writer thread, after the phrases learned so far.
+     */
+    @Override public void dispose() {
+        sWriter.execute(new Runnable() {
+            @Override public void run() {
+                // the mappings are only replaced by this thread, and synced outside of the lock so
+                // that predictions do not wait for the disk
+                if (mBuffer == null) {
+                    return;
+                }
+                mBuffer.force();
+                if (mOverflow != null) {
+                    mOverflow.force();
+                }
+                synchronized (LookupModel.this) {
+                    mBuffer = null;
+                    try {
+                        mFile.close();
+                        if (mOverflow != null) {
+                            mOverflow = null;
+                            mOverflowFile.close();
+                        }
+                    }
+                    catch (IOException ex) {
+                        LogUtil.LogError(this.getClass().getName(), "Error in disposing model: cannot close file.", ex);
+                    }
                 }
+            }
+        });
+        instance = null;
+    }
 
-                CountingFileInputStream fileInputStream = new CountingFileInputStream(localModelFile);
-                DataInputStream binaryReader = new DataInputStream(fileInputStream);
+    private static int slotOffset(int slot) {
+        return HeaderSize + slot * SlotSize;
+    }
 
-                try {
-                    int modelVersion = binaryReader.readInt();
-                    if (modelVersion != version()) {
-                        return null;
-                    }
-                    int numEntries = binaryReader.readInt();
+    private static byte[] getBytes(String phrase) {
+        try {
+            return phrase.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
 
-                    for (int i = 0; i < numEntries; i++) {
-                        // Read hash code
-                        int hashCode = binaryReader.readInt();
+    private String readAccentPhrase(int slot) {
+        int offset = slotOffset(slot);
+        ByteBuffer buffer = mBuffer;
+        int start = offset + PhraseOffset + (mBuffer.get(offset + RawLengthOffset) & 0xFF);
+        int length = mBuffer.get(offset + AccentLengthOffset) & 0xFF;
+        if (isOverflow(offset)) {
+            buffer = mOverflow;
+            start = mBuffer.getInt(offset + PhraseOffset) + mBuffer.getInt(offset + PhraseOffset + 4);
+            length = mBuffer.getInt(offset + PhraseOffset + 8);
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        try {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException ex) {
+            return null;
+        }
+    }
 
-                        // Read accent string
-                        byte numUnicodeBytes = binaryReader.readByte();
-                        byte[] unicodeBytes = new byte[numUnicodeBytes];
-                        binaryReader.read(unicodeBytes);
-                        String accentString = new String(unicodeBytes, "UTF-8");
+    private boolean rawEquals(int slot, byte[] bytes) {
+        int offset = slotOffset(slot);
+        if (isOverflow(offset)) {
+            return hasOverflow(offset) && bytesEqual(mOverflow,
+                mBuffer.getInt(offset + PhraseOffset), mBuffer.getInt(offset + PhraseOffset + 4), bytes);
+        }
+        return bytesEqual(mBuffer, offset + PhraseOffset, mBuffer.get(offset + RawLengthOffset) & 0xFF, bytes);
+    }
 
-                        HashMap<String, LocalModelItemData> hashEntryValue;
-                        LocalModelItemData itemData;
+    private boolean accentEquals(int slot, byte[] bytes) {
+        int offset = slotOffset(slot);
+        if (isOverflow(offset)) {
+            return hasOverflow(offset) && bytesEqual(mOverflow,
+                mBuffer.getInt(offset + PhraseOffset) + mBuffer.getInt(offset + PhraseOffset + 4),
+                mBuffer.getInt(offset + PhraseOffset + 8), bytes);
+        }
+        return bytesEqual(mBuffer, offset + PhraseOffset + (mBuffer.get(offset + RawLengthOffset) & 0xFF),
+            mBuffer.get(offset + AccentLengthOffset) & 0xFF, bytes);
+    }
 
-                        if (localModel.containsKey(hashCode)) {
-                            hashEntryValue = localModel.get(hashCode);
-                        } else {
-                            hashEntryValue = new HashMap<>();
-                        }
-                        if (hashEntryValue.containsKey(accentString)) {
-                            itemData = hashEntryValue.get(accentString);
-                        } else {
-                            itemData = new LocalModelItemData();
-                        }
+    private static boolean bytesEqual(ByteBuffer buffer, int start, int length, byte[] bytes) {
+        if (length != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                        // Set position to the count
-                        itemData.offset = fileInputStream.getOffset();
+    private boolean isOverflow(int offset) {
+        return (mBuffer.get(offset + RawLengthOffset) & 0xFF) == OverflowLength;
+    }
 
-                        // Read count
-                        byte count = binaryReader.readByte();
+    /**
+     * Gets whether the phrases of an overflow slot are within the overflow file, which may be
+     * missing or shorter than expected if it was lost or torn.
+     */
+    private boolean hasOverflow(int offset) {
+        if (mOverflow == null) {
+            return false;
+        }
+        long start = mBuffer.getInt(offset + PhraseOffset);
+        long end = start + mBuffer.getInt(offset + PhraseOffset + 4) + mBuffer.getInt(offset + PhraseOffset + 8);
+        return start >= OverflowHeaderSize && end <= mOverflow.getInt(0);
+    }
+
+    /**
+     * Appends long phrases to the overflow file, opening or growing it as needed.
+     *
+     * @return The offset of the phrases in the overflow file.
+     */
+    private int appendOverflow(byte[] rawBytes, byte[] accentBytes) throws IOException {
+        if (mOverflow == null) {
+            mapOverflow(InitialOverflowBytes);
+        }
+        int used = mOverflow.getInt(0);
+        int length = rawBytes.length + accentBytes.length;
+        if (used + length > mOverflowCapacity) {
+            int capacity = mOverflowCapacity * 2;
+            while (used + length > capacity) {
+                capacity *= 2;
+            }
+            mapOverflow(capacity);
+        }
+        for (int i = 0; i < rawBytes.length; i++) {
+            mOverflow.put(used + i, rawBytes[i]);
+        }
+        for (int i = 0; i < accentBytes.length; i++) {
+            mOverflow.put(used + rawBytes.length + i, accentBytes[i]);
+        }
+        // the phrases are complete before they are counted, and before a slot points to them
+        mOverflow.putInt(0, used + length);
+        return used;
+    }
 
-                        itemData.count += count;
+    /**
+     * Maps the overflow file with room for the specified number of bytes, opening the file if
+     * needed.
+     */
+    private void mapOverflow(int capacityBytes) throws IOException {
+        if (mOverflowFile == null) {
+            mOverflowFile = new RandomAccessFile(new File(mFileDir, mFileName + OverflowSuffix), "rw");
+            capacityBytes = (int)Math.max(capacityBytes, mOverflowFile.length());
+        }
+        // the previous mapping is not synced, its pages are those of the file and stay valid
+        boolean isNew = mOverflowFile.length() < OverflowHeaderSize;
+        mOverflow = mOverflowFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacityBytes);
+        mOverflowCapacity = capacityBytes;
+        int used = mOverflow.getInt(0);
+        if (isNew || used < OverflowHeaderSize || used > capacityBytes) {
+            mOverflow.putInt(0, OverflowHeaderSize);
+        }
+    }
 
-                        hashEntryValue.put(accentString, itemData);
+    /**
+     * Maps the file with room for the specified number of slots, growing it if needed.
+     */
+    private void map(int capacitySlots) throws IOException {
+        // the previous mapping is not synced, which would stall predictions on the disk under the
+        // lock; its pages are those of the file, written back by the system or on dispose
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, slotOffset(capacitySlots));
+        mCapacitySlots = capacitySlots;
+    }
 
-                        localModel.put(hashCode, hashEntryValue);
+    private class LoadFromFile implements Runnable {
+        @Override public void run() {
+            try {
+                File migratingFile = load();
+                if (migratingFile != null) {
+                    // each phrase is learned under the lock, which is not held for the whole file
+                    ModelMigrator.migrate(migratingFile, new BatchLearner());
+                    // synced before the older file is deleted, outside of the lock like dispose
+                    mBuffer.force();
+                    if (mOverflow != null) {
+                        mOverflow.force();
                     }
+                    migratingFile.delete();
                 }
-                finally {
-                    binaryReader.close();
+                mLoaded = true;
+            }
+            catch (IOException ex) {
+                LogUtil.LogError(this.getClass().getName(), "Error in loading model: cannot map file.", ex);
+                synchronized (LookupModel.this) {
+                    mBuffer = null;
                 }
             }
-            catch (UnsupportedEncodingException ex) { }
-            catch (IOException ex) { }
-
-            return localModel;
         }
 
-        /** The system calls this to perform work in the UI thread and delivers
-         * the result from doInBackground() */
-        protected void onPostExecute(HashMap<Integer, HashMap<String, LocalModelItemData>> localModelFile) {
-            mLocalModel = localModelFile;
-        }
-    }
+        /**
+         * Maps & indexes the file, renaming a file of an older version aside.
+         *
+         * @return The file of an older version to migrate, or null.
+         */
+        private File load() throws IOException {
+            synchronized (LookupModel.this) {
+                File localModelFile = new File(mFileDir, mFileName);
+                File migratingFile = new File(mFileDir, mFileName + MigratingSuffix);
+                File overflowFile = new File(mFileDir, mFileName + OverflowSuffix);
+                if (migratingFile.exists()) {
+                    // a migration was interrupted, start it over
+                    localModelFile.delete();
+                    overflowFile.delete();
+                }
+                mFile = new RandomAccessFile(localModelFile, "rw");
+                if (!migratingFile.exists() && mFile.length() >= HeaderSize) {
+                    int modelVersion = mFile.readInt();
+                    mFile.seek(0);
+                    if (modelVersion != ModelVersion.LOOKUP_FINGERPRINT && ModelMigrator.canMigrate(modelVersion)) {
+                        // keep the older file until all of its phrases are in the new one
+                        mFile.close();
+                        if (!localModelFile.renameTo(migratingFile)) {
+                            throw new IOException("Cannot rename " + localModelFile);
+                        }
+                        mFile = new RandomAccessFile(localModelFile, "rw");
+                    }
+                }
 
-    private class LocalModelItemData {
-        public LocalModelItemData() {
-            offset = -1;
-        }
+                int numSlots = 0;
+                if (mFile.length() >= HeaderSize) {
+                    int modelVersion = mFile.readInt();
+                    numSlots = mFile.readInt();
+                    if (modelVersion != ModelVersion.LOOKUP_FINGERPRINT ||
+                        numSlots < 0 || slotOffset(numSlots) > mFile.length()) {
+                        // damaged file or a version that cannot be migrated, start over
+                        LogUtil.LogMessage(this.getClass().getName(), "Discarding lookup model of version " + modelVersion);
+                        numSlots = 0;
+                        overflowFile.delete();
+                    }
+                }
 
-        public byte count;
-        public long offset;
+                int capacitySlots = InitialSlots;
+                while (capacitySlots < numSlots) {
+                    capacitySlots *= 2;
+                }
+                map(capacitySlots);
+                mBuffer.putInt(0, ModelVersion.LOOKUP_FINGERPRINT);
+                mBuffer.putInt(4, numSlots);
+
+                // index the slots in one sequential pass over the mapping
+                mIndex = new FingerprintIndex(capacitySlots);
+                for (int slot = 0; slot < numSlots; slot++) {
+                    mIndex.add(mBuffer.getLong(slotOffset(slot)), slot);
+                }
+                mNumSlots = numSlots;
+                if (overflowFile.exists()) {
+                    mapOverflow(InitialOverflowBytes);
+                }
+                return migratingFile.exists() ? migratingFile : null;
+            }
+        }
     }
 }
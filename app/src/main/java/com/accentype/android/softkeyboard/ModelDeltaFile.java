@@ -0,0 +1,118 @@
+package com.accentype.android.softkeyboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Phrase counts learned by a model installation, exported to carry them to another one, see
+ * {@link LinearBackoffInterpolationModel#exportDelta(File)}.
+ *
+ * Layout, with fixed-width values big-endian:
+ * <pre>
+ * int version, long sourceId, int sequence
+ * history, see {@link FrontCodedHistory}
+ * int crc of the above
+ * </pre>
+ * A delta is identified by the installation it comes from and its sequence number there, so
+ * that importing the same delta twice is detected and does not count its phrases twice.
+ */
+public class ModelDeltaFile {
+    public static final int Version = ModelVersion.LINEAR_BACKOFF_INTERPOLATION_DELTA;
+    private static final int HeaderSize = 16;
+
+    public final long sourceId;
+    public final int sequence;
+    private PhraseHistory mHistory;
+    private FrontCodedHistory.Reader mReader;
+
+    public ModelDeltaFile(long sourceId, int sequence, PhraseHistory history) {
+        this.sourceId = sourceId;
+        this.sequence = sequence;
+        mHistory = history;
+    }
+
+    private ModelDeltaFile(long sourceId, int sequence, FrontCodedHistory.Reader reader) {
+        this.sourceId = sourceId;
+        this.sequence = sequence;
+        mReader = reader;
+    }
+
+    /**
+     * Gets the id of the delta, unique across installations.
+     */
+    public String getId() {
+        return Long.toHexString(sourceId) + ":" + sequence;
+    }
+
+    /**
+     * Gets the reader of the phrases of a delta that was read, to decode them a block at a time.
+     */
+    public FrontCodedHistory.Reader getReader() {
+        return mReader;
+    }
+
+    /**
+     * Writes the delta to a temp file, synced & renamed over the specified file.
+     */
+    public void write(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(Version);
+        out.writeLong(sourceId);
+        out.writeInt(sequence);
+        FrontCodedHistory.write(bytes, mHistory, true);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        out.writeInt((int)crc.getValue());
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+        try {
+            bytes.writeTo(fileOutputStream);
+            fileOutputStream.getFD().sync();
+        }
+        finally {
+            fileOutputStream.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Reads a delta and checks it is complete.
+     */
+    public static ModelDeltaFile read(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        }
+        finally {
+            in.close();
+        }
+
+        VarInt.Reader header = new VarInt.Reader(data, 0, data.length);
+        int version = header.readFixedInt();
+        if (version != Version) {
+            throw new IOException("Unexpected delta version " + version);
+        }
+        if (data.length < HeaderSize + 4) {
+            throw new IOException("Truncated delta " + file);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        if (new VarInt.Reader(data, data.length - 4, data.length).readFixedInt() != (int)crc.getValue()) {
+            throw new IOException("Corrupt delta " + file);
+        }
+        long sourceId = ((long)header.readFixedInt() << 32) | (header.readFixedInt() & 0xFFFFFFFFL);
+        int sequence = header.readFixedInt();
+        return new ModelDeltaFile(sourceId, sequence, new FrontCodedHistory.Reader(data, HeaderSize, data.length - 4));
+    }
+}
@@ -0,0 +1,195 @@
+package com.accentype.android.softkeyboard;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Streams the learned phrases out of model files of older versions, so that a model whose file
+ * format changed is rebuilt from them instead of starting empty.
+ *
+ * The file is read sequentially through a buffer and the phrases are handed over in chunks of
+ * {@link #ChunkSize}, so memory stays bounded however large the file is. Formats that only kept
+ * the accented phrase get the unaccented one by removing the accents, and records whose stored
+ * hash does not match it are skipped. A record torn at the end of the file ends the migration.
+ */
+public class ModelMigrator {
+    public static final int ChunkSize = 1024;
+
+    // slots of the LOOKUP_FINGERPRINT format, see LookupModel
+    private static final int FingerprintSlotSize = 128;
+
+    private final String[] mRawPhrases = new String[ChunkSize];
+    private final String[] mAccentPhrases = new String[ChunkSize];
+    private final int[] mCounts = new int[ChunkSize];
+    private final LearningPipeline.Learner mLearner;
+    private int mSize;
+    private int mNumMigrated;
+    private int mNumSkipped;
+
+    private ModelMigrator(LearningPipeline.Learner learner) {
+        mLearner = learner;
+    }
+
+    /**
+     * Gets whether the phrases of a file of the specified version can be migrated.
+     */
+    public static boolean canMigrate(int version) {
+        switch (version) {
+            case ModelVersion.LOOKUP:
+            case ModelVersion.LINEAR_BACKOFF_INTERPOLATION:
+            case ModelVersion.LOOKUP_FINGERPRINT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Streams the phrases of a model file to a learner, one chunk at a time.
+     *
+     * @return The number of phrases migrated.
+     */
+    public static int migrate(File file, LearningPipeline.Learner learner) throws IOException {
+        ModelMigrator migrator = new ModelMigrator(learner);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        int version = 0;
+        try {
+            version = in.readInt();
+            switch (version) {
+                case ModelVersion.LOOKUP:
+                    migrator.readLookup(in);
+                    break;
+                case ModelVersion.LINEAR_BACKOFF_INTERPOLATION:
+                    migrator.readHistory(in);
+                    break;
+                case ModelVersion.LOOKUP_FINGERPRINT:
+                    migrator.readFingerprintSlots(in);
+                    break;
+                default:
+                    throw new IOException("Cannot migrate model version " + version);
+            }
+        }
+        catch (EOFException ex) {
+            // torn record at the end, keep what was complete
+        }
+        finally {
+            in.close();
+        }
+        migrator.flushChunk();
+
+        LogUtil.LogMessage(ModelMigrator.class.getName(), "Migrated " + migrator.mNumMigrated +
+            " phrases from model version " + version + ", skipped " + migrator.mNumSkipped);
+        return migrator.mNumMigrated;
+    }
+
+    /**
+     * Gets the unaccented phrase of an accented one, keeping the case of its letters.
+     */
+    public static String removeAccents(String accentPhrase) {
+        char[] chars = accentPhrase.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+            char lower = Character.toLowerCase(c);
+            Character raw = LanguageConstruct.AccentToRawMap.get(lower);
+            if (raw != null) {
+                chars[i] = lower == c ? raw : Character.toUpperCase(raw);
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Reads the LOOKUP format: int numEntries (unreliable), then records of int hash of the
+     * unaccented phrase, byte length, UTF-8 accented phrase, int count, until the end.
+     */
+    private void readLookup(DataInputStream in) throws IOException {
+        in.readInt();
+        while (true) {
+            int hashCode;
+            try {
+                hashCode = in.readInt();
+            }
+            catch (EOFException ex) {
+                return;
+            }
+            String accentPhrase = readUtf8(in, in.readUnsignedByte());
+            int count = in.readInt();
+            addAccented(accentPhrase, hashCode, true, count);
+        }
+    }
+
+    /**
+     * Reads the history of the LINEAR_BACKOFF_INTERPOLATION format: int numEntries, then
+     * records of byte length, UTF-8 accented phrase, int count.
+     */
+    private void readHistory(DataInputStream in) throws IOException {
+        int numEntries = in.readInt();
+        for (int i = 0; i < numEntries; i++) {
+            String accentPhrase = readUtf8(in, in.readUnsignedByte());
+            addAccented(accentPhrase, 0, false, in.readInt());
+        }
+    }
+
+    private void readFingerprintSlots(DataInputStream in) throws IOException {
+        int numSlots = in.readInt();
+        byte[] slot = new byte[FingerprintSlotSize];
+        for (int i = 0; i < numSlots; i++) {
+            in.readFully(slot);
+            int count = getInt(slot, 8);
+            int rawLength = slot[12] & 0xFF;
+            if (rawLength == LookupModel.OverflowLength) {
+                // the phrases are in the overflow file, which is not migrated with the slots
+                mNumSkipped++;
+                continue;
+            }
+            String rawPhrase = new String(slot, 14, rawLength, "UTF-8");
+            String accentPhrase = new String(slot, 14 + rawLength, slot[13] & 0xFF, "UTF-8");
+            add(rawPhrase, accentPhrase, count);
+        }
+    }
+
+    private void addAccented(String accentPhrase, int hashCode, boolean checkHash, int count) {
+        String rawPhrase = removeAccents(accentPhrase);
+        if (checkHash && rawPhrase.hashCode() != hashCode) {
+            mNumSkipped++;
+            return;
+        }
+        add(rawPhrase, accentPhrase, count);
+    }
+
+    private void add(String rawPhrase, String accentPhrase, int count) {
+        if (count <= 0) {
+            mNumSkipped++;
+            return;
+        }
+        mRawPhrases[mSize] = rawPhrase;
+        mAccentPhrases[mSize] = accentPhrase;
+        mCounts[mSize] = count;
+        if (++mSize == ChunkSize) {
+            flushChunk();
+        }
+    }
+
+    private void flushChunk() {
+        if (mSize > 0) {
+            mLearner.learnBatch(mRawPhrases, mAccentPhrases, mCounts, mSize);
+            mNumMigrated += mSize;
+            mSize = 0;
+        }
+    }
+
+    private static String readUtf8(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) |
+            ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+}
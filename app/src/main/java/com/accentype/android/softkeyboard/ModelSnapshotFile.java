@@ -0,0 +1,488 @@
+package com.accentype.android.softkeyboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of the n-gram tables & phrase history of {@link LinearBackoffInterpolationModel},
+ * loaded directly instead of replaying the history.
+ *
+ * Layout, with fixed ints big-endian and everything else varints (see {@link VarInt}):
+ * <pre>
+ * int version, int numSections
+ * numSections x (int sectionId, int offset, int length, int crc)   offsets from the start of the file
+ * int crc of the above
+ * sections
+ * </pre>
+ * The CRC32 of each section is checked on read, and a corrupt section is read as empty so that
+ * the others still load, see {@link #isCorrupt(int)}. Files of the previous snapshot version
+ * have no CRCs and are still read.
+ *
+ * The vocabulary section lists the syllables used by the tables, giving them file ids from 1
+ * in order, so the tables do not depend on the ids of the running process. Each syllable is
+ * stored as (UTF-8 length &lt;&lt; 1 | is accented variant) followed by its UTF-8 bytes.
+ *
+ * A table section has the number of unaccented phrases & accented variants, then each
+ * unaccented phrase in ascending key order as the delta from the previous key, followed by its
+ * number of variants and, for each variant, its syllable file ids and count.
+ *
+ * The history is stored front-coded in blocks, see {@link FrontCodedHistory}. Files written
+ * before that have a plain history section instead, with the number of phrases, then each
+ * phrase as a string and a count.
+ * The log section has the last segment of the {@link LearningLog} included in the snapshot.
+ * The imports section has the number of deltas imported, then the id of each, see
+ * {@link ModelDeltaFile}.
+ * The export section has the sequence number of the last delta exported, then the counts
+ * learned since and not exported yet, front-coded like the history. Files without it have not
+ * exported anything, so all of their history is unexported.
+ * Unknown sections are skipped, so sections can be added without changing the version.
+ */
+public class ModelSnapshotFile {
+    public static final int Version = ModelVersion.LINEAR_BACKOFF_INTERPOLATION_CHECKSUMMED;
+
+    static final int SectionVocabulary = 1;
+    static final int SectionHistory = 2;
+    static final int SectionModel1 = 3;
+    static final int SectionModel2 = 4;
+    static final int SectionModel3 = 5;
+    static final int SectionLog = 6;
+    static final int SectionHistoryBlocks = 7;
+    static final int SectionImports = 8;
+    static final int SectionExport = 9;
+
+    public final PhraseMap model1;
+    public final PhraseMap model2;
+    public final PhraseMap model3;
+    // the last learning log segment included, 0 if none
+    public int logSegment;
+    // ids of the deltas whose counts are included
+    public List<String> importedDeltas = new ArrayList<>();
+    // sequence number of the last delta exported, 0 if none
+    public int exportSequence;
+    // whether to deflate the blocks of the history when writing
+    public boolean deflateHistory = true;
+    private PhraseHistory mHistory;
+    // the counts not exported yet, null if the file has no export section
+    private PhraseHistory mUnexported;
+    // bit per section id that failed its CRC
+    private int mCorruptSections;
+
+    // the history section of a file that was read, parsed on demand
+    private byte[] mData;
+    private int mHistoryStart;
+    private int mHistoryEnd;
+    private boolean mHistoryBlocks;
+    private boolean mHasExport;
+    private int mUnexportedStart;
+    private int mUnexportedEnd;
+
+    public ModelSnapshotFile(PhraseMap model1, PhraseMap model2, PhraseMap model3, PhraseHistory history) {
+        this.model1 = model1;
+        this.model2 = model2;
+        this.model3 = model3;
+        mHistory = history;
+    }
+
+    /**
+     * Gets whether the snapshot file version can be read.
+     */
+    public static boolean canRead(int version) {
+        return version == Version || version == ModelVersion.LINEAR_BACKOFF_INTERPOLATION_SNAPSHOT;
+    }
+
+    /**
+     * Gets whether a section of the file that was read is corrupt and was read as empty.
+     */
+    public boolean isCorrupt(int sectionId) {
+        return (mCorruptSections & (1 << sectionId)) != 0;
+    }
+
+    /**
+     * Gets whether a section of the file that was read is corrupt.
+     */
+    public boolean hasCorruptSections() {
+        return mCorruptSections != 0;
+    }
+
+    /**
+     * Gets whether any n-gram table of the file that was read is corrupt.
+     */
+    public boolean hasCorruptTables() {
+        return isCorrupt(SectionModel1) || isCorrupt(SectionModel2) || isCorrupt(SectionModel3);
+    }
+
+    /**
+     * Gets whether the history of the file that was read is corrupt.
+     */
+    public boolean hasCorruptHistory() {
+        return isCorrupt(SectionHistory) || isCorrupt(SectionHistoryBlocks);
+    }
+
+    /**
+     * Gets the phrase history. The history is not needed for predicting, so a snapshot that was
+     * read only parses it here, letting the tables be used first.
+     */
+    public PhraseHistory getHistory() throws IOException {
+        if (mHistory == null && mData != null) {
+            PhraseHistory history = new PhraseHistory();
+            if (mHistoryBlocks) {
+                new FrontCodedHistory.Reader(mData, mHistoryStart, mHistoryEnd).readAll(history);
+            }
+            else {
+                VarInt.Reader reader = new VarInt.Reader(mData, mHistoryStart, mHistoryEnd);
+                int numPhrases = reader.hasMore() ? reader.readInt() : 0;
+                for (int i = 0; i < numPhrases; i++) {
+                    String phrase = reader.readString();
+                    history.put(phrase, reader.readInt());
+                }
+            }
+            mHistory = history;
+            if (mHasExport) {
+                mUnexported = new PhraseHistory();
+                new FrontCodedHistory.Reader(mData, mUnexportedStart, mUnexportedEnd).readAll(mUnexported);
+            }
+            mData = null;
+        }
+        return mHistory;
+    }
+
+    /**
+     * Gets the counts learned since the last export, parsed along with the history.
+     *
+     * @return The counts, or null if the file has no export section, i.e. nothing was exported
+     * and the whole history is unexported.
+     */
+    public PhraseHistory getUnexported() throws IOException {
+        getHistory();
+        return mUnexported;
+    }
+
+    /**
+     * Sets the counts learned since the last export, to be written.
+     */
+    public void setUnexported(PhraseHistory unexported) {
+        mUnexported = unexported;
+    }
+
+    /**
+     * Writes the snapshot.
+     */
+    public void write(OutputStream out) throws IOException {
+        Vocabulary vocabulary = Vocabulary.getInstance();
+
+        // give file ids to the syllables used by the tables, in order of first use
+        int[] fileIds = new int[vocabulary.size()];
+        int[] wordIds = new int[Math.max(16, vocabulary.size())];
+        boolean[] accented = new boolean[wordIds.length];
+        int numWords = 0;
+        PhraseMap[] models = { model1, model2, model3 };
+        for (int n = 1; n <= Phrase.MaxWords; n++) {
+            PhraseMap model = models[n - 1];
+            for (int slot = 0; slot < model.capacity(); slot++) {
+                long key = model.keyAt(slot);
+                if (key == 0) {
+                    continue;
+                }
+                for (int i = 0; i < n; i++) {
+                    numWords = assignFileId(Phrase.word(key, i), false, fileIds, wordIds, accented, numWords);
+                }
+                for (int v = model.headAt(slot); v != PhraseMap.NoVariant; v = model.nextVariant(v)) {
+                    for (int i = 0; i < n; i++) {
+                        numWords = assignFileId(model.variantWord(v, i), true, fileIds, wordIds, accented, numWords);
+                    }
+                }
+            }
+        }
+
+        List<Integer> sectionIds = new ArrayList<>();
+        List<ByteArrayOutputStream> sections = new ArrayList<>();
+
+        ByteArrayOutputStream section = new ByteArrayOutputStream();
+        VarInt.write(section, numWords);
+        for (int fileId = 1; fileId <= numWords; fileId++) {
+            byte[] bytes = vocabulary.get(wordIds[fileId]).getBytes("UTF-8");
+            VarInt.write(section, ((long)bytes.length << 1) | (accented[fileId] ? 1 : 0));
+            section.write(bytes, 0, bytes.length);
+        }
+        sectionIds.add(SectionVocabulary);
+        sections.add(section);
+
+        for (int n = 1; n <= Phrase.MaxWords; n++) {
+            section = new ByteArrayOutputStream();
+            writeModel(section, models[n - 1], n, fileIds, wordIds);
+            sectionIds.add(SectionModel1 + n - 1);
+            sections.add(section);
+        }
+
+        section = new ByteArrayOutputStream();
+        FrontCodedHistory.write(section, getHistory(), deflateHistory);
+        sectionIds.add(SectionHistoryBlocks);
+        sections.add(section);
+
+        section = new ByteArrayOutputStream();
+        VarInt.write(section, logSegment);
+        sectionIds.add(SectionLog);
+        sections.add(section);
+
+        section = new ByteArrayOutputStream();
+        VarInt.write(section, importedDeltas.size());
+        for (String id : importedDeltas) {
+            VarInt.writeString(section, id);
+        }
+        sectionIds.add(SectionImports);
+        sections.add(section);
+
+        if (getUnexported() != null) {
+            section = new ByteArrayOutputStream();
+            VarInt.write(section, exportSequence);
+            FrontCodedHistory.write(section, mUnexported, deflateHistory);
+            sectionIds.add(SectionExport);
+            sections.add(section);
+        }
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(Version);
+        header.writeInt(sections.size());
+        int offset = 8 + 16 * sections.size() + 4;
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < sections.size(); i++) {
+            byte[] bytes = sections.get(i).toByteArray();
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            header.writeInt(sectionIds.get(i));
+            header.writeInt(offset);
+            header.writeInt(bytes.length);
+            header.writeInt((int)crc.getValue());
+            offset += bytes.length;
+        }
+        crc.reset();
+        crc.update(headerBytes.toByteArray(), 0, headerBytes.size());
+        header.writeInt((int)crc.getValue());
+
+        headerBytes.writeTo(out);
+        for (ByteArrayOutputStream s : sections) {
+            s.writeTo(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a whole snapshot file in one bulk read and loads its tables.
+     */
+    public static ModelSnapshotFile read(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        }
+        finally {
+            in.close();
+        }
+        return read(data);
+    }
+
+    /**
+     * Loads the tables of a snapshot held in memory.
+     */
+    public static ModelSnapshotFile read(byte[] data) throws IOException {
+        VarInt.Reader header = new VarInt.Reader(data, 0, data.length);
+        int version = header.readFixedInt();
+        if (!canRead(version)) {
+            throw new IOException("Unexpected snapshot version " + version);
+        }
+        boolean checksummed = version == Version;
+        int numSections = header.readFixedInt();
+        if (numSections < 0 || numSections > (data.length - 8) / 12) {
+            throw new IOException("Corrupt snapshot header");
+        }
+        int[] starts = new int[SectionExport + 1];
+        int[] ends = new int[SectionExport + 1];
+        int[] crcs = new int[SectionExport + 1];
+        boolean historyBlocks = false;
+        for (int i = 0; i < numSections; i++) {
+            int id = header.readFixedInt();
+            int offset = header.readFixedInt();
+            int length = header.readFixedInt();
+            int crc = checksummed ? header.readFixedInt() : 0;
+            if (id >= 0 && id < starts.length) {
+                starts[id] = offset;
+                ends[id] = offset + length;
+                crcs[id] = crc;
+                historyBlocks |= id == SectionHistoryBlocks;
+            }
+        }
+        CRC32 crc = new CRC32();
+        if (checksummed) {
+            int headerLength = 8 + 16 * numSections;
+            crc.update(data, 0, headerLength);
+            if (header.readFixedInt() != (int)crc.getValue()) {
+                throw new IOException("Corrupt snapshot header");
+            }
+        }
+
+        // read corrupt or truncated sections as empty
+        int corruptSections = 0;
+        for (int id = 0; id < starts.length; id++) {
+            boolean corrupt = starts[id] < 0 || ends[id] < starts[id] || ends[id] > data.length;
+            if (!corrupt && checksummed && ends[id] > starts[id]) {
+                crc.reset();
+                crc.update(data, starts[id], ends[id] - starts[id]);
+                corrupt = crcs[id] != (int)crc.getValue();
+            }
+            if (corrupt) {
+                corruptSections |= 1 << id;
+                starts[id] = ends[id] = 0;
+            }
+        }
+        // the tables cannot be decoded without the vocabulary
+        if ((corruptSections & (1 << SectionVocabulary)) != 0) {
+            for (int id = SectionModel1; id <= SectionModel3; id++) {
+                corruptSections |= 1 << id;
+                starts[id] = ends[id] = 0;
+            }
+        }
+
+        Vocabulary vocabulary = Vocabulary.getInstance();
+        VarInt.Reader reader = new VarInt.Reader(data, starts[SectionVocabulary], ends[SectionVocabulary]);
+        int numWords = reader.hasMore() ? reader.readInt() : 0;
+        int[] wordIds = new int[numWords + 1];
+        for (int fileId = 1; fileId <= numWords; fileId++) {
+            long lengthAndFlag = reader.readLong();
+            wordIds[fileId] = vocabulary.intern(reader.readUtf8((int)(lengthAndFlag >>> 1)));
+            if ((lengthAndFlag & 1) != 0) {
+                vocabulary.addVariant(wordIds[fileId]);
+            }
+        }
+
+        PhraseMap[] models = new PhraseMap[Phrase.MaxWords];
+        for (int n = 1; n <= Phrase.MaxWords; n++) {
+            int id = SectionModel1 + n - 1;
+            try {
+                models[n - 1] = readModel(new VarInt.Reader(data, starts[id], ends[id]), n, wordIds);
+            }
+            catch (IOException ex) {
+                // only files without CRCs get here
+                corruptSections |= 1 << id;
+                models[n - 1] = new PhraseMap();
+            }
+        }
+
+        ModelSnapshotFile snapshotFile = new ModelSnapshotFile(models[0], models[1], models[2], null);
+        snapshotFile.mCorruptSections = corruptSections;
+        reader = new VarInt.Reader(data, starts[SectionLog], ends[SectionLog]);
+        snapshotFile.logSegment = reader.hasMore() ? reader.readInt() : 0;
+        reader = new VarInt.Reader(data, starts[SectionImports], ends[SectionImports]);
+        int numImports = reader.hasMore() ? reader.readInt() : 0;
+        for (int i = 0; i < numImports; i++) {
+            snapshotFile.importedDeltas.add(reader.readString());
+        }
+        reader = new VarInt.Reader(data, starts[SectionExport], ends[SectionExport]);
+        if (reader.hasMore()) {
+            snapshotFile.exportSequence = reader.readInt();
+            snapshotFile.mHasExport = true;
+            snapshotFile.mUnexportedStart = ends[SectionExport] - reader.remaining();
+            snapshotFile.mUnexportedEnd = ends[SectionExport];
+        }
+        snapshotFile.mData = data;
+        int historySection = historyBlocks ? SectionHistoryBlocks : SectionHistory;
+        snapshotFile.mHistoryBlocks = historyBlocks;
+        snapshotFile.mHistoryStart = starts[historySection];
+        snapshotFile.mHistoryEnd = ends[historySection];
+        return snapshotFile;
+    }
+
+    private static int assignFileId(int id, boolean accented, int[] fileIds, int[] wordIds,
+                                    boolean[] accentedFlags, int numWords) {
+        if (fileIds[id] == 0) {
+            fileIds[id] = ++numWords;
+            wordIds[numWords] = id;
+        }
+        if (accented) {
+            accentedFlags[fileIds[id]] = true;
+        }
+        return numWords;
+    }
+
+    private static void writeModel(ByteArrayOutputStream out, PhraseMap model, int n, int[] fileIds, int[] wordIds) {
+        long[] keys = new long[model.size()];
+        int size = 0;
+        for (int slot = 0; slot < model.capacity(); slot++) {
+            long key = model.keyAt(slot);
+            if (key != 0) {
+                keys[size++] = remap(key, fileIds);
+            }
+        }
+        Arrays.sort(keys, 0, size);
+
+        VarInt.write(out, size);
+        VarInt.write(out, model.variantSize());
+        long previous = 0;
+        for (int k = 0; k < size; k++) {
+            VarInt.write(out, keys[k] - previous);
+            previous = keys[k];
+
+            int head = model.lookup(remap(keys[k], wordIds));
+            int numVariants = 0;
+            for (int v = head; v != PhraseMap.NoVariant; v = model.nextVariant(v)) {
+                numVariants++;
+            }
+            VarInt.write(out, numVariants);
+            for (int v = head; v != PhraseMap.NoVariant; v = model.nextVariant(v)) {
+                for (int i = 0; i < n; i++) {
+                    VarInt.write(out, fileIds[model.variantWord(v, i)]);
+                }
+                VarInt.write(out, model.variantCount(v));
+            }
+        }
+    }
+
+    private static PhraseMap readModel(VarInt.Reader reader, int n, int[] wordIds) throws IOException {
+        if (!reader.hasMore()) {
+            return new PhraseMap();
+        }
+        int size = reader.readInt();
+        int numVariants = reader.readInt();
+        PhraseMap model = new PhraseMap(size, numVariants);
+        int[] words = new int[Phrase.MaxWords];
+        long key = 0;
+        for (int k = 0; k < size; k++) {
+            key += reader.readLong();
+            for (int i = 0; i < n; i++) {
+                words[i] = fileId(Phrase.word(key, i), wordIds);
+            }
+            long rawPhrase = Phrase.pack(words, 0, n);
+            int count = reader.readInt();
+            for (int v = 0; v < count; v++) {
+                for (int i = 0; i < n; i++) {
+                    words[i] = fileId(reader.readInt(), wordIds);
+                }
+                model.add(rawPhrase, Phrase.pack(words, 0, n), reader.readInt());
+            }
+        }
+        return model;
+    }
+
+    /**
+     * Maps the syllables of a packed phrase through the specified ids, 0 staying 0.
+     */
+    private static long remap(long key, int[] ids) {
+        return Phrase.pack(ids[Phrase.word(key, 0)], ids[Phrase.word(key, 1)], ids[Phrase.word(key, 2)]);
+    }
+
+    private static int fileId(int fileId, int[] wordIds) throws IOException {
+        if (fileId <= 0 || fileId >= wordIds.length) {
+            throw new IOException("Unknown syllable " + fileId);
+        }
+        return wordIds[fileId];
+    }
+}
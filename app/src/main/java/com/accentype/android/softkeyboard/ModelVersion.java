@@ -6,4 +6,12 @@ package com.accentype.android.softkeyboard;
 public class ModelVersion {
     static final int LOOKUP = 1;
     static final int LINEAR_BACKOFF_INTERPOLATION = 2;
+    // file format of the linear backoff interpolation model storing its tables directly
+    static final int LINEAR_BACKOFF_INTERPOLATION_SNAPSHOT = 3;
+    // file format of the lookup model, storing the unaccented phrase & its fingerprint in each slot
+    static final int LOOKUP_FINGERPRINT = 5;
+    // file format of the linear backoff interpolation model snapshot with a CRC per section
+    static final int LINEAR_BACKOFF_INTERPOLATION_CHECKSUMMED = 6;
+    // file format of the phrase counts exported from a linear backoff interpolation model
+    static final int LINEAR_BACKOFF_INTERPOLATION_DELTA = 7;
 }
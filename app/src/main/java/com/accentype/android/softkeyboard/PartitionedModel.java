@@ -0,0 +1,291 @@
+package com.accentype.android.softkeyboard;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Model partitioned by the application being typed into, on top of a shared base model.
+ *
+ * Every phrase is learned by both the base model and the partition of the current application,
+ * and predictions come from the partition unless the base model knows more of the phrase. Each
+ * partition is a {@link LinearBackoffInterpolationModel} with its own file, created the first
+ * time its application is typed into. Only the {@link #DefaultMaxResident} most recently used
+ * partitions stay in memory; the others are disposed, and loaded again from their files when
+ * their application comes back.
+ */
+public class PartitionedModel implements BaseModel {
+    public static final int DefaultMaxResident = 3;
+    // partitions only hold the phrases of their applications, so they get a smaller budget
+    public static final int DefaultPartitionMaxEntries = LinearBackoffInterpolationModel.DefaultMaxEntries / 4;
+
+    private final BaseModel mBase;
+    private final String mFileName;
+    private final String mFileDir;
+    private final Map<String, String> mGroups = new HashMap<>();
+    private final LinkedHashMap<String, LinearBackoffInterpolationModel> mPartitions;
+    private int mMaxResident = DefaultMaxResident;
+    private volatile LinearBackoffInterpolationModel mCurrent;
+    private volatile String mCurrentKey;
+
+    /**
+     * @param base The model shared by all applications.
+     * @param fileName The file name of the base model, which the partition files are named after.
+     */
+    public PartitionedModel(BaseModel base, String fileName, String fileDir) {
+        mBase = base;
+        mFileName = fileName;
+        mFileDir = fileDir;
+        mPartitions = new LinkedHashMap<String, LinearBackoffInterpolationModel>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, LinearBackoffInterpolationModel> eldest) {
+                if (size() <= mMaxResident) {
+                    return false;
+                }
+                LogUtil.LogMessage(PartitionedModel.class.getName(), "Evicting model partition " + eldest.getKey());
+                eldest.getValue().dispose();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Makes applications share a partition, e.g. all the chat applications.
+     *
+     * @param packageName The package name of the application.
+     * @param group The name of the shared partition, null to give the application its own again.
+     */
+    public synchronized void setGroup(String packageName, String group) {
+        if (group == null) {
+            mGroups.remove(packageName);
+        }
+        else {
+            mGroups.put(packageName, group);
+        }
+    }
+
+    /**
+     * Sets the max number of partitions kept in memory, disposing the least recently used
+     * ones if there are more.
+     */
+    public synchronized void setMaxResident(int maxResident) {
+        mMaxResident = Math.max(1, maxResident);
+        Iterator<Map.Entry<String, LinearBackoffInterpolationModel>> it = mPartitions.entrySet().iterator();
+        while (mPartitions.size() > mMaxResident && it.hasNext()) {
+            Map.Entry<String, LinearBackoffInterpolationModel> entry = it.next();
+            if (entry.getValue() != mCurrent) {
+                entry.getValue().dispose();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of partitions in memory.
+     */
+    public synchronized int getNumResident() {
+        return mPartitions.size();
+    }
+
+    /**
+     * Switches to the partition of an application, loading it if it is not in memory.
+     *
+     * @param packageName The package name of the application, null to only use the base model.
+     */
+    public synchronized void setPartition(String packageName) {
+        String key = getPartitionKey(packageName);
+        if (key == null) {
+            mCurrent = null;
+            mCurrentKey = null;
+            return;
+        }
+        LinearBackoffInterpolationModel partition = mPartitions.get(key);
+        if (partition == null) {
+            // loads asynchronously on the model writer thread
+            partition = new LinearBackoffInterpolationModel(mFileName + "-" + key, mFileDir);
+            partition.setMaxEntries(DefaultPartitionMaxEntries);
+            mPartitions.put(key, partition);
+        }
+        mCurrent = partition;
+        mCurrentKey = key;
+    }
+
+    /**
+     * Gets the key of the current partition, null if there is none.
+     */
+    public String getPartition() {
+        return mCurrentKey;
+    }
+
+    @Override public String predict(String rawPhrase) {
+        LinearBackoffInterpolationModel partition = mCurrent;
+        String prediction = partition == null ? null : partition.predict(rawPhrase);
+        if (prediction != null && countUnknown(prediction) == 0) {
+            return prediction;
+        }
+        return choose(prediction, mBase.predict(rawPhrase));
+    }
+
+    @Override public List<String> predictAlternatives(String rawPhrase, int maxAlternatives) {
+        LinearBackoffInterpolationModel partition = mCurrent;
+        if (partition == null) {
+            return mBase.predictAlternatives(rawPhrase, maxAlternatives);
+        }
+        List<String> alternatives = partition.predictAlternatives(rawPhrase, maxAlternatives);
+        if (alternatives.size() < maxAlternatives) {
+            for (String alternative : mBase.predictAlternatives(rawPhrase, maxAlternatives)) {
+                if (alternatives.size() >= maxAlternatives) {
+                    break;
+                }
+                if (!alternatives.contains(alternative)) {
+                    alternatives.add(alternative);
+                }
+            }
+        }
+        return alternatives;
+    }
+
+    @Override public PredictionFuture predictAsync(String rawPhrase, long deadlineMillis) {
+        return PredictionFuture.submit(this, rawPhrase, deadlineMillis);
+    }
+
+    @Override public PredictionSession newSession() {
+        return new PartitionedSession();
+    }
+
+    @Override public void learn(String rawPhrase, String accentPhrase) {
+        mBase.learn(rawPhrase, accentPhrase);
+        LinearBackoffInterpolationModel partition = mCurrent;
+        if (partition != null) {
+            partition.learn(rawPhrase, accentPhrase);
+        }
+    }
+
+    @Override public synchronized void dispose() {
+        for (LinearBackoffInterpolationModel partition : new ArrayList<>(mPartitions.values())) {
+            partition.dispose();
+        }
+        mPartitions.clear();
+        mCurrent = null;
+        mCurrentKey = null;
+        mBase.dispose();
+    }
+
+    @Override public int version() {
+        return mBase.version();
+    }
+
+    private synchronized String getPartitionKey(String packageName) {
+        if (packageName == null || packageName.length() == 0) {
+            return null;
+        }
+        String group = mGroups.get(packageName);
+        String key = group != null ? group : packageName;
+
+        // keep the key usable as part of a file name
+        StringBuilder sb = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            boolean isSafe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+                (c >= '0' && c <= '9') || c == '.' || c == '_';
+            sb.append(isSafe ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Chooses between the predictions of the partition & the base model, preferring the
+     * partition unless the base model predicts more of the words.
+     */
+    private static String choose(String partitionPrediction, String basePrediction) {
+        if (basePrediction == null) {
+            return partitionPrediction;
+        }
+        if (partitionPrediction == null) {
+            return basePrediction;
+        }
+        return countUnknown(basePrediction) < countUnknown(partitionPrediction) ? basePrediction : partitionPrediction;
+    }
+
+    /**
+     * Counts the characters left as dots, i.e. in the words without a prediction.
+     */
+    private static int countUnknown(String prediction) {
+        int count = 0;
+        for (int i = 0; i < prediction.length(); i++) {
+            if (prediction.charAt(i) == '.') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Session that keeps incremental sessions of the base model & of the current partition,
+     * starting a new partition session with the phrase so far when the partition changes.
+     */
+    private class PartitionedSession extends BasePredictionSession {
+        private final PredictionSession mBaseSession = mBase.newSession();
+        private final StringBuilder mText = new StringBuilder();
+        private LinearBackoffInterpolationModel mSessionPartition;
+        private PredictionSession mPartitionSession;
+
+        @Override public synchronized void append(char c) {
+            mText.append(c);
+            mBaseSession.append(c);
+            if (mPartitionSession != null) {
+                mPartitionSession.append(c);
+            }
+        }
+
+        @Override public synchronized void deleteLast() {
+            if (mText.length() > 0) {
+                mText.setLength(mText.length() - 1);
+            }
+            mBaseSession.deleteLast();
+            if (mPartitionSession != null) {
+                mPartitionSession.deleteLast();
+            }
+        }
+
+        @Override public synchronized void update(CharSequence text) {
+            mText.setLength(0);
+            mText.append(text);
+            mBaseSession.update(text);
+            if (mPartitionSession != null) {
+                mPartitionSession.update(text);
+            }
+        }
+
+        @Override public synchronized void reset() {
+            mText.setLength(0);
+            mBaseSession.reset();
+            if (mPartitionSession != null) {
+                mPartitionSession.reset();
+            }
+        }
+
+        @Override protected CharSequence getText() {
+            return mText;
+        }
+
+        @Override public synchronized String predict() {
+            LinearBackoffInterpolationModel partition = mCurrent;
+            if (partition != mSessionPartition) {
+                mSessionPartition = partition;
+                mPartitionSession = partition == null ? null : partition.newSession();
+                if (mPartitionSession != null) {
+                    mPartitionSession.update(mText);
+                }
+            }
+
+            String prediction = mPartitionSession == null ? null : mPartitionSession.predict();
+            if (prediction != null && countUnknown(prediction) == 0) {
+                return prediction;
+            }
+            return choose(prediction, mBaseSession.predict());
+        }
+    }
+}
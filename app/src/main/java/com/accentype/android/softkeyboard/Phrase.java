@@ -1,43 +1,59 @@
 package com.accentype.android.softkeyboard;
 
 /**
- * Represents a phrase of up to three words.
+ * Represents a phrase of up to three words, packed into a single long key.
+ * Each word is a syllable id from {@link Vocabulary} and takes 21 bits, with
+ * the first word in the highest bits. An id of 0 marks an unused position.
  */
 public class Phrase {
     public static final String BeginMarker = "+";
     public static final String EndMarker = "-";
 
-    private String w1 = "";
-    private String w2 = "";
-    private String w3 = "";
+    public static final int MaxWords = 3;
 
-    public Phrase(String q1) {
-        w1 = q1;
+    static final int WordBits = 21;
+    static final int MaxWordId = (1 << WordBits) - 1;
+
+    private Phrase() {
     }
 
-    public Phrase(String q1, String q2) {
-        w1 = q1;
-        w2 = q2;
+    public static long pack(int w1) {
+        return pack(w1, 0, 0);
     }
 
-    public Phrase(String q1, String q2, String q3) {
-        w1 = q1;
-        w2 = q2;
-        w3 = q3;
+    public static long pack(int w1, int w2) {
+        return pack(w1, w2, 0);
     }
 
-    public int hashCode() {
-        return 29791 + 961 * w1.hashCode() + 31 * w2.hashCode() + w3.hashCode();
+    public static long pack(int w1, int w2, int w3) {
+        return ((long)w1 << (2 * WordBits)) | ((long)w2 << WordBits) | (long)w3;
     }
 
-    public boolean equals(Object o) {
-        if ( o == null ) {
-            return false;
-        }
-        if ( this.getClass() != o.getClass() ) {
-            return false;
+    /**
+     * Packs {@code n} consecutive word ids starting at {@code start}.
+     *
+     * @param words The word ids.
+     * @param start The index of the first word.
+     * @param n The number of words to pack, between 1 and {@link #MaxWords}.
+     */
+    public static long pack(int[] words, int start, int n) {
+        long key = 0;
+        for (int i = 0; i < MaxWords; i++) {
+            key <<= WordBits;
+            if (i < n) {
+                key |= words[start + i];
+            }
         }
-        Phrase p = (Phrase)o;
-        return w1.equals(p.w1) && w2.equals(p.w2) && w3.equals(p.w3);
+        return key;
+    }
+
+    /**
+     * Gets the id of the word at the specified position of a packed phrase.
+     *
+     * @param key The packed phrase.
+     * @param i The position of the word, between 0 and {@link #MaxWords} - 1.
+     */
+    public static int word(long key, int i) {
+        return (int)(key >>> ((MaxWords - 1 - i) * WordBits)) & MaxWordId;
     }
 }
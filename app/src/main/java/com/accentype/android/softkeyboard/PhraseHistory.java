@@ -1,6 +1,7 @@
 package com.accentype.android.softkeyboard;
 
 import java.util.HashMap;
+import java.util.Iterator;
 
 /**
  * Represents a history of phrases as a map from phrase to count.
@@ -25,4 +26,21 @@ public class PhraseHistory extends HashMap<String, Integer> {
             }
         }
     }
+
+    /**
+     * Removes the phrases seen less than a given number of times.
+     *
+     * @param minCount The min count of the phrases to keep.
+     * @return The number of phrases removed.
+     */
+    public int prune(int minCount) {
+        int removed = 0;
+        for (Iterator<Integer> it = this.values().iterator(); it.hasNext(); ) {
+            if (it.next() < minCount) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
 }
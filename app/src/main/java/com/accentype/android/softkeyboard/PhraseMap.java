@@ -1,49 +1,207 @@
 package com.accentype.android.softkeyboard;
 
-import java.util.HashMap;
-
 /**
- * Mapping from unaccented phrase to a map of accented phrases and counts.
+ * Mapping from unaccented phrase to a list of accented phrases and counts.
+ *
+ * Phrases are packed keys (see {@link Phrase}). Unaccented keys live in an open-addressing
+ * table with linear probing, and each slot points to a chain of accented variants stored in
+ * parallel primitive arrays, so no objects are allocated per entry.
+ *
+ * The head variant of each chain also keeps the total count of the chain, updated as counts
+ * are added, so relative frequencies can be scored without summing the chain first.
+ *
+ * The arrays are {@link ChunkedArray}s, so that a copy shares them with the original until
+ * it is updated, and only the chunks updated are copied. Updating a copy with a few phrases
+ * then costs a few chunks rather than the whole mapping.
  */
-public class PhraseMap extends HashMap<Phrase, HashMap<String, Short>> {
-    public boolean isEmpty() {
-        return this.size() == 0;
+public class PhraseMap {
+    public static final int NoVariant = -1;
+
+    private static final int MinCapacity = 16;
+
+    // unaccented keys, 0 marks an empty slot
+    private ChunkedArray.OfLong mKeys;
+    // index of the first accented variant of each slot
+    private ChunkedArray.OfInt mHeads;
+    private int mSize;
+
+    // accented variants, chained per unaccented key
+    private ChunkedArray.OfLong mVariantKeys;
+    private ChunkedArray.OfInt mVariantCounts;
+    private ChunkedArray.OfInt mVariantNext;
+    // total count of the chain, only kept on its head variant
+    private ChunkedArray.OfInt mVariantTotals;
+    private int mVariantSize;
+    // variants still linked in a chain, the others were pruned
+    private int mLiveVariants;
+
+    public PhraseMap() {
+        this(0, 0);
     }
 
     /**
-     * Look up a map of accented phrases & counts by the specified phrase.
+     * Creates a mapping sized to hold the specified number of entries without growing.
      *
-     * @param rawPhrase The unaccented phrase to look up.
+     * @param expectedSize The expected number of unaccented phrases.
+     * @param expectedVariants The expected number of accented phrases.
      */
-    public HashMap<String, Short> lookup(Phrase rawPhrase) {
-        if (this.containsKey(rawPhrase)) {
-            return this.get((rawPhrase));
+    public PhraseMap(int expectedSize, int expectedVariants) {
+        int capacity = MinCapacity;
+        while (expectedSize * 4 > capacity * 3) {
+            capacity *= 2;
         }
-        return null;
+        int variantCapacity = Math.max(MinCapacity, expectedVariants);
+        mKeys = new ChunkedArray.OfLong(capacity);
+        mHeads = new ChunkedArray.OfInt(capacity);
+        mVariantKeys = new ChunkedArray.OfLong(variantCapacity);
+        mVariantCounts = new ChunkedArray.OfInt(variantCapacity);
+        mVariantNext = new ChunkedArray.OfInt(variantCapacity);
+        mVariantTotals = new ChunkedArray.OfInt(variantCapacity);
+    }
+
+    /**
+     * Creates a copy of another mapping, so that it can be updated while the original is
+     * still being read. The copy shares the arrays of the original until it is updated, so
+     * neither of them may be updated by another thread than the one updating the other.
+     */
+    public PhraseMap(PhraseMap other) {
+        mKeys = new ChunkedArray.OfLong(other.mKeys);
+        mHeads = new ChunkedArray.OfInt(other.mHeads);
+        mSize = other.mSize;
+        mVariantKeys = new ChunkedArray.OfLong(other.mVariantKeys);
+        mVariantCounts = new ChunkedArray.OfInt(other.mVariantCounts);
+        mVariantNext = new ChunkedArray.OfInt(other.mVariantNext);
+        mVariantTotals = new ChunkedArray.OfInt(other.mVariantTotals);
+        mVariantSize = other.mVariantSize;
+        mLiveVariants = other.mLiveVariants;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Gets the number of unaccented phrases in this mapping.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Gets the total number of accented phrases in this mapping.
+     */
+    public int variantSize() {
+        return mLiveVariants;
+    }
+
+    /**
+     * Gets the number of slots of the table, i.e. the end of a full {@link #prune} pass.
+     */
+    public int capacity() {
+        return mKeys.length();
+    }
+
+    /**
+     * Look up the accented phrases of the specified unaccented phrase.
+     *
+     * @param rawPhrase The packed unaccented phrase to look up.
+     * @return The first accented variant, or {@link #NoVariant} if the phrase is unknown.
+     *         Use {@link #nextVariant(int)} to iterate the others.
+     */
+    public int lookup(long rawPhrase) {
+        int slot = findSlot(rawPhrase);
+        return mKeys.get(slot) == 0 ? NoVariant : mHeads.get(slot);
+    }
+
+    /**
+     * Gets the unaccented phrase stored in a slot, to iterate the mapping.
+     *
+     * @param slot A slot between 0 and {@link #capacity()}.
+     * @return The packed phrase, or 0 if the slot is empty.
+     */
+    public long keyAt(int slot) {
+        return mKeys.get(slot);
+    }
+
+    /**
+     * Gets the first accented variant of the phrase stored in a non-empty slot.
+     */
+    public int headAt(int slot) {
+        return mHeads.get(slot);
+    }
+
+    public int nextVariant(int variant) {
+        return mVariantNext.get(variant);
+    }
+
+    public long variantKey(int variant) {
+        return mVariantKeys.get(variant);
+    }
+
+    public int variantCount(int variant) {
+        return mVariantCounts.get(variant);
+    }
+
+    /**
+     * Gets the accented syllable id at the specified position of a variant.
+     */
+    public int variantWord(int variant, int i) {
+        return Phrase.word(mVariantKeys.get(variant), i);
+    }
+
+    /**
+     * Gets the sum of the counts of all accented variants of a phrase.
+     *
+     * @param head The first variant, as returned by {@link #lookup(long)}.
+     */
+    public int totalCount(int head) {
+        return head == NoVariant ? 0 : mVariantTotals.get(head);
+    }
+
+    /**
+     * Gets the relative frequency of a variant among all variants of its phrase.
+     *
+     * @param head The first variant, as returned by {@link #lookup(long)}.
+     * @param variant A variant in the chain of head.
+     */
+    public double probability(int head, int variant) {
+        return (double)mVariantCounts.get(variant) / mVariantTotals.get(head);
     }
 
     /**
      * Add a correspondence between an unaccented phrase and its accented version & count.
      *
-     * @param rawPhrase The unaccented phrase.
-     * @param accentPhrase The corresponding accented phrase.
+     * @param rawPhrase The packed unaccented phrase.
+     * @param accentPhrase The corresponding packed accented phrase.
      * @param count The # of occurrences of the accented phrase.
      */
-    public void add(Phrase rawPhrase, String accentPhrase, short count) {
-        if (this.containsKey(rawPhrase)) {
-            HashMap<String, Short> accentPairs = this.get(rawPhrase);
-            if (accentPairs.containsKey(accentPhrase)) {
-                accentPairs.put(accentPhrase, (short)(accentPairs.get(accentPhrase) + count));
-            }
-            else {
-                accentPairs.put(accentPhrase, (short)0);
+    public void add(long rawPhrase, long accentPhrase, int count) {
+        if (rawPhrase == 0) {
+            return;
+        }
+        int slot = findSlot(rawPhrase);
+        if (mKeys.get(slot) == 0) {
+            int variant = newVariant(accentPhrase, count, NoVariant);
+            mKeys.set(slot, rawPhrase);
+            mHeads.set(slot, variant);
+            mSize++;
+            if (mSize * 4 > mKeys.length() * 3) {
+                rehash(mKeys.length() * 2);
             }
+            return;
         }
-        else {
-            HashMap<String, Short> accentPairs = new HashMap<>();
-            accentPairs.put(accentPhrase, count);
-            this.put(rawPhrase, accentPairs);
+        int head = mHeads.get(slot);
+        mVariantTotals.set(head, mVariantTotals.get(head) + count);
+        int last = NoVariant;
+        for (int v = head; v != NoVariant; v = mVariantNext.get(v)) {
+            if (mVariantKeys.get(v) == accentPhrase) {
+                mVariantCounts.set(v, mVariantCounts.get(v) + count);
+                return;
+            }
+            last = v;
         }
+        int variant = newVariant(accentPhrase, count, NoVariant);
+        mVariantNext.set(last, variant);
     }
 
     /**
@@ -55,10 +213,187 @@ public class PhraseMap extends HashMap<Phrase, HashMap<String, Short>> {
         if (pl == null) {
             return;
         }
-        for (Phrase rawPhrase : pl.keySet()) {
-            for (String accentPhrase : pl.get(rawPhrase).keySet()) {
-                this.add(rawPhrase, accentPhrase, pl.get(rawPhrase).get(accentPhrase));
+        for (int slot = 0; slot < pl.mKeys.length(); slot++) {
+            if (pl.mKeys.get(slot) == 0) {
+                continue;
+            }
+            for (int v = pl.mHeads.get(slot); v != NoVariant; v = pl.mVariantNext.get(v)) {
+                add(pl.mKeys.get(slot), pl.mVariantKeys.get(v), pl.mVariantCounts.get(v));
             }
         }
     }
+
+    /**
+     * Removes the accented variants seen less than a given number of times from a range of
+     * slots, and the phrases left without any variant. Meant to be called repeatedly with the
+     * returned slot so that a full pass is spread over many calls; entries moved by a removal
+     * or a rehash in between may be skipped until the next pass.
+     *
+     * @param minCount The min count of the variants to keep.
+     * @param fromSlot The slot to start from.
+     * @param numSlots The max number of slots to visit.
+     * @return The slot to continue from, {@link #capacity()} or more once the pass is done.
+     */
+    public int prune(int minCount, int fromSlot, int numSlots) {
+        int end = Math.min(mKeys.length(), fromSlot + numSlots);
+        int slot = fromSlot;
+        while (slot < end) {
+            // a removal shifts the next phrase of the cluster into this slot
+            if (mKeys.get(slot) == 0 || !pruneSlot(slot, minCount)) {
+                slot++;
+            }
+        }
+        if (mVariantSize > MinCapacity && mVariantSize - mLiveVariants > mLiveVariants) {
+            compactVariants();
+        }
+        return slot;
+    }
+
+    /**
+     * Unlinks the variants of a slot below the min count.
+     *
+     * @return Whether the phrase was removed as none of its variants were left.
+     */
+    private boolean pruneSlot(int slot, int minCount) {
+        int head = NoVariant;
+        int last = NoVariant;
+        int total = 0;
+        for (int v = mHeads.get(slot); v != NoVariant; v = mVariantNext.get(v)) {
+            if (mVariantCounts.get(v) < minCount) {
+                mLiveVariants--;
+                continue;
+            }
+            if (last == NoVariant) {
+                head = v;
+            }
+            else {
+                mVariantNext.set(last, v);
+            }
+            last = v;
+            total += mVariantCounts.get(v);
+        }
+        if (head == NoVariant) {
+            removeSlot(slot);
+            return true;
+        }
+        // unchanged values are not written, so that a chain left as is copies nothing
+        mVariantNext.set(last, NoVariant);
+        mHeads.set(slot, head);
+        mVariantTotals.set(head, total);
+        return false;
+    }
+
+    /**
+     * Removes the phrase of a slot, shifting back the following phrases of its cluster so
+     * that linear probing still finds them.
+     */
+    private void removeSlot(int slot) {
+        int mask = mKeys.length() - 1;
+        int hole = slot;
+        for (int next = (slot + 1) & mask; mKeys.get(next) != 0; next = (next + 1) & mask) {
+            int home = hash(mKeys.get(next)) & mask;
+            // the phrase can move back unless its home slot is after the hole
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mKeys.set(hole, mKeys.get(next));
+                mHeads.set(hole, mHeads.get(next));
+                hole = next;
+            }
+        }
+        mKeys.set(hole, 0);
+        mSize--;
+    }
+
+    /**
+     * Copies the linked variants to new arrays, releasing the space of the pruned ones.
+     */
+    private void compactVariants() {
+        int capacity = Math.max(MinCapacity, mLiveVariants * 2);
+        ChunkedArray.OfLong keys = new ChunkedArray.OfLong(capacity);
+        ChunkedArray.OfInt counts = new ChunkedArray.OfInt(capacity);
+        ChunkedArray.OfInt next = new ChunkedArray.OfInt(capacity);
+        ChunkedArray.OfInt totals = new ChunkedArray.OfInt(capacity);
+        int size = 0;
+        for (int slot = 0; slot < mKeys.length(); slot++) {
+            if (mKeys.get(slot) == 0) {
+                continue;
+            }
+            int head = mHeads.get(slot);
+            totals.set(size, mVariantTotals.get(head));
+            mHeads.set(slot, size);
+            for (int v = head; v != NoVariant; v = mVariantNext.get(v)) {
+                keys.set(size, mVariantKeys.get(v));
+                counts.set(size, mVariantCounts.get(v));
+                next.set(size, mVariantNext.get(v) == NoVariant ? NoVariant : size + 1);
+                size++;
+            }
+        }
+        mVariantKeys = keys;
+        mVariantCounts = counts;
+        mVariantNext = next;
+        mVariantTotals = totals;
+        mVariantSize = size;
+        mLiveVariants = size;
+    }
+
+    private int newVariant(long accentPhrase, int count, int next) {
+        if (mVariantSize == mVariantKeys.length()) {
+            int capacity = mVariantKeys.length() * 2;
+            mVariantKeys.grow(capacity);
+            mVariantCounts.grow(capacity);
+            mVariantNext.grow(capacity);
+            mVariantTotals.grow(capacity);
+        }
+        mVariantKeys.set(mVariantSize, accentPhrase);
+        mVariantCounts.set(mVariantSize, count);
+        mVariantNext.set(mVariantSize, next);
+        mVariantTotals.set(mVariantSize, count);
+        mLiveVariants++;
+        return mVariantSize++;
+    }
+
+    private int findSlot(long key) {
+        int mask = mKeys.length() - 1;
+        int slot = hash(key) & mask;
+        long k;
+        while ((k = mKeys.get(slot)) != 0 && k != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        ChunkedArray.OfLong keys = mKeys;
+        ChunkedArray.OfInt heads = mHeads;
+        mKeys = new ChunkedArray.OfLong(capacity);
+        mHeads = new ChunkedArray.OfInt(capacity);
+        for (int i = 0; i < keys.length(); i++) {
+            if (keys.get(i) != 0) {
+                int slot = findSlot(keys.get(i));
+                mKeys.set(slot, keys.get(i));
+                mHeads.set(slot, heads.get(i));
+            }
+        }
+    }
+
+    static int hash(long key) {
+        // 64-bit finalizer from MurmurHash3
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+
+    static long[] grow(long[] array, int capacity) {
+        long[] grown = new long[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
 }
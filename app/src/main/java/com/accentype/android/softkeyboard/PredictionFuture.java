@@ -0,0 +1,89 @@
+package com.accentype.android.softkeyboard;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prediction running on the prediction thread, which can be cancelled and gives up at its
+ * deadline.
+ *
+ * A prediction that is cancelled or past its deadline before it starts is skipped. Once it
+ * runs, long predictions poll {@link #shouldStop()}, e.g. {@link LatticeDecoder} between
+ * positions, and stop early with no result, so no time is spent on phrases that are stale.
+ */
+public class PredictionFuture extends FutureTask<String> {
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Predictor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final ThreadLocal<PredictionFuture> sCurrent = new ThreadLocal<>();
+
+    private final long mDeadline;
+
+    private PredictionFuture(Callable<String> prediction, long deadlineMillis) {
+        super(prediction);
+        mDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    }
+
+    /**
+     * Queues a prediction on the prediction thread.
+     *
+     * @param deadlineMillis The time from now after which the prediction is given up.
+     */
+    public static PredictionFuture submit(Callable<String> prediction, long deadlineMillis) {
+        PredictionFuture future = new PredictionFuture(prediction, deadlineMillis);
+        sExecutor.execute(future);
+        return future;
+    }
+
+    /**
+     * Queues the prediction of a phrase by a model, see {@link BaseModel#predictAsync}.
+     */
+    public static PredictionFuture submit(final BaseModel model, final String rawPhrase, long deadlineMillis) {
+        return submit(new Callable<String>() {
+            @Override public String call() throws Exception {
+                return model.predict(rawPhrase);
+            }
+        }, deadlineMillis);
+    }
+
+    /**
+     * Gets whether the deadline has passed.
+     */
+    public boolean isExpired() {
+        return System.nanoTime() - mDeadline > 0;
+    }
+
+    @Override public void run() {
+        if (isExpired()) {
+            cancel(false);
+            return;
+        }
+        sCurrent.set(this);
+        try {
+            super.run();
+        }
+        finally {
+            sCurrent.remove();
+        }
+    }
+
+    /**
+     * Gets whether the prediction running on the calling thread should stop, because it
+     * was cancelled, interrupted or is past its deadline.
+     */
+    public static boolean shouldStop() {
+        if (Thread.currentThread().isInterrupted()) {
+            return true;
+        }
+        PredictionFuture current = sCurrent.get();
+        return current != null && (current.isCancelled() || current.isExpired());
+    }
+}
@@ -0,0 +1,44 @@
+package com.accentype.android.softkeyboard;
+
+/**
+ * Stateful prediction for a phrase that is being typed one character at a time.
+ * Implementations may keep work from previous predictions, so that predicting after
+ * each keystroke does not redo the whole phrase.
+ */
+interface PredictionSession {
+    /**
+     * Appends a character to the phrase.
+     */
+    void append(char c);
+
+    /**
+     * Deletes the last character of the phrase, if any.
+     */
+    void deleteLast();
+
+    /**
+     * Replaces the phrase with the specified text, applying only the character deletions &
+     * appends needed past their common prefix.
+     */
+    void update(CharSequence text);
+
+    /**
+     * Clears the phrase.
+     */
+    void reset();
+
+    /**
+     * Predicts the accented phrase for the current unaccented phrase.
+     * @return The prediction, in the same format as {@link BaseModel#predict(String)}.
+     */
+    String predict();
+
+    /**
+     * Predicts the current phrase on the prediction thread, cancelling the previous prediction
+     * of this session if it has not completed.
+     * @param deadlineMillis The time from now after which the prediction is given up.
+     * @return The pending prediction, which completes with null if the phrase changed before
+     * it ran.
+     */
+    PredictionFuture predictAsync(long deadlineMillis);
+}
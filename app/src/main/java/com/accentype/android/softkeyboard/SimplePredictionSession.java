@@ -0,0 +1,41 @@
+package com.accentype.android.softkeyboard;
+
+/**
+ * Prediction session that keeps no state other than the phrase, for models that
+ * cannot predict incrementally.
+ */
+public class SimplePredictionSession extends BasePredictionSession {
+    private final BaseModel mModel;
+    private final StringBuilder mText = new StringBuilder();
+
+    public SimplePredictionSession(BaseModel model) {
+        mModel = model;
+    }
+
+    @Override public synchronized void append(char c) {
+        mText.append(c);
+    }
+
+    @Override public synchronized void deleteLast() {
+        if (mText.length() > 0) {
+            mText.setLength(mText.length() - 1);
+        }
+    }
+
+    @Override public synchronized void update(CharSequence text) {
+        mText.setLength(0);
+        mText.append(text);
+    }
+
+    @Override public synchronized void reset() {
+        mText.setLength(0);
+    }
+
+    @Override protected CharSequence getText() {
+        return mText;
+    }
+
+    @Override public synchronized String predict() {
+        return mModel.predict(mText.toString());
+    }
+}
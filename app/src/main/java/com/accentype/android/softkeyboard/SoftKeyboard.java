@@ -45,6 +45,7 @@ import java.nio.ByteBuffer;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -83,10 +84,17 @@ public class SoftKeyboard extends InputMethodService
     // Keep track of the last composing text that was manually corrected by user
     private String mUserComposing = "";
 
-    private BaseModel mLocalModel;
+    private CompositeModel mLocalModel;
+    private PartitionedModel mPartitionedModel;
+    private PredictionSession mPredictionSession;
     private List<String> mPredictions;
     private String[][] mWordChoices;
+    // completions of the top prediction, computed along with it in the background
+    private List<String> mCompletions = EMPTY_LIST;
+    // the composing text that the completions are for
+    private String mCompletionsQuery = "";
     private DictionaryEN mDictionaryEN;
+    private DictionaryVN mDictionaryVN;
     private boolean mPredictionOn;
     private boolean mCompletionOn;
     private int mLastDisplayWidth;
@@ -110,6 +118,8 @@ public class SoftKeyboard extends InputMethodService
 
     private AtomicBoolean mGotServerPrediction = new AtomicBoolean(false);
     private Semaphore mPredictionSemaphore = new Semaphore(1);
+    // the latest prediction, cancelled once a keystroke makes it stale
+    private Predictor mPredictor;
 
     // Request ID is used to make sure server prediction response matches the latest request.
     private AtomicInteger mRequestId = new AtomicInteger();
@@ -136,11 +146,26 @@ public class SoftKeyboard extends InputMethodService
         // SharedPreferences for settings
         mSettings = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
 
-        mLocalModel = ModelFactory.create(ModelVersion.LINEAR_BACKOFF_INTERPOLATION,
-                getString(R.string.model_file_name),
-                getFilesDir().getPath());
+        String modelFileName = getString(R.string.model_file_name);
+        String modelFileDir = getFilesDir().getPath();
+        BaseModel baseModel = ModelFactory.create(ModelVersion.LINEAR_BACKOFF_INTERPOLATION, modelFileName, modelFileDir);
+        mPartitionedModel = new PartitionedModel(baseModel, modelFileName, modelFileDir);
+
+        // the n-gram model decides, whole phrases seen before fill in the words it cannot
+        mLocalModel = new CompositeModel();
+        mLocalModel.addModel(mPartitionedModel, 1.0f);
+        mLocalModel.addModel(ModelFactory.create(ModelVersion.LOOKUP,
+                getString(R.string.lookup_model_file_name),
+                modelFileDir), 0.5f);
+        mPredictionSession = mLocalModel.newSession();
 
         mDictionaryEN = DictionaryEN.getInstance(getResources().openRawResource(R.raw.dict_en_10000));
+
+        // VN completions include the phrases learned so far
+        mDictionaryVN = DictionaryVN.getInstance(getResources().openRawResource(R.raw.dict_vn));
+        if (baseModel instanceof LinearBackoffInterpolationModel) {
+            mDictionaryVN.addHistory((LinearBackoffInterpolationModel)baseModel);
+        }
     }
 
     /**
@@ -160,6 +185,11 @@ public class SoftKeyboard extends InputMethodService
         mSymbolsKeyboard = new LatinKeyboard(this, R.xml.symbols);
         mSymbolsShiftedKeyboard = new LatinKeyboard(this, R.xml.symbols_shift);
         mEmojiKeyboard = new LatinKeyboard(this, R.xml.emoji);
+
+        // typos are scored by the distances between the keys as laid out
+        if (mDictionaryEN != null) {
+            mDictionaryEN.setKeyProximity(mQwertyKeyboard.getKeyProximity());
+        }
     }
 
     /**
@@ -212,6 +242,9 @@ public class SoftKeyboard extends InputMethodService
     @Override public void onStartInput(EditorInfo attribute, boolean restarting) {
         super.onStartInput(attribute, restarting);
 
+        // predict & learn with the model partition of the application being typed into
+        mPartitionedModel.setPartition(attribute.packageName);
+
         // Reset our state.  We want to do this even if restarting, because
         // the underlying state of the text editor could have changed in any way.
         mComposing.setLength(0);
@@ -528,7 +561,7 @@ public class SoftKeyboard extends InputMethodService
                 String prediction = suggestions.get(index);
                 inputConnection.commitText(prediction, 1);
                 if (getLanguageCode() == LatinKeyboard.LANGUAGE_VN) {
-                    mLocalModel.learn(mComposing.toString(), prediction);
+                    learnVN(prediction);
                 }
             }
             else {
@@ -675,6 +708,15 @@ public class SoftKeyboard extends InputMethodService
                         suggestions.add(mPredictions.get(i));
                     }
                 }
+                if (getLanguageCode() == LatinKeyboard.LANGUAGE_VN && mComposing.toString().equals(mCompletionsQuery)) {
+                    // then the completions of the top prediction, which has the accents known so far
+                    List<String> completions = mCompletions;
+                    for (int i = 0; i < completions.size() && suggestions.size() < CandidateView.MAX_SUGGESTIONS; i++) {
+                        if (!suggestions.contains(completions.get(i))) {
+                            suggestions.add(completions.get(i));
+                        }
+                    }
+                }
                 setSuggestions(suggestions, mWordChoices, true, true);
             } else {
                 setSuggestions(null, null, false, false);
@@ -712,6 +754,8 @@ public class SoftKeyboard extends InputMethodService
         mUserComposing = "";
         mPredictions = EMPTY_LIST;
         mWordChoices = null;
+        mCompletions = EMPTY_LIST;
+        mCompletionsQuery = "";
         mGotServerPrediction.set(Boolean.FALSE);
     }
 
@@ -721,8 +765,13 @@ public class SoftKeyboard extends InputMethodService
      */
     private void updatePredictionsVN() {
         String composing = mComposing.toString();
+        if (mPredictor != null) {
+            mPredictor.cancelPrediction();
+            mPredictor = null;
+        }
         if (mPredictionOn && getLanguageCode() == LatinKeyboard.LANGUAGE_VN && composing.trim().length() > 0) {
-            new Predictor().execute(composing);
+            mPredictor = new Predictor();
+            mPredictor.execute(composing);
         }
         else {
             this.resetServerPredictions();
@@ -740,11 +789,25 @@ public class SoftKeyboard extends InputMethodService
             List<String> suggestions = mCandidateView != null ? mCandidateView.getSuggestions() : mPredictions;
             if (suggestions != null && suggestions.size() > 0) {
                 String prediction = suggestions.get(0);
-                mLocalModel.learn(mComposing.toString(), prediction);
+                learnVN(prediction);
             }
         }
     }
 
+    /**
+     * Learns a VN phrase being committed in place of the composing text. A completion is
+     * learned with its own unaccented phrase rather than the shorter one typed.
+     */
+    private void learnVN(String prediction) {
+        String rawPhrase = mComposing.toString();
+        String rawPrediction = ModelMigrator.removeAccents(prediction);
+        if (!rawPrediction.equalsIgnoreCase(rawPhrase)) {
+            rawPhrase = rawPrediction;
+        }
+        mLocalModel.learn(rawPhrase, prediction);
+        mDictionaryVN.learn(prediction);
+    }
+
     /**
      * Update internal prediction values & candidate suggestions for EN language.
      * EN predictions are just auto-completions so this method directly updates
@@ -753,7 +816,7 @@ public class SoftKeyboard extends InputMethodService
     private void updatePredictionsEN() {
         getCurrentInputConnection().setComposingText(mComposing, 1);
         String query = mComposing.toString().toLowerCase();
-        List<String> suggestions = (List<String>) mDictionaryEN.complete(query);
+        List<String> suggestions = mDictionaryEN.complete(query, CandidateView.MAX_SUGGESTIONS);
         for (int i = 0; i < suggestions.size(); i++) {
             suggestions.set(
                     i,
@@ -1044,15 +1107,55 @@ public class SoftKeyboard extends InputMethodService
     private class Predictor extends AsyncTask<String, Void, PredictionData> {
         private final static String ServerAddress = "accentypeheader.cloudapp.net";
         private final static int ServerPort = 10100;
+        private final static int MaxLocalAlternatives = 5;
+        private final static long LocalPredictionDeadline = 300;
+
+        private volatile PredictionFuture mLocalPrediction;
+
+        /**
+         * Cancels the prediction, including the local one if it is still running.
+         */
+        public void cancelPrediction() {
+            cancel(true);
+            PredictionFuture localPrediction = mLocalPrediction;
+            if (localPrediction != null) {
+                localPrediction.cancel(true);
+            }
+        }
 
         /** The system calls this to perform work in a worker thread and
          * delivers it the parameters given to AsyncTask.execute() */
         protected PredictionData doInBackground(String... composing) {
             try {
                 String query = composing[0];
+
+                // decode locally while waiting for the server, the session only re-decodes
+                // the part of the phrase that changed
+                mPredictionSession.update(query);
+                mLocalPrediction = mPredictionSession.predictAsync(LocalPredictionDeadline);
+                if (isCancelled()) {
+                    mLocalPrediction.cancel(true);
+                    return null;
+                }
+
                 String[][] choices = predict(query);
 
-                String localPrediction = mLocalModel.predict(composing[0]);
+                String localPrediction;
+                try {
+                    localPrediction = mLocalPrediction.get();
+                }
+                catch (CancellationException ex) {
+                    // typed past, or the local prediction ran out of time
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    localPrediction = null;
+                }
+                catch (InterruptedException ex) {
+                    // cancelled while waiting, which is expected when typing past
+                    mLocalPrediction.cancel(true);
+                    return null;
+                }
 
                 if (choices != null) {
                     List<String> predictions = new ArrayList<>();
@@ -1092,9 +1195,41 @@ public class SoftKeyboard extends InputMethodService
                     data.Predictions = predictions;
                     data.Query = query;
                     data.WordChoices = choices;
+                    data.Completions = complete(predictions.get(0));
 
                     return data;
                 }
+                else if (!isCancelled()) {
+                    // no server prediction, fall back to the jointly decoded local predictions
+                    List<String> alternatives = mLocalModel.predictAlternatives(query, MaxLocalAlternatives);
+                    if (alternatives.size() > 0) {
+                        List<String> predictions = new ArrayList<>();
+                        for (String alternative : alternatives) {
+                            predictions.add(StringUtil.replaceDottedPreserveCase(
+                                query,
+                                new StringBuilder(alternative)
+                            ));
+                        }
+
+                        if (mUserComposing.length() > 0) {
+                            predictions.set(0, StringUtil.normalizeByWords(predictions.get(0), mUserComposing));
+                        }
+
+                        PredictionData data = new PredictionData();
+                        data.Predictions = predictions;
+                        data.Query = query;
+                        data.Completions = complete(predictions.get(0));
+                        return data;
+                    }
+                }
+
+                if (!isCancelled()) {
+                    // nothing predicted, the phrase typed is still completed
+                    PredictionData data = new PredictionData();
+                    data.Query = query;
+                    data.Completions = complete(query);
+                    return data;
+                }
             }
             catch (Exception ex) {
                 LogUtil.LogError(this.getClass().getName(), "Failed to predict in background", ex);
@@ -1111,19 +1246,29 @@ public class SoftKeyboard extends InputMethodService
                 predictionData != null &&
                 mComposing.toString().equals(predictionData.Query)
             ) {
-                mPredictions = predictionData.Predictions;
-                mWordChoices = predictionData.WordChoices;
-                if (mPredictions != null && mPredictions.size() > 0) {
+                mCompletions = predictionData.Completions;
+                mCompletionsQuery = predictionData.Query;
+                if (predictionData.Predictions != null && predictionData.Predictions.size() > 0) {
+                    mPredictions = predictionData.Predictions;
+                    mWordChoices = predictionData.WordChoices;
                     getCurrentInputConnection().setComposingText(mPredictions.get(0), 1);
                     mGotServerPrediction.set(Boolean.TRUE);
                     mPredictionSemaphore.release();
-                    updateCandidates();
                 }
+                updateCandidates();
             }
 
             mPredictionSemaphore.release();
         }
 
+        /**
+         * Gets the completions of a prediction, in the background along with the prediction so
+         * that the keystrokes do not wait for them.
+         */
+        private List<String> complete(String prediction) {
+            return mDictionaryVN.complete(prediction, CandidateView.MAX_SUGGESTIONS);
+        }
+
         private String[][] predict(String query) {
             mRequestId.compareAndSet(mMaxRequestId, 0);
             int requestId = mRequestId.incrementAndGet();
@@ -1200,5 +1345,6 @@ public class SoftKeyboard extends InputMethodService
         public String Query;
         public List<String> Predictions;
         public String[][] WordChoices;
+        public List<String> Completions;
     }
 }
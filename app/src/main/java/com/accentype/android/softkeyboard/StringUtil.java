@@ -14,6 +14,18 @@ public class StringUtil {
      */
     public static String replaceDottedPreserveCase(String original, StringBuilder replace) {
         StringBuilder sbOriginal = new StringBuilder(original);
+        replaceDottedPreserveCase(sbOriginal, replace);
+        return sbOriginal.toString();
+    }
+
+    /**
+     * Same as {@link #replaceDottedPreserveCase(String, StringBuilder)} but modifies the
+     * original string in place instead of allocating a new one.
+     *
+     * @param sbOriginal the original string, which receives the replacement.
+     * @param replace the string to replace in the original string.
+     */
+    public static void replaceDottedPreserveCase(StringBuilder sbOriginal, CharSequence replace) {
         int j = 0;
         for (int i = 0; i < sbOriginal.length() && j < replace.length(); i++) {
             char c = sbOriginal.charAt(i);
@@ -31,7 +43,6 @@ public class StringUtil {
             }
             j++;
         }
-        return sbOriginal.toString();
     }
 
     /**
@@ -0,0 +1,135 @@
+package com.accentype.android.softkeyboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Variable-length encoding of non-negative integers, 7 bits per byte with the high bit set
+ * on every byte but the last, so that small counts & deltas take a single byte.
+ */
+public class VarInt {
+    public static void write(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int)(value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+    /**
+     * Writes a string as its UTF-8 length followed by its UTF-8 bytes.
+     */
+    public static void writeString(ByteArrayOutputStream out, String value) throws UnsupportedEncodingException {
+        byte[] bytes = value.getBytes("UTF-8");
+        write(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Reads values from a range of a byte array, e.g. a file read in bulk.
+     */
+    public static class Reader {
+        private final byte[] mData;
+        private final int mEnd;
+        private int mPosition;
+
+        public Reader(byte[] data, int start, int end) throws IOException {
+            if (start < 0 || end > data.length || start > end) {
+                throw new EOFException("Range [" + start + ", " + end + ") out of " + data.length + " bytes");
+            }
+            mData = data;
+            mPosition = start;
+            mEnd = end;
+        }
+
+        public boolean hasMore() {
+            return mPosition < mEnd;
+        }
+
+        /**
+         * Gets the number of bytes left to read.
+         */
+        public int remaining() {
+            return mEnd - mPosition;
+        }
+
+        /**
+         * Gets a reader over the next bytes and skips them.
+         *
+         * @param length The number of bytes.
+         */
+        public Reader slice(int length) throws IOException {
+            if (length < 0 || length > mEnd - mPosition) {
+                throw new EOFException();
+            }
+            Reader slice = new Reader(mData, mPosition, mPosition + length);
+            mPosition += length;
+            return slice;
+        }
+
+        public long readLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (mPosition >= mEnd) {
+                    throw new EOFException();
+                }
+                byte b = mData[mPosition++];
+                value |= (long)(b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        public int readInt() throws IOException {
+            long value = readLong();
+            if (value > Integer.MAX_VALUE) {
+                throw new IOException("Varint out of range: " + value);
+            }
+            return (int)value;
+        }
+
+        /**
+         * Reads a 4-byte big-endian int, as written by {@link java.io.DataOutputStream#writeInt(int)}.
+         */
+        public int readFixedInt() throws IOException {
+            if (mEnd - mPosition < 4) {
+                throw new EOFException();
+            }
+            int value = ((mData[mPosition] & 0xFF) << 24) | ((mData[mPosition + 1] & 0xFF) << 16) |
+                ((mData[mPosition + 2] & 0xFF) << 8) | (mData[mPosition + 3] & 0xFF);
+            mPosition += 4;
+            return value;
+        }
+
+        /**
+         * Reads the specified number of bytes into an array.
+         */
+        public void readBytes(byte[] bytes, int offset, int length) throws IOException {
+            if (length < 0 || length > mEnd - mPosition) {
+                throw new EOFException();
+            }
+            System.arraycopy(mData, mPosition, bytes, offset, length);
+            mPosition += length;
+        }
+
+        public String readString() throws IOException {
+            return readUtf8(readInt());
+        }
+
+        /**
+         * Reads a string of the specified number of UTF-8 bytes.
+         */
+        public String readUtf8(int length) throws IOException {
+            if (length < 0 || length > mEnd - mPosition) {
+                throw new EOFException();
+            }
+            String value = new String(mData, mPosition, length, "UTF-8");
+            mPosition += length;
+            return value;
+        }
+    }
+}
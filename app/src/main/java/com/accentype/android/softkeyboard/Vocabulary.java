@@ -0,0 +1,321 @@
+package com.accentype.android.softkeyboard;
+
+/**
+ * Maps lower-case syllables, both unaccented and accented, to dense integer ids so that
+ * phrases can be stored and looked up as id sequences. Id 0 is reserved for "no word",
+ * and the phrase markers are always assigned the first ids after it.
+ *
+ * Every syllable also knows the id of its unaccented form, and every unaccented syllable
+ * keeps an ordered list of its accented variants. The variants come from the VN dictionary
+ * first, followed by any new ones seen in learned phrases.
+ *
+ * Lookups never allocate and can be done on any thread. Interning is synchronized, and
+ * readers only trust ids below the published size so they never see a half-added syllable.
+ */
+public class Vocabulary {
+    public static final int None = 0;
+    public static final int BeginMarker = 1;
+    public static final int EndMarker = 2;
+
+    private static final int MinCapacity = 64;
+
+    private static Vocabulary instance = null;
+
+    private String[] mWords = new String[MinCapacity];
+    private int[] mRawIds = new int[MinCapacity];
+    // first/last accented variant of an unaccented syllable, and next variant of the same one
+    private int[] mFirstVariant = new int[MinCapacity];
+    private int[] mLastVariant = new int[MinCapacity];
+    private int[] mNextVariant = new int[MinCapacity];
+    // open-addressing table of ids keyed by syllable hash
+    private int[] mTable = new int[MinCapacity * 2];
+    private volatile int mSize = 1;
+
+    protected Vocabulary() {
+        intern(Phrase.BeginMarker);
+        intern(Phrase.EndMarker);
+    }
+
+    public static synchronized Vocabulary getInstance() {
+        if (instance == null) {
+            instance = new Vocabulary();
+        }
+        return instance;
+    }
+
+    /**
+     * Gets the number of ids in use, including the reserved id 0.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Gets the id of the specified syllable without adding it.
+     *
+     * @param word The syllable to look up, matched case-insensitively.
+     * @return The id of the syllable, or {@link #None} if it is unknown.
+     */
+    public int find(CharSequence word) {
+        return find(word, 0, word.length());
+    }
+
+    /**
+     * Gets the id of a syllable within a larger text without adding it.
+     *
+     * @param text The text containing the syllable.
+     * @param start The index of the first character of the syllable.
+     * @param end The index after the last character of the syllable.
+     * @return The id of the syllable, or {@link #None} if it is unknown.
+     */
+    public int find(CharSequence text, int start, int end) {
+        int size = mSize;
+        int[] table = mTable;
+        String[] words = mWords;
+        int mask = table.length - 1;
+        for (int slot = hash(text, start, end) & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot];
+            if (id == None) {
+                return None;
+            }
+            if (id < size && id < words.length && matches(words[id], text, start, end)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Gets the id of the specified syllable, adding it if needed.
+     *
+     * @param word The syllable to intern.
+     * @return The id of the syllable.
+     */
+    public int intern(String word) {
+        return intern(word, 0, word.length());
+    }
+
+    /**
+     * Gets the id of a syllable within a larger text, adding it if needed.
+     */
+    public int intern(CharSequence text, int start, int end) {
+        int id = find(text, start, end);
+        return id != None ? id : add(lowerCase(text, start, end));
+    }
+
+    /**
+     * Gets the syllable for the specified id.
+     *
+     * @param id The syllable id.
+     * @return The syllable, or null if the id is unknown.
+     */
+    public String get(int id) {
+        if (id <= None || id >= mSize) {
+            return null;
+        }
+        return mWords[id];
+    }
+
+    /**
+     * Gets the id of the unaccented form of the specified syllable.
+     */
+    public int rawOf(int id) {
+        if (id <= None || id >= mSize) {
+            return None;
+        }
+        return mRawIds[id];
+    }
+
+    /**
+     * Gets the first accented variant of an unaccented syllable.
+     *
+     * @param rawId The id of the unaccented syllable.
+     * @return The id of the first variant, or {@link #None} if there is none.
+     *         Use {@link #nextVariant(int)} to iterate the others.
+     */
+    public int firstVariant(int rawId) {
+        if (rawId <= None || rawId >= mSize) {
+            return None;
+        }
+        return mFirstVariant[rawId];
+    }
+
+    public int nextVariant(int accentId) {
+        return mNextVariant[accentId];
+    }
+
+    /**
+     * Records an accented syllable as a variant of its unaccented form, if not already.
+     *
+     * @param accentId The id of the accented syllable.
+     */
+    public synchronized void addVariant(int accentId) {
+        if (accentId <= EndMarker || accentId >= mSize) {
+            return;
+        }
+        int rawId = mRawIds[accentId];
+        if (mFirstVariant[rawId] == accentId || mNextVariant[accentId] != None ||
+            mLastVariant[rawId] == accentId) {
+            return;
+        }
+        if (mFirstVariant[rawId] == None) {
+            mFirstVariant[rawId] = accentId;
+        }
+        else {
+            mNextVariant[mLastVariant[rawId]] = accentId;
+        }
+        mLastVariant[rawId] = accentId;
+    }
+
+    /**
+     * Splits the specified text on whitespaces and gets the id of each syllable.
+     *
+     * @param text The text to split.
+     * @param ids Receives the syllable ids, {@link #None} for unknown syllables when not interning.
+     * @param lengths Receives the length of each syllable, or null if not needed.
+     * @param offset The index in ids & lengths to write the first syllable to.
+     * @param intern Whether unknown syllables should be added.
+     * @return The number of syllables in the text. Only the ones that fit are written.
+     */
+    public int lookupAll(CharSequence text, int[] ids, int[] lengths, int offset, boolean intern) {
+        int count = 0;
+        int length = text.length();
+        int i = 0;
+        while (true) {
+            while (i < length && Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            if (i == length) {
+                return count;
+            }
+            int start = i;
+            while (i < length && !Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            int index = offset + count;
+            if (index < ids.length) {
+                ids[index] = intern ? intern(text, start, i) : find(text, start, i);
+                if (lengths != null) {
+                    lengths[index] = i - start;
+                }
+            }
+            count++;
+        }
+    }
+
+    /**
+     * Counts the whitespace separated syllables in the specified text.
+     */
+    public static int countWords(CharSequence text) {
+        int count = 0;
+        boolean inWord = false;
+        for (int i = 0; i < text.length(); i++) {
+            boolean whitespace = Character.isWhitespace(text.charAt(i));
+            if (!whitespace && !inWord) {
+                count++;
+            }
+            inWord = !whitespace;
+        }
+        return count;
+    }
+
+    private synchronized int add(String word) {
+        int id = find(word);
+        if (id != None) {
+            return id;
+        }
+        // the unaccented form always gets its id first
+        String raw = removeAccents(word);
+        int rawId = raw.equals(word) ? None : add(raw);
+
+        id = mSize;
+        if (id > Phrase.MaxWordId) {
+            throw new IllegalStateException("Vocabulary is full");
+        }
+        if (id == mWords.length) {
+            int capacity = id * 2;
+            String[] words = new String[capacity];
+            System.arraycopy(mWords, 0, words, 0, id);
+            mWords = words;
+            mRawIds = PhraseMap.grow(mRawIds, capacity);
+            mFirstVariant = PhraseMap.grow(mFirstVariant, capacity);
+            mLastVariant = PhraseMap.grow(mLastVariant, capacity);
+            mNextVariant = PhraseMap.grow(mNextVariant, capacity);
+        }
+        mWords[id] = word;
+        mRawIds[id] = rawId == None ? id : rawId;
+
+        if ((id + 1) * 2 > mTable.length) {
+            rehash(mTable.length * 2);
+        }
+        insert(mTable, id);
+
+        // publish only after the syllable is fully added
+        mSize = id + 1;
+        return id;
+    }
+
+    private void insert(int[] table, int id) {
+        String word = mWords[id];
+        int mask = table.length - 1;
+        int slot = hash(word, 0, word.length()) & mask;
+        while (table[slot] != None) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id;
+    }
+
+    private void rehash(int capacity) {
+        int[] table = new int[capacity];
+        for (int id = 1; id < mSize; id++) {
+            insert(table, id);
+        }
+        mTable = table;
+    }
+
+    private static int hash(CharSequence text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + Character.toLowerCase(text.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    // lowered char by char as hash & matches do, unlike String.toLowerCase which depends on
+    // the locale, e.g. "I" lowers to a dotless i in tr
+    private static String lowerCase(CharSequence text, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = Character.toLowerCase(text.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    private static boolean matches(String word, CharSequence text, int start, int end) {
+        if (word.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (word.charAt(i) != Character.toLowerCase(text.charAt(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps every accented letter of a lower-case word to its unaccented letter.
+     */
+    public static String removeAccents(String word) {
+        char[] chars = null;
+        for (int i = 0; i < word.length(); i++) {
+            Character raw = LanguageConstruct.AccentToRawMap.get(word.charAt(i));
+            if (raw != null && raw != word.charAt(i)) {
+                if (chars == null) {
+                    chars = word.toCharArray();
+                }
+                chars[i] = raw;
+            }
+        }
+        return chars == null ? word : new String(chars);
+    }
+}